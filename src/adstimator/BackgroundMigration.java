@@ -0,0 +1,31 @@
+package adstimator;
+
+/**
+ * A migration which is run in the background, one step at a time.
+ *
+ * Background migrations are meant for work that takes long on large knowledge bases, such as building indexes, and
+ * are run in steps so that the database is never locked for long. Since a background migration is only recorded as
+ * applied when it is done, each step must be safe to run again after a restart.
+ *
+ * @author erikbrannstrom
+ */
+public abstract class BackgroundMigration extends Migration
+{
+	/**
+	 * Create a background migration.
+	 *
+	 * @param version Version number, which decides the order migrations are run in
+	 * @param description Short description of the change
+	 */
+	public BackgroundMigration(int version, String description)
+	{
+		super(version, description);
+	}
+
+	/**
+	 * Run the next step of the migration. Each step takes the write connection for itself as needed.
+	 *
+	 * @return True when the migration is done, false if there are more steps
+	 */
+	public abstract boolean step();
+}
@@ -1,28 +1,108 @@
 package adstimator;
 
+import adstimator.data.Config;
+import adstimator.data.KnowledgeBase;
 import adstimator.gui.GUI;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 
 /**
  * Main application that initializes and displays the GUI to the user.
  *
+ * The window is shown as soon as possible, before the database is touched. Checking the schema, loading the config and
+ * reading the targets of the current knowledge base is done on a background thread, and the GUI is filled in when that
+ * is done. The time of each startup milestone is logged, counted from the start of main.
+ *
  * @author erikbrannstrom
  */
 public class Main {
-	
+
+	private static final Logger LOG = Logger.getLogger(Main.class.getName());
+	private static long started;
+
 	/**
 	 * Start application.
-	 * 
-	 * @param args 
+	 *
+	 * @param args
 	 */
 	public static void main(String[] args)
 	{
-		if (Setup.isFirstRun()) {
-			Setup.init();
-		}
-		
-		GUI frame = new GUI();
-		frame.setSize(900, 600);
-		frame.setVisible(true);
+		started = System.nanoTime();
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				GUI frame = new GUI();
+				frame.setSize(900, 600);
+				frame.setVisible(true);
+				Main.milestone("Frame shown");
+				Main.load(frame);
+			}
+		});
 	}
-	
+
+	/**
+	 * Private helper method for loading everything that needs the database on a background thread and handing it to
+	 * the frame when done.
+	 *
+	 * @param frame Frame to fill in
+	 */
+	private static void load(final GUI frame)
+	{
+		new SwingWorker<Object[], Void>()
+		{
+			@Override
+			protected Object[] doInBackground()
+			{
+				if (Setup.isFirstRun()) {
+					Setup.init();
+				} else {
+					Setup.upgrade();
+				}
+				Main.milestone("Schema checked");
+
+				Config config = new Config();
+				Main.milestone("Config loaded");
+
+				KnowledgeBase kb = KnowledgeBase.find(Integer.parseInt(config.get("knowledge_base")));
+				// Targets are cached by the knowledge base, so the target panel gets them without a query
+				kb.targets();
+				Main.milestone("Targets loaded");
+				return new Object[]{config, kb};
+			}
+
+			@Override
+			protected void done()
+			{
+				try {
+					Object[] loaded = this.get();
+					frame.load((Config) loaded[0], (KnowledgeBase) loaded[1]);
+					Main.milestone("Ready");
+				} catch (InterruptedException ex) {
+					throw new RuntimeException(ex);
+				} catch (ExecutionException ex) {
+					LOG.log(Level.SEVERE, "Startup failed", ex.getCause());
+					JOptionPane.showMessageDialog(frame, "Could not open the database: " + ex.getCause().getMessage(),
+							"Startup failed", JOptionPane.ERROR_MESSAGE);
+					System.exit(1);
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Log the time since the application was started.
+	 *
+	 * @param name Name of the milestone
+	 */
+	private static void milestone(String name)
+	{
+		LOG.log(Level.INFO, "{0} after {1} ms", new Object[]{name, (System.nanoTime() - started) / 1000000});
+	}
+
 }
@@ -0,0 +1,49 @@
+package adstimator;
+
+/**
+ * A single step in bringing the database up to date, identified by a version number.
+ *
+ * A migration either runs at startup, in a transaction of its own, or in the background. Extend StartupMigration or
+ * BackgroundMigration rather than this class.
+ *
+ * @author erikbrannstrom
+ */
+public abstract class Migration
+{
+	private final int version;
+	private final String description;
+
+	/**
+	 * Create a migration.
+	 *
+	 * @param version Version number, which decides the order migrations are run in
+	 * @param description Short description of the change
+	 */
+	public Migration(int version, String description)
+	{
+		this.version = version;
+		this.description = description;
+	}
+
+	/**
+	 * @return Version number
+	 */
+	public int version()
+	{
+		return this.version;
+	}
+
+	/**
+	 * @return Short description of the change
+	 */
+	public String description()
+	{
+		return this.description;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%d: %s", this.version, this.description);
+	}
+}
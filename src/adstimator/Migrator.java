@@ -0,0 +1,229 @@
+package adstimator;
+
+import adstimator.data.DatabaseHelper;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the migrations that have not yet been applied to the database, in order of version.
+ *
+ * Applied versions are recorded in the schema_migrations table. Startup migrations are run by migrate(), each in a
+ * transaction together with its version, while background migrations are left to runBackground(). A background
+ * migration may finish after startup migrations with higher versions, so startup migrations must not depend on them.
+ *
+ * @author erikbrannstrom
+ */
+public class Migrator
+{
+	private static final Logger LOG = Logger.getLogger(Migrator.class.getName());
+	private final List<Migration> migrations;
+
+	/**
+	 * Create a runner for a list of migrations.
+	 *
+	 * @param migrations Migrations, in any order
+	 */
+	public Migrator(List<Migration> migrations)
+	{
+		this.migrations = new ArrayList<Migration>(migrations);
+		Collections.sort(this.migrations, new Comparator<Migration>()
+		{
+			@Override
+			public int compare(Migration a, Migration b)
+			{
+				return a.version() < b.version() ? -1 : (a.version() == b.version() ? 0 : 1);
+			}
+		});
+	}
+
+	/**
+	 * Get the versions which have been applied to the database.
+	 *
+	 * @return Versions in order
+	 */
+	public Set<Integer> applied()
+	{
+		Set<Integer> versions = new TreeSet<Integer>();
+		try {
+			Connection con = DatabaseHelper.instance().getWriteConnection();
+			try {
+				Migrator.createTable(con);
+				Statement stmnt = con.createStatement();
+				ResultSet rs = stmnt.executeQuery("SELECT version FROM schema_migrations");
+				while (rs.next()) {
+					versions.add(rs.getInt(1));
+				}
+				rs.close();
+				stmnt.close();
+			} finally {
+				con.close();
+			}
+		} catch (SQLException ex) {
+			throw new RuntimeException(ex);
+		}
+		return versions;
+	}
+
+	/**
+	 * Get the migrations which have not been applied.
+	 *
+	 * @return Migrations in order of version
+	 */
+	public List<Migration> pending()
+	{
+		Set<Integer> applied = this.applied();
+		List<Migration> pending = new ArrayList<Migration>();
+		for (Migration migration : this.migrations) {
+			if (!applied.contains(migration.version())) {
+				pending.add(migration);
+			}
+		}
+		return pending;
+	}
+
+	/**
+	 * Run all pending startup migrations.
+	 */
+	public void migrate()
+	{
+		for (Migration migration : this.pending()) {
+			if (!(migration instanceof StartupMigration)) {
+				continue;
+			}
+			Connection con = DatabaseHelper.instance().getWriteConnection();
+			try {
+				con.setAutoCommit(false);
+				((StartupMigration)migration).migrate(con);
+				Migrator.record(con, migration);
+				con.commit();
+				LOG.log(Level.INFO, "Applied migration {0}", migration);
+			} catch (SQLException ex) {
+				throw new RuntimeException(ex);
+			} finally {
+				try {
+					con.close();
+				} catch (SQLException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run all pending background migrations to the end, one step at a time. Returns early if the thread is
+	 * interrupted, and the migrations then continue from where they were on the next run.
+	 *
+	 * @return True if all background migrations are done
+	 */
+	public boolean runBackground()
+	{
+		for (Migration migration : this.pending()) {
+			if (!(migration instanceof BackgroundMigration)) {
+				continue;
+			}
+			while (!((BackgroundMigration)migration).step()) {
+				if (Thread.currentThread().isInterrupted()) {
+					return false;
+				}
+			}
+			Connection con = DatabaseHelper.instance().getWriteConnection();
+			try {
+				Migrator.record(con, migration);
+				LOG.log(Level.INFO, "Applied migration {0}", migration);
+			} catch (SQLException ex) {
+				throw new RuntimeException(ex);
+			} finally {
+				try {
+					con.close();
+				} catch (SQLException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Start a daemon thread which runs the pending background migrations. Failures are logged, and the migrations are
+	 * tried again on the next start.
+	 *
+	 * @return Started thread
+	 */
+	public Thread startBackground()
+	{
+		Thread thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try {
+					Migrator.this.runBackground();
+				} catch (RuntimeException ex) {
+					LOG.log(Level.WARNING, "Background migration failed", ex);
+				}
+			}
+		}, "Schema migrations");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Record all migrations as applied without running them, for a database which is created with the latest schema.
+	 *
+	 * @param con Write connection
+	 * @throws SQLException
+	 */
+	public void baseline(Connection con) throws SQLException
+	{
+		Migrator.createTable(con);
+		for (Migration migration : this.migrations) {
+			Migrator.record(con, migration);
+		}
+	}
+
+	/**
+	 * Private helper method for creating the table of applied versions if it does not exist.
+	 *
+	 * @param con Write connection
+	 * @throws SQLException
+	 */
+	private static void createTable(Connection con) throws SQLException
+	{
+		Statement stmnt = con.createStatement();
+		stmnt.execute("CREATE TABLE IF NOT EXISTS schema_migrations (version INTEGER PRIMARY KEY, "
+				+ "description VARCHAR(128), applied_at INTEGER)");
+		stmnt.close();
+	}
+
+	/**
+	 * Private helper method for recording a migration as applied.
+	 *
+	 * @param con Write connection
+	 * @param migration Applied migration
+	 * @throws SQLException
+	 */
+	private static void record(Connection con, Migration migration) throws SQLException
+	{
+		Migrator.createTable(con);
+		PreparedStatement insert = con.prepareStatement("INSERT OR IGNORE INTO schema_migrations (version, "
+				+ "description, applied_at) VALUES (?, ?, ?)");
+		insert.setInt(1, migration.version());
+		insert.setString(2, migration.description());
+		insert.setLong(3, System.currentTimeMillis());
+		insert.executeUpdate();
+		insert.close();
+	}
+}
@@ -1,21 +1,33 @@
 package adstimator;
 
+import adstimator.data.AdDatabaseStorage;
 import adstimator.data.DatabaseHelper;
+import adstimator.data.KnowledgeBase;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 
 /**
  * Setup is run to check if the application is started for the first time. If so, it needs to initialize the database so
  * that everything will function correctly.
+ * 
+ * Databases created by earlier versions are brought up to date by the migrations, which are listed here and run by
+ * the Migrator on every start.
  *
  * @author erikbrannstrom
  */
 public class Setup
 {
+	/**
+	 * Number of rows added to a rollup table in each step when rollups are built in the background.
+	 */
+	public static final int ROLLUP_CHUNK_ROWS = 50000;
 
 	/**
 	 * Returns whether or not the application is properly set up. It does so by getting a database connection and 
@@ -27,11 +39,15 @@ public class Setup
 	{
 		try {
 			Connection con = DatabaseHelper.instance().getConnection();
-			DatabaseMetaData meta = con.getMetaData();
-			ResultSet rs = meta.getTables(null, null, "knowledge_bases", null);
-			boolean first = !rs.next();
-			con.close();
-			return first;
+			try {
+				DatabaseMetaData meta = con.getMetaData();
+				ResultSet rs = meta.getTables(null, null, "knowledge_bases", null);
+				boolean first = !rs.next();
+				rs.close();
+				return first;
+			} finally {
+				con.close();
+			}
 		} catch (SQLException ex) {
 			throw new RuntimeException(ex);
 		}
@@ -43,33 +59,160 @@ public class Setup
 	public static void init()
 	{
 		try {
-			Connection con = DatabaseHelper.instance().getConnection();
-			Statement stmnt = con.createStatement();
+			Connection con = DatabaseHelper.instance().getWriteConnection();
+			try {
+				Statement stmnt = con.createStatement();
 			
-			// Create tables for KBs and config items
-			String kbTable = "CREATE TABLE knowledge_bases (id INTEGER PRIMARY KEY AUTOINCREMENT, name VARCHAR(128))";
-			String configTable = "CREATE TABLE config_items (key VARCHAR(32) PRIMARY KEY, value VARCHAR(128))";
-			stmnt.execute(kbTable);
-			stmnt.execute(configTable);
+				// Create tables for KBs and config items
+				String kbTable = "CREATE TABLE knowledge_bases (id INTEGER PRIMARY KEY AUTOINCREMENT, "
+						+ "name VARCHAR(128), storage VARCHAR(16) NOT NULL DEFAULT 'database', "
+						+ "data_version INTEGER NOT NULL DEFAULT 0)";
+				String configTable = "CREATE TABLE config_items (key VARCHAR(32) PRIMARY KEY, value VARCHAR(128))";
+				stmnt.execute(kbTable);
+				stmnt.execute(configTable);
 			
-			// Insert default KB
-			PreparedStatement kbPreparedStatement = con.prepareStatement("INSERT INTO knowledge_bases VALUES (null, ?)");
-			kbPreparedStatement.setString(1, "Default");
-			kbPreparedStatement.execute();
-			int rowId = kbPreparedStatement.getGeneratedKeys().getInt(1);
+				// Insert default KB
+				PreparedStatement kbPreparedStatement = con.prepareStatement(
+						"INSERT INTO knowledge_bases (name) VALUES (?)");
+				kbPreparedStatement.setString(1, "Default");
+				kbPreparedStatement.execute();
+				int rowId = kbPreparedStatement.getGeneratedKeys().getInt(1);
 			
-			// Set default knowledge base in config
-			PreparedStatement configPreparedStatement = con.prepareStatement("INSERT INTO config_items VALUES (?, ?)");
-			configPreparedStatement.setString(1, "knowledge_base");
-			configPreparedStatement.setInt(2, rowId);
-			configPreparedStatement.execute();
+				// Set default knowledge base in config
+				PreparedStatement configPreparedStatement = con.prepareStatement(
+						"INSERT INTO config_items VALUES (?, ?)");
+				configPreparedStatement.setString(1, "knowledge_base");
+				configPreparedStatement.setInt(2, rowId);
+				configPreparedStatement.execute();
 			
-			// Close connection
-			stmnt.close();
-			con.close();
+				// The tables above have the latest schema, so there is nothing to migrate
+				new Migrator(Setup.migrations()).baseline(con);
+			
+				stmnt.close();
+			} finally {
+				con.close();
+			}
 		} catch (SQLException ex) {
 			throw new RuntimeException(ex);
 		}
 	}
 	
+	/**
+	 * Bring a database created by an earlier version up to date. Startup migrations are run before this method
+	 * returns, while background migrations, such as building indexes and rollups for existing knowledge bases, are
+	 * left running on a thread of their own. Safe to run on every start.
+	 */
+	public static void upgrade()
+	{
+		Migrator migrator = new Migrator(Setup.migrations());
+		migrator.migrate();
+		migrator.startBackground();
+	}
+
+	/**
+	 * Get all migrations. A new migration gets the next version number, and is added here when the schema changes.
+	 * Setup.init() creates the latest schema directly and records all of them as applied.
+	 *
+	 * @return Migrations in order of version
+	 */
+	public static List<Migration> migrations()
+	{
+		List<Migration> migrations = new ArrayList<Migration>();
+		
+		migrations.add(new StartupMigration(1, "Add storage backend to knowledge bases")
+		{
+			@Override
+			public void migrate(Connection con) throws SQLException
+			{
+				Statement stmnt = con.createStatement();
+				ResultSet rs = stmnt.executeQuery("PRAGMA table_info(knowledge_bases)");
+				boolean hasStorage = false;
+				while (rs.next()) {
+					hasStorage = hasStorage || rs.getString("name").equalsIgnoreCase("storage");
+				}
+				rs.close();
+				if (!hasStorage) {
+					stmnt.execute("ALTER TABLE knowledge_bases ADD COLUMN storage VARCHAR(16) NOT NULL DEFAULT 'database'");
+				}
+				stmnt.close();
+			}
+		});
+		
+		// One knowledge base per step, since an index is created in a single statement
+		migrations.add(new BackgroundMigration(2, "Create secondary indexes on knowledge bases")
+		{
+			private List<KnowledgeBase> kbs;
+			
+			@Override
+			public boolean step()
+			{
+				if (this.kbs == null) {
+					this.kbs = Setup.databaseKBs();
+				}
+				if (this.kbs.isEmpty()) {
+					return true;
+				}
+				new AdDatabaseStorage(this.kbs.remove(0).table()).createIndexes();
+				return this.kbs.isEmpty();
+			}
+		});
+		
+		migrations.add(new BackgroundMigration(3, "Build rollup tables for knowledge bases")
+		{
+			private List<KnowledgeBase> kbs;
+			
+			@Override
+			public boolean step()
+			{
+				if (this.kbs == null) {
+					this.kbs = Setup.databaseKBs();
+				}
+				if (this.kbs.isEmpty()) {
+					return true;
+				}
+				if (new AdDatabaseStorage(this.kbs.get(0).table()).buildRollups(ROLLUP_CHUNK_ROWS)) {
+					this.kbs.remove(0);
+				}
+				return this.kbs.isEmpty();
+			}
+		});
+		
+		migrations.add(new StartupMigration(4, "Persist data versions of knowledge bases")
+		{
+			@Override
+			public void migrate(Connection con) throws SQLException
+			{
+				Statement stmnt = con.createStatement();
+				ResultSet rs = stmnt.executeQuery("PRAGMA table_info(knowledge_bases)");
+				boolean hasVersion = false;
+				while (rs.next()) {
+					hasVersion = hasVersion || rs.getString("name").equalsIgnoreCase("data_version");
+				}
+				rs.close();
+				if (!hasVersion) {
+					stmnt.execute("ALTER TABLE knowledge_bases ADD COLUMN data_version INTEGER NOT NULL DEFAULT 0");
+				}
+				stmnt.close();
+			}
+		});
+		
+		return migrations;
+	}
+
+	/**
+	 * Private helper method for getting the knowledge bases which are stored in the database.
+	 *
+	 * @return Knowledge bases
+	 */
+	private static List<KnowledgeBase> databaseKBs()
+	{
+		List<KnowledgeBase> kbs = new LinkedList<KnowledgeBase>();
+		for (KnowledgeBase kb : KnowledgeBase.getAll()) {
+			if (kb.storage().equals(KnowledgeBase.DATABASE)) {
+				kbs.add(kb);
+			}
+		}
+		return kbs;
+	}
+	
 }
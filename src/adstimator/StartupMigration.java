@@ -0,0 +1,31 @@
+package adstimator;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A migration which is run at startup, in a transaction of its own which also records it as applied.
+ *
+ * @author erikbrannstrom
+ */
+public abstract class StartupMigration extends Migration
+{
+	/**
+	 * Create a startup migration.
+	 *
+	 * @param version Version number, which decides the order migrations are run in
+	 * @param description Short description of the change
+	 */
+	public StartupMigration(int version, String description)
+	{
+		super(version, description);
+	}
+
+	/**
+	 * Apply the migration. The connection is in a transaction, which is committed together with the version.
+	 *
+	 * @param con Write connection
+	 * @throws SQLException
+	 */
+	public abstract void migrate(Connection con) throws SQLException;
+}
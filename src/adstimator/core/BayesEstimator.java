@@ -0,0 +1,323 @@
+package adstimator.core;
+
+import adstimator.data.Ads;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import weka.core.*;
+
+/**
+ * Empirical Bayes estimator which computes click rates directly from the clicks and impressions in the training data,
+ * without a Weka classifier.
+ *
+ * Clicks and impressions are summed per body, per image, per combination of body and image, and per combination of
+ * body, image and target if the training data has target attributes. The estimate for an ad backs off from the most
+ * specific of these to the least: the rate of each level is shrunk towards the rate of the level above it, following
+ * a Beta-Binomial model where the level above gives the prior mean. The prior of a body and image combination is the
+ * mean of the body rate and the image rate, which are in turn shrunk towards the global rate. Ads with values that
+ * were never seen therefore get the rate of the most specific level that was.
+ *
+ * The strength of the prior, in impressions, is estimated from the spread of the click rates of the body and image
+ * combinations by the method of moments, unless it is given with the -M option.
+ *
+ * Training is a single pass over the data into primitive arrays, an estimate is a handful of hash lookups, and new ads
+ * are learned by adding them to the sums.
+ *
+ * @author erikbrannstrom
+ */
+public class BayesEstimator extends Estimator
+{
+	/**
+	 * Smallest and largest estimated prior strength, in impressions.
+	 */
+	public static final double MIN_STRENGTH = 1, MAX_STRENGTH = 1e6;
+
+	private static final long serialVersionUID = 1L;
+	// Separates the values in the keys of combinations, and stands in for missing values
+	private static final String SEPARATOR = "\u0000", MISSING = "\u0001";
+	private Counts bodies, images, pairs, targeted;
+	private List<String> targetAttributes;
+	private long clicks, impressions;
+	private double fixedStrength = -1, strength;
+
+	/**
+	 * Create a new estimator. Most often used indirectly by calling the static factory on Estimator.
+	 *
+	 * @param knowledge training data with Body, Image Hash, Clicks Count and Impressions attributes
+	 * @param options -M followed by the prior strength in impressions, to not estimate it. Can be null.
+	 */
+	public BayesEstimator(Instances knowledge, String[] options)
+	{
+		super(knowledge);
+		try {
+			String strength = Utils.getOption('M', options == null ? new String[0] : options.clone());
+			if (strength.length() > 0) {
+				this.fixedStrength = Double.parseDouble(strength);
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		this.strength = this.strength();
+	}
+
+	/**
+	 * Sums the clicks and impressions of the training data. Only the header of the data is kept.
+	 */
+	@Override
+	protected void knowledge(Instances knowledge)
+	{
+		this.bodies = new Counts();
+		this.images = new Counts();
+		this.pairs = new Counts();
+		this.targeted = new Counts();
+		this.targetAttributes = new ArrayList<String>();
+		for (String name : Ads.TARGETS) {
+			if (knowledge.attribute(name) != null) {
+				this.targetAttributes.add(name);
+			}
+		}
+		this.add(knowledge);
+		this.knowledge = new Instances(knowledge, 0);
+	}
+
+	/**
+	 * Estimate the click rate of an ad, backing off to less specific levels for values which have not been seen.
+	 *
+	 * @param instance ad to be estimated, with Body and Image Hash attributes
+	 * @return probability of click
+	 */
+	@Override
+	public double estimate(Instance instance)
+	{
+		double global = this.impressions > 0 ? (double)this.clicks / this.impressions : 0;
+		String body = BayesEstimator.value(instance, "Body");
+		String image = BayesEstimator.value(instance, "Image Hash");
+
+		int bodyIndex = this.bodies.find(body);
+		int imageIndex = this.images.find(image);
+		double parent;
+		if (bodyIndex >= 0 && imageIndex >= 0) {
+			parent = (this.bodies.rate(bodyIndex, global, this.strength)
+					+ this.images.rate(imageIndex, global, this.strength)) / 2;
+		} else if (bodyIndex >= 0) {
+			parent = this.bodies.rate(bodyIndex, global, this.strength);
+		} else if (imageIndex >= 0) {
+			parent = this.images.rate(imageIndex, global, this.strength);
+		} else {
+			return global;
+		}
+
+		String pair = body + SEPARATOR + image;
+		int pairIndex = this.pairs.find(pair);
+		if (pairIndex < 0) {
+			return parent;
+		}
+		double rate = this.pairs.rate(pairIndex, parent, this.strength);
+
+		String target = this.target(instance);
+		int targetIndex = target == null ? -1 : this.targeted.find(pair + SEPARATOR + target);
+		return targetIndex < 0 ? rate : this.targeted.rate(targetIndex, rate, this.strength);
+	}
+
+	/**
+	 * Learn new ads by adding them to the sums. The prior strength is estimated again, unless it is fixed.
+	 *
+	 * @param delta New ads
+	 * @return Always true
+	 */
+	@Override
+	protected boolean learn(Ads delta)
+	{
+		this.add(delta);
+		this.strength = this.strength();
+		return true;
+	}
+
+	/**
+	 * Estimates only read the sums, so the same object can be used by all threads.
+	 *
+	 * @return This estimator
+	 */
+	@Override
+	protected Estimator copy()
+	{
+		return this;
+	}
+
+	/**
+	 * Private helper method for adding the clicks and impressions of ads to the sums.
+	 *
+	 * @param ads Ads with Body, Image Hash, Clicks Count and Impressions attributes
+	 */
+	private void add(Instances ads)
+	{
+		Attribute actions = ads.attribute("Clicks Count");
+		Attribute shown = ads.attribute("Impressions");
+		if (actions == null || shown == null || ads.attribute("Body") == null || ads.attribute("Image Hash") == null) {
+			throw new RuntimeException("The required attributes could not be found in data set.");
+		}
+
+		for (Instance ad : ads) {
+			long c = ad.isMissing(actions) ? 0 : (long)ad.value(actions);
+			long i = ad.isMissing(shown) ? 0 : (long)ad.value(shown);
+			String body = BayesEstimator.value(ad, "Body");
+			String image = BayesEstimator.value(ad, "Image Hash");
+			String pair = body + SEPARATOR + image;
+			this.clicks += c;
+			this.impressions += i;
+			this.bodies.add(body, c, i);
+			this.images.add(image, c, i);
+			this.pairs.add(pair, c, i);
+			String target = this.target(ad);
+			if (target != null) {
+				this.targeted.add(pair + SEPARATOR + target, c, i);
+			}
+		}
+	}
+
+	/**
+	 * Private helper method for getting the prior strength, either the fixed one or one estimated from the spread of
+	 * the click rates of body and image combinations.
+	 *
+	 * The rates are weighted by impressions. The part of their variance which is expected from the binomial noise
+	 * alone is subtracted, and what is left is taken as the variance of a Beta prior with the global rate as mean.
+	 *
+	 * @return Prior strength in impressions
+	 */
+	private double strength()
+	{
+		if (this.fixedStrength >= 0) {
+			return this.fixedStrength;
+		}
+		if (this.impressions == 0 || this.pairs.size() < 2) {
+			return MIN_STRENGTH;
+		}
+		double mean = (double)this.clicks / this.impressions;
+		double spread = mean * (1 - mean);
+		double variance = 0;
+		int used = 0;
+		for (int i = 0; i < this.pairs.size(); i++) {
+			long shown = this.pairs.impressions[i];
+			if (shown > 0) {
+				double rate = (double)this.pairs.clicks[i] / shown;
+				variance += shown * (rate - mean) * (rate - mean);
+				used++;
+			}
+		}
+		variance = variance / this.impressions - used * spread / this.impressions;
+		if (!(variance > 0) || spread == 0) {
+			return MAX_STRENGTH;
+		}
+		return Math.max(MIN_STRENGTH, Math.min(MAX_STRENGTH, spread / variance - 1));
+	}
+
+	/**
+	 * Private helper method for getting the target of an ad as a single key.
+	 *
+	 * @param ad Ad
+	 * @return Values of the target attributes, null if the training data or the ad has none
+	 */
+	private String target(Instance ad)
+	{
+		if (this.targetAttributes.isEmpty()) {
+			return null;
+		}
+		StringBuilder key = new StringBuilder();
+		for (String name : this.targetAttributes) {
+			if (ad.dataset().attribute(name) == null) {
+				return null;
+			}
+			key.append(BayesEstimator.value(ad, name)).append(SEPARATOR);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Private helper method for getting a value of an ad as a string.
+	 *
+	 * @param ad Ad
+	 * @param name Name of attribute
+	 * @return String value, or the number for numeric attributes
+	 */
+	private static String value(Instance ad, String name)
+	{
+		Attribute attribute = ad.dataset().attribute(name);
+		if (attribute == null || ad.isMissing(attribute)) {
+			return MISSING;
+		}
+		return attribute.isNumeric() ? Double.toString(ad.value(attribute)) : ad.stringValue(attribute);
+	}
+
+	/**
+	 * Clicks and impressions per key, in arrays indexed by the order in which the keys were first seen.
+	 */
+	private static class Counts implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+		private final Map<String, Integer> index = new HashMap<String, Integer>();
+		private long[] clicks = new long[16];
+		private long[] impressions = new long[16];
+
+		/**
+		 * Add clicks and impressions to a key.
+		 *
+		 * @param key Key
+		 * @param c Clicks
+		 * @param i Impressions
+		 */
+		void add(String key, long c, long i)
+		{
+			Integer idx = this.index.get(key);
+			if (idx == null) {
+				idx = this.index.size();
+				this.index.put(key, idx);
+				if (idx == this.clicks.length) {
+					long[] clicks = new long[2 * idx];
+					long[] impressions = new long[2 * idx];
+					System.arraycopy(this.clicks, 0, clicks, 0, idx);
+					System.arraycopy(this.impressions, 0, impressions, 0, idx);
+					this.clicks = clicks;
+					this.impressions = impressions;
+				}
+			}
+			this.clicks[idx] += c;
+			this.impressions[idx] += i;
+		}
+
+		/**
+		 * Find the index of a key.
+		 *
+		 * @param key Key
+		 * @return Index, -1 if the key has not been seen
+		 */
+		int find(String key)
+		{
+			Integer idx = this.index.get(key);
+			return idx == null ? -1 : idx;
+		}
+
+		/**
+		 * Get the posterior mean click rate of a key.
+		 *
+		 * @param idx Index of key
+		 * @param prior Prior mean click rate
+		 * @param strength Prior strength in impressions
+		 * @return Click rate
+		 */
+		double rate(int idx, double prior, double strength)
+		{
+			double shown = this.impressions[idx] + strength;
+			return shown > 0 ? (this.clicks[idx] + strength * prior) / shown : prior;
+		}
+
+		/**
+		 * @return Number of keys
+		 */
+		int size()
+		{
+			return this.index.size();
+		}
+	}
+}
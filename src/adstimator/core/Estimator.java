@@ -1,5 +1,15 @@
 package adstimator.core;
 
+import adstimator.data.Ads;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import weka.classifiers.AbstractClassifier;
 import weka.core.*;
 
@@ -9,11 +19,30 @@ import weka.core.*;
  * The static factory will most often be used to initialize classifiers in order to not have to know beforehand
  * whether a classifier is numeric or nominal.
  * 
+ * Estimators are serializable, together with their trained classifier, so that they can be cached on disk.
+ * 
+ * Weka classifiers are not thread-safe, so a single estimator must not be used from several threads at once. To score
+ * many ads, use estimateAll, which splits the ads between the threads of a shared pool and gives each thread its own
+ * copy of the estimator. The copies are kept and reused by later calls.
+ * 
+ * Estimators whose classifier can learn incrementally can also absorb newly imported ads through update(), at a cost
+ * proportional to the new ads rather than to all ads the estimator was trained on.
+ * 
  * @author erikbrannstrom
  */
-public abstract class Estimator
+public abstract class Estimator implements Serializable, Cloneable
 {
+	/**
+	 * Smallest number of ads given to each thread by estimateAll. Smaller sets are estimated on fewer threads.
+	 */
+	public static final int MIN_CHUNK_SIZE = 256;
+
+	private static final long serialVersionUID = 1L;
+	private static ExecutorService pool;
 	protected Instances knowledge;
+	private transient List<Estimator> workers;
+	// Last data set of estimated ads found to have the same header as the training data
+	private transient Instances aligned;
 
 	/**
 	 * Constructor for abstract estimator class.
@@ -29,15 +58,19 @@ public abstract class Estimator
 	 * Factory for easily creating the numeric and nominal implementations of this abstract class.
 	 * 
 	 * The method automatically checks the capabilities of the classifier to see if it expects numeric or nominal data.
-	 * It is then initialized with the knowledge and options given as parameters.
+	 * It is then initialized with the knowledge and options given as parameters. The class name of BayesEstimator
+	 * gives that estimator instead of one based on a Weka classifier.
 	 * 
 	 * @param knowledge training data
-	 * @param className full weka class name (e.g. weka.classifiers.lazy.IBk)
+	 * @param className full weka class name (e.g. weka.classifiers.lazy.IBk), or adstimator.core.BayesEstimator
 	 * @param options options for the classifier, as given to its main method. Can be null.
 	 * @return 
 	 */
 	public static Estimator factory(Instances knowledge, String className, String[] options)
 	{
+		if (className.equals(BayesEstimator.class.getName())) {
+			return new BayesEstimator(knowledge, options);
+		}
 		try {
 			AbstractClassifier classifier = (AbstractClassifier)AbstractClassifier.forName(className, options);
 			if (classifier.getCapabilities().handles(Capabilities.Capability.NUMERIC_CLASS)) {
@@ -67,5 +100,261 @@ public abstract class Estimator
 	 * @return Estimated probability of click
 	 */
 	public abstract double estimate(Instance instance);
+	
+	/**
+	 * Estimate all instances, using all available processors.
+	 * 
+	 * @param instances Ads to be estimated
+	 * @return Estimated probability of click for each instance, in order
+	 */
+	public double[] estimates(Instances instances)
+	{
+		return this.estimates(instances, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Estimate all instances, splitting them into contiguous chunks which are estimated in parallel. Each chunk has
+	 * at least MIN_CHUNK_SIZE instances, so small sets are estimated on the calling thread.
+	 * 
+	 * @param instances Ads to be estimated
+	 * @param threads Maximum number of threads to use
+	 * @return Estimated probability of click for each instance, in order
+	 */
+	public synchronized double[] estimates(final Instances instances, int threads)
+	{
+		final double[] estimates = new double[instances.numInstances()];
+		int chunks = Math.max(1, Math.min(threads, estimates.length / MIN_CHUNK_SIZE));
+		if (chunks == 1) {
+			this.estimate(instances, estimates, 0, estimates.length);
+			return estimates;
+		}
+		
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(chunks);
+		for (int i = 0; i < chunks; i++) {
+			final Estimator worker = this.worker(i);
+			final int from = (int)((long)estimates.length * i / chunks);
+			final int to = (int)((long)estimates.length * (i + 1) / chunks);
+			futures.add(Estimator.pool().submit(new Callable<Void>()
+			{
+				@Override
+				public Void call()
+				{
+					worker.estimate(instances, estimates, from, to);
+					return null;
+				}
+			}));
+		}
+		try {
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			for (Future<Void> future : futures) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return estimates;
+	}
+
+	/**
+	 * Estimate all instances and store the estimates as their class values. The class index of the instances must be
+	 * set.
+	 * 
+	 * @param instances Ads to be estimated
+	 */
+	public void estimateAll(Instances instances)
+	{
+		double[] estimates = this.estimates(instances);
+		for (int i = 0; i < estimates.length; i++) {
+			instances.instance(i).setClassValue(estimates[i]);
+		}
+	}
+
+	/**
+	 * Train the estimator further on new ads, without training on the earlier ads again. The ads must have the same
+	 * attributes as the training data given to the factory.
+	 * 
+	 * @param delta New ads
+	 * @return True if the ads were learned, false if the estimator cannot learn incrementally or the ads have values
+	 *         which it has not seen, in which case it is unchanged and has to be trained again instead
+	 */
+	public synchronized boolean update(Ads delta)
+	{
+		if (!this.learn(delta)) {
+			return false;
+		}
+		// The copies of the workers have not learned the new ads
+		this.workers = null;
+		return true;
+	}
+
+	/**
+	 * Learn new ads, as described for update(). The default implementation cannot learn incrementally. Implementations
+	 * must check that all ads can be learned before learning any of them.
+	 * 
+	 * @param delta New ads
+	 * @return True if the ads were learned
+	 */
+	protected boolean learn(Ads delta)
+	{
+		return false;
+	}
+
+	/**
+	 * Map the values of an ad to the attributes of the training data, by attribute name. Nominal values are looked up
+	 * by their string value. The class value, and values of attributes which the ad does not have, are missing.
+	 * 
+	 * @param ad Ad
+	 * @return Values in the order of the training data attributes, null if the ad has a nominal value which is not in
+	 *         the training data
+	 */
+	protected double[] convert(Instance ad)
+	{
+		return this.convert(ad, false);
+	}
+
+	/**
+	 * Map an ad to the attributes of the training data, so that it can be passed to the classifier. Ads are created
+	 * from query results which may list the nominal values in a different order than the training data did, so their
+	 * value indices cannot be used as they are. Nominal values which are not in the training data are missing.
+	 * 
+	 * Ads whose data set has the same header as the training data are returned as they are.
+	 * 
+	 * @param ad Ad
+	 * @return Ad with the header of the training data
+	 */
+	protected Instance align(Instance ad)
+	{
+		Instances dataset = ad.dataset();
+		if (dataset == this.aligned) {
+			return ad;
+		}
+		if (dataset != null && dataset.classIndex() == this.knowledge.classIndex()
+				&& this.knowledge.equalHeaders(dataset)) {
+			this.aligned = dataset;
+			return ad;
+		}
+		Instance converted = new DenseInstance(ad.weight(), this.convert(ad, true));
+		converted.setDataset(this.knowledge);
+		return converted;
+	}
+
+	/**
+	 * Private helper method for mapping the values of an ad to the attributes of the training data, as described for
+	 * convert(ad).
+	 * 
+	 * @param ad Ad
+	 * @param unseenMissing True if nominal values which are not in the training data are missing, false to give up
+	 * @return Values in the order of the training data attributes, null if the ad has an unseen nominal value and
+	 *         unseenMissing is false
+	 */
+	private double[] convert(Instance ad, boolean unseenMissing)
+	{
+		double[] values = new double[this.knowledge.numAttributes()];
+		for (int i = 0; i < values.length; i++) {
+			Attribute attribute = this.knowledge.attribute(i);
+			Attribute source = ad.dataset().attribute(attribute.name());
+			if (i == this.knowledge.classIndex() || source == null || ad.isMissing(source)) {
+				values[i] = Utils.missingValue();
+			} else if (attribute.isNominal()) {
+				int index = attribute.indexOfValue(ad.stringValue(source));
+				if (index < 0 && !unseenMissing) {
+					return null;
+				}
+				values[i] = index < 0 ? Utils.missingValue() : index;
+			} else {
+				values[i] = ad.value(source);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Create an estimator which gives the same estimates as this one, without sharing any state which changes during
+	 * estimation, so that the two can be used from different threads. The default implementation copies the whole
+	 * estimator through serialization; subclasses should override it to only copy the classifier.
+	 * 
+	 * @return Independent copy
+	 */
+	protected Estimator copy()
+	{
+		try {
+			return (Estimator)new SerializedObject(this).getObject();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Shallow copy, without the worker copies of this estimator.
+	 */
+	@Override
+	protected Object clone() throws CloneNotSupportedException
+	{
+		Estimator copy = (Estimator)super.clone();
+		copy.workers = null;
+		return copy;
+	}
+
+	/**
+	 * Private helper method for estimating a range of instances.
+	 * 
+	 * @param instances Ads to be estimated
+	 * @param estimates Array for the estimates
+	 * @param from First index, inclusive
+	 * @param to Last index, exclusive
+	 */
+	private void estimate(Instances instances, double[] estimates, int from, int to)
+	{
+		for (int i = from; i < to; i++) {
+			estimates[i] = this.estimate(instances.instance(i));
+		}
+	}
+
+	/**
+	 * Private helper method for getting the copy used by a worker thread, creating it the first time.
+	 * 
+	 * @param index Index of worker
+	 * @return Copy of this estimator
+	 */
+	private Estimator worker(int index)
+	{
+		if (this.workers == null) {
+			this.workers = new ArrayList<Estimator>();
+		}
+		while (this.workers.size() <= index) {
+			this.workers.add(this.copy());
+		}
+		return this.workers.get(index);
+	}
+
+	/**
+	 * Private helper method for getting the pool shared by all estimators. The threads are daemons, so they do not
+	 * keep the application running.
+	 * 
+	 * @return Executor
+	 */
+	private static synchronized ExecutorService pool()
+	{
+		if (Estimator.pool == null) {
+			Estimator.pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+			{
+				private int count = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "Estimator " + (++this.count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return Estimator.pool;
+	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,485 @@
+package adstimator.core;
+
+import adstimator.data.Ads;
+import adstimator.data.CacheKey;
+import adstimator.data.DatabaseHelper;
+import adstimator.data.KnowledgeBase;
+import adstimator.data.KnowledgeBaseSnapshot;
+import adstimator.data.LruMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of trained estimators, so that showing suggestions for the same target again neither reads the ads nor
+ * trains the classifier.
+ *
+ * Entries are keyed by knowledge base ID, the data version of the knowledge base, the target, the classifier class and
+ * its options. The least recently used estimators are kept in memory, and every estimator is also written to a file of
+ * its own in a directory, so that it can be read back after a restart instead of being trained again. Since the data
+ * version is part of the key, estimators trained before a knowledge base was modified are never returned, and their
+ * files are removed when an estimator for the new version is written.
+ *
+ * The cache can also listen for ads added to knowledge bases. Estimators in memory which can learn incrementally are
+ * then trained on the new ads that match their target and stored at the new version, so that an import does not make
+ * the next estimate train on all ads again. The estimators of a deleted knowledge base are removed along with their
+ * files. The shared cache is registered as a listener when it is created.
+ *
+ * Files are written by a background thread shared by all caches, so neither training nor an import waits for an
+ * estimator to be serialized. Estimators which have not been written yet are kept until they are, even if they are
+ * evicted from memory, and flush() writes them at once. The disk tier is best effort: a file which cannot be written
+ * or read is logged, estimators still waiting when the application exits are not written, and in both cases the
+ * estimator is trained as if it was not cached.
+ *
+ * @author erikbrannstrom
+ */
+public class EstimatorCache implements KnowledgeBase.AdsListener
+{
+	/**
+	 * Default maximum number of estimators kept in memory.
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 8;
+
+	private static final Logger LOG = Logger.getLogger(EstimatorCache.class.getName());
+	private static EstimatorCache instance;
+	private static ExecutorService writer;
+	private final LruMap<CacheKey, Estimator> entries;
+	// Estimators waiting to be written, in the order they were stored
+	private final LinkedHashMap<CacheKey, Estimator> pending = new LinkedHashMap<CacheKey, Estimator>();
+	// Held while files are written or removed, so that invalidating a knowledge base waits for a write in progress
+	private final Object disk = new Object();
+	private final File directory;
+	private boolean scheduled;
+	private long hits, diskHits, misses;
+
+	/**
+	 * Create a new cache with the given maximum number of entries in memory.
+	 *
+	 * @param maxEntries Maximum number of estimators in memory
+	 * @param directory Directory for the disk tier, null to only cache in memory
+	 */
+	public EstimatorCache(int maxEntries, File directory)
+	{
+		this.directory = directory;
+		this.entries = new LruMap<CacheKey, Estimator>(maxEntries);
+	}
+
+	/**
+	 * Get the cache shared by the application, which keeps its files in a models directory next to the database.
+	 *
+	 * @return Singleton
+	 */
+	public static synchronized EstimatorCache instance()
+	{
+		if (instance == null) {
+			instance = new EstimatorCache(DEFAULT_MAX_ENTRIES,
+					new File(DatabaseHelper.instance().getDataDirectory(), "models"));
+			KnowledgeBase.addListener(instance);
+		}
+		return instance;
+	}
+
+	/**
+	 * Get an estimator trained on the ads of a target, from memory or disk if possible. Otherwise the ads are read from
+	 * the knowledge base, and the estimator is created with Estimator.factory and stored.
+	 *
+	 * The same estimator object is returned to every caller which asks for the same key, so callers must not modify
+	 * it.
+	 *
+	 * @param kb Knowledge base
+	 * @param target Target, null for all targets
+	 * @param className full weka class name (e.g. weka.classifiers.lazy.IBk)
+	 * @param options options for the classifier, as given to its main method. Can be null.
+	 * @return Trained estimator, null if there are no ads for the target
+	 */
+	public Estimator get(KnowledgeBase kb, Map<String, String> target, String className, String[] options)
+	{
+		CacheKey key = new CacheKey(kb.id(), kb.version(), target, className, options);
+		Estimator estimator = this.lookup(key);
+		if (estimator != null) {
+			return estimator;
+		}
+		Ads training = kb.getAds(target);
+		if (training == null) {
+			return null;
+		}
+		estimator = Estimator.factory(training, className, options);
+		this.store(key, estimator);
+		return estimator;
+	}
+
+	/**
+	 * Update the estimators in memory which were trained at the previous version of the knowledge base with the added
+	 * ads, and store them at the new version. Estimators which cannot learn the ads are removed, and are trained again
+	 * when next asked for. Only the added ads are read here; the updated estimators are written to disk in the
+	 * background, which also removes the files of the previous version.
+	 *
+	 * @param kb Knowledge base
+	 * @param previousVersion Data version before the ads were added
+	 * @param version Data version after the ads were added
+	 * @param ads Added ads
+	 */
+	@Override
+	public synchronized void added(KnowledgeBase kb, long previousVersion, long version, Ads ads)
+	{
+		List<CacheKey> stale = new ArrayList<CacheKey>();
+		for (CacheKey key : this.entries.keySet()) {
+			if (key.kb() == kb.id() && key.version() == previousVersion) {
+				stale.add(key);
+			}
+		}
+		if (stale.isEmpty()) {
+			return;
+		}
+
+		// The snapshot filters the ads by target in the same way as queries on the knowledge base
+		KnowledgeBaseSnapshot snapshot;
+		try {
+			snapshot = KnowledgeBaseSnapshot.of(ads);
+		} catch (RuntimeException ex) {
+			LOG.log(Level.WARNING, "Could not update cached estimators", ex);
+			return;
+		}
+		for (CacheKey key : stale) {
+			Estimator estimator = this.entries.remove(key);
+			this.pending.remove(key);
+			Ads delta = snapshot.getAds(key.target());
+			try {
+				if (delta != null && !estimator.update(delta)) {
+					continue;
+				}
+			} catch (RuntimeException ex) {
+				// The ads are already stored, so a failed update only means that the estimator is trained again
+				LOG.log(Level.WARNING, "Could not update cached estimator " + key, ex);
+				continue;
+			}
+			this.store(key.at(version), estimator);
+		}
+	}
+
+	/**
+	 * Remove the estimators of a deleted knowledge base, in memory and on disk.
+	 *
+	 * @param kb Knowledge base
+	 */
+	@Override
+	public void deleted(KnowledgeBase kb)
+	{
+		this.invalidate(kb.id());
+	}
+
+	/**
+	 * Remove all estimators for a knowledge base, in memory and on disk.
+	 *
+	 * @param kb Knowledge base ID
+	 */
+	public void invalidate(int kb)
+	{
+		synchronized (this) {
+			for (Map<CacheKey, Estimator> map : Arrays.<Map<CacheKey, Estimator>>asList(this.entries, this.pending)) {
+				Iterator<CacheKey> it = map.keySet().iterator();
+				while (it.hasNext()) {
+					if (it.next().kb() == kb) {
+						it.remove();
+					}
+				}
+			}
+		}
+		synchronized (this.disk) {
+			this.deleteFiles(kb, -1);
+		}
+	}
+
+	/**
+	 * Write all estimators which are waiting to be written to disk, and wait for a write in progress to finish.
+	 */
+	public void flush()
+	{
+		synchronized (this.disk) {
+			while (true) {
+				CacheKey key;
+				Estimator estimator;
+				synchronized (this) {
+					Iterator<Map.Entry<CacheKey, Estimator>> it = this.pending.entrySet().iterator();
+					if (!it.hasNext()) {
+						return;
+					}
+					Map.Entry<CacheKey, Estimator> entry = it.next();
+					key = entry.getKey();
+					estimator = entry.getValue();
+					it.remove();
+				}
+				// Updates lock the estimator, so it does not change while it is serialized
+				synchronized (estimator) {
+					this.deleteFiles(key.kb(), key.version());
+					this.write(key, estimator);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove all estimators in memory. Files on disk are kept.
+	 */
+	public synchronized void clear()
+	{
+		this.entries.clear();
+	}
+
+	/**
+	 * Set the maximum number of entries in memory. If there are more entries than that, they are evicted as new
+	 * estimators are stored.
+	 *
+	 * @param maxEntries
+	 */
+	public synchronized void setMaxEntries(int maxEntries)
+	{
+		this.entries.setMaxEntries(maxEntries);
+	}
+
+	/**
+	 * @return Number of estimators in memory
+	 */
+	public synchronized int size()
+	{
+		return this.entries.size();
+	}
+
+	/**
+	 * @return Number of lookups which found the estimator in memory
+	 */
+	public synchronized long hits()
+	{
+		return this.hits;
+	}
+
+	/**
+	 * @return Number of lookups which read the estimator from disk
+	 */
+	public synchronized long diskHits()
+	{
+		return this.diskHits;
+	}
+
+	/**
+	 * @return Number of lookups which had to train the estimator
+	 */
+	public synchronized long misses()
+	{
+		return this.misses;
+	}
+
+	/**
+	 * Private helper method for looking up an estimator in memory and then on disk.
+	 *
+	 * @param key Key
+	 * @return Estimator, null if not cached
+	 */
+	private synchronized Estimator lookup(CacheKey key)
+	{
+		Estimator estimator = this.entries.get(key);
+		if (estimator != null) {
+			this.hits++;
+			return estimator;
+		}
+		// Evicted from memory but not written yet
+		estimator = this.pending.get(key);
+		if (estimator != null) {
+			this.hits++;
+			this.entries.put(key, estimator);
+			return estimator;
+		}
+		estimator = this.read(key);
+		if (estimator != null) {
+			this.diskHits++;
+			this.entries.put(key, estimator);
+			return estimator;
+		}
+		this.misses++;
+		return null;
+	}
+
+	/**
+	 * Private helper method for storing an estimator in memory and scheduling it to be written to disk.
+	 *
+	 * @param key Key
+	 * @param estimator Trained estimator
+	 */
+	private synchronized void store(CacheKey key, Estimator estimator)
+	{
+		this.entries.put(key, estimator);
+		if (this.directory == null) {
+			return;
+		}
+		this.pending.put(key, estimator);
+		if (!this.scheduled) {
+			this.scheduled = true;
+			EstimatorCache.writer().execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					synchronized (EstimatorCache.this) {
+						EstimatorCache.this.scheduled = false;
+					}
+					EstimatorCache.this.flush();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Private helper method for getting the background writer shared by all caches. The thread is a daemon, so it does
+	 * not keep the application running.
+	 *
+	 * @return Executor
+	 */
+	private static synchronized ExecutorService writer()
+	{
+		if (EstimatorCache.writer == null) {
+			EstimatorCache.writer = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "Estimator cache writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return EstimatorCache.writer;
+	}
+
+	/**
+	 * Private helper method for reading an estimator from disk. Files which cannot be read are removed.
+	 *
+	 * @param key Key
+	 * @return Estimator, null if there is no file for the key
+	 */
+	private Estimator read(CacheKey key)
+	{
+		if (this.directory == null) {
+			return null;
+		}
+		File file = EstimatorCache.file(this.directory, key);
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				// Different keys may hash to the same file name, so the file starts with the full key
+				if (!key.toString().equals(in.readUTF())) {
+					return null;
+				}
+				return (Estimator)in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Could not read cached estimator " + file, ex);
+		} catch (ClassNotFoundException ex) {
+			LOG.log(Level.WARNING, "Could not read cached estimator " + file, ex);
+		}
+		file.delete();
+		return null;
+	}
+
+	/**
+	 * Private helper method for writing an estimator to disk. The estimator is written to a temporary file which is
+	 * then renamed, so that a file for a key is always complete.
+	 *
+	 * @param key Key
+	 * @param estimator Estimator
+	 */
+	private void write(CacheKey key, Estimator estimator)
+	{
+		if (this.directory == null) {
+			return;
+		}
+		File file = EstimatorCache.file(this.directory, key);
+		File temp = null;
+		try {
+			if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+				throw new IOException("Could not create directory " + this.directory);
+			}
+			temp = File.createTempFile("estimator", ".tmp", this.directory);
+			ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeUTF(key.toString());
+				out.writeObject(estimator);
+			} finally {
+				out.close();
+			}
+			// Renaming onto an existing file fails on some platforms
+			if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+				throw new IOException("Could not rename " + temp + " to " + file);
+			}
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Could not cache estimator " + file, ex);
+			if (temp != null) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Private helper method for removing the files of a knowledge base.
+	 *
+	 * @param kb Knowledge base ID
+	 * @param keep Data version whose files are kept, -1 to remove all
+	 */
+	private void deleteFiles(int kb, long keep)
+	{
+		if (this.directory == null || !this.directory.isDirectory()) {
+			return;
+		}
+		final String prefix = "kb" + kb + "-";
+		final String kept = prefix + "v" + keep + "-";
+		File[] files = this.directory.listFiles(new FilenameFilter()
+		{
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return name.startsWith(prefix) && !name.startsWith(kept);
+			}
+		});
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Private helper method for getting the file of a key in a directory. The name starts with the knowledge base and
+	 * version, so that the files of old versions can be found.
+	 *
+	 * @param directory Directory
+	 * @param key Key
+	 * @return File
+	 */
+	private static File file(File directory, CacheKey key)
+	{
+		return new File(directory, String.format("kb%d-v%d-%08x.model", key.kb(), key.version(),
+				key.toString().hashCode()));
+	}
+}
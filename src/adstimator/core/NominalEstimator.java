@@ -1,5 +1,6 @@
 package adstimator.core;
 
+import adstimator.data.Ads;
 import java.util.*;
 import weka.classifiers.*;
 import weka.core.*;
@@ -7,12 +8,14 @@ import weka.core.*;
 /**
  * Nominal estimator class.
  * 
- * Used for estimating ads with a nominal classifier, such as logistic regression.
+ * Used for estimating ads with a nominal classifier, such as logistic regression. If the classifier is updateable, the
+ * estimator can learn new ads incrementally.
  * 
  * @author erikbrannstrom
  */
 public class NominalEstimator extends Estimator
 {
+	private static final long serialVersionUID = 1L;
 	private Classifier classifier;
 
 	/**
@@ -28,7 +31,11 @@ public class NominalEstimator extends Estimator
 	}
 
 	/**
-	 * Converts each instance into two separate weighted instances, one for action taken and one for action not taken.
+	 * Converts the data into two weighted instances per distinct ad, one for action taken and one for action not taken.
+	 * 
+	 * Rows with the same values for all attributes other than the metrics are grouped first, and their clicks and
+	 * impressions summed, so the size of the training set depends on the number of distinct ads rather than on the
+	 * number of rows in the reports. The instances are built directly with the final attributes.
 	 */
 	@Override
 	protected void knowledge(Instances knowledge)
@@ -46,32 +53,142 @@ public class NominalEstimator extends Estimator
 			throw new RuntimeException("The required attributes could not be found in data set.");
 		}
 
-		// Add clicked attribute
+		// The features are all attributes except the metrics, followed by the clicked attribute as class
+		int numFeatures = knowledge.numAttributes() - 2;
+		int[] features = new int[numFeatures];
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>(numFeatures + 1);
+		for (int i = 0, j = 0; i < knowledge.numAttributes(); i++) {
+			if (i != actions.index() && i != impressions.index()) {
+				features[j++] = i;
+				attributes.add((Attribute)knowledge.attribute(i).copy());
+			}
+		}
 		List<String> yesNo = new LinkedList<String>();
 		yesNo.add("yes");
 		yesNo.add("no");
-		knowledge.insertAttributeAt(new Attribute("Action", yesNo), knowledge.numAttributes());
-		Attribute action = knowledge.attribute("Action");
-
-		// Each ad in the training set will be duplicated, with one instance for the clicks and one for the impressions
-		// which did not lead to clicks. The respective instances are weighted according to these numbers.
-		int length = knowledge.numInstances();
-		for (int i = 0; i < length; i++) {
-			Instance yes = knowledge.instance(i);
-			Instance no = (Instance)yes.copy();
-			yes.setValue(action.index(), "yes");
-			no.setValue(action.index(), "no");
-			yes.setWeight(1.0*yes.value(actions)+1);
-			no.setWeight(1.0*yes.value(impressions)-yes.value(actions)+1);
-			knowledge.add(no);
+		attributes.add(new Attribute("Action", yesNo));
+
+		// Sum clicks and impressions per distinct combination of feature values
+		Map<List<Double>, double[]> groups = new LinkedHashMap<List<Double>, double[]>();
+		for (Instance row : knowledge) {
+			List<Double> key = new ArrayList<Double>(numFeatures);
+			for (int feature : features) {
+				key.add(row.value(feature));
+			}
+			NominalEstimator.sum(groups, key, row.value(actions), row.value(impressions));
+		}
+
+		Instances compacted = new Instances(knowledge.relationName(), attributes, 2 * groups.size());
+		compacted.setClassIndex(numFeatures);
+		NominalEstimator.weighted(groups, compacted);
+
+		this.knowledge = compacted;
+	}
+
+	/**
+	 * Learn new ads, if the classifier is updateable. The ads are grouped in the same way as the training data, so
+	 * the weights of an ad which was also in the training data are split between the old and the new instances.
+	 * 
+	 * @param delta New ads
+	 * @return True if the ads were learned
+	 */
+	@Override
+	protected boolean learn(Ads delta)
+	{
+		if (!(this.classifier instanceof UpdateableClassifier)) {
+			return false;
+		}
+		Attribute actions = delta.attribute("Clicks Count");
+		Attribute impressions = delta.attribute("Impressions");
+		if (actions == null || impressions == null) {
+			throw new RuntimeException("The required attributes could not be found in data set.");
+		}
+
+		int numFeatures = this.knowledge.numAttributes() - 1;
+		Map<List<Double>, double[]> groups = new LinkedHashMap<List<Double>, double[]>();
+		for (Instance row : delta) {
+			double[] values = this.convert(row);
+			if (values == null) {
+				return false;
+			}
+			List<Double> key = new ArrayList<Double>(numFeatures);
+			for (int i = 0; i < numFeatures; i++) {
+				key.add(values[i]);
+			}
+			NominalEstimator.sum(groups, key, row.value(actions), row.value(impressions));
+		}
+
+		Instances weighted = new Instances(this.knowledge, 2 * groups.size());
+		NominalEstimator.weighted(groups, weighted);
+		try {
+			for (Instance instance : weighted) {
+				((UpdateableClassifier)this.classifier).updateClassifier(instance);
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
 		}
+		return true;
+	}
 
-		// Set action as class and remove the old metrics
-		knowledge.setClass(action);
-		knowledge.deleteAttributeAt(impressions.index());
-		knowledge.deleteAttributeAt(actions.index());
+	/**
+	 * Private helper method for adding the metrics of a row to its group.
+	 * 
+	 * @param groups Sums of clicks and impressions per feature values
+	 * @param key Feature values of the row
+	 * @param clicks Clicks of the row
+	 * @param impressions Impressions of the row
+	 */
+	private static void sum(Map<List<Double>, double[]> groups, List<Double> key, double clicks, double impressions)
+	{
+		double[] sums = groups.get(key);
+		if (sums == null) {
+			sums = new double[2];
+			groups.put(key, sums);
+		}
+		sums[0] += clicks;
+		sums[1] += impressions;
+	}
 
-		this.knowledge = knowledge;
+	/**
+	 * Private helper method for adding two weighted instances per group, one for the clicks and one for the
+	 * impressions which did not lead to clicks. The respective instances are weighted according to these numbers.
+	 * 
+	 * @param groups Sums of clicks and impressions per feature values
+	 * @param instances Instances with the features followed by the Action class attribute
+	 */
+	private static void weighted(Map<List<Double>, double[]> groups, Instances instances)
+	{
+		int numFeatures = instances.numAttributes() - 1;
+		for (Map.Entry<List<Double>, double[]> group : groups.entrySet()) {
+			double[] yes = new double[numFeatures + 1];
+			for (int i = 0; i < numFeatures; i++) {
+				yes[i] = group.getKey().get(i);
+			}
+			double[] no = yes.clone();
+			yes[numFeatures] = 0;
+			no[numFeatures] = 1;
+			double clicks = group.getValue()[0];
+			double shown = group.getValue()[1];
+			instances.add(new DenseInstance(clicks + 1, yes));
+			instances.add(new DenseInstance(shown - clicks + 1, no));
+		}
+	}
+
+	/**
+	 * Copy the estimator with a copy of the trained classifier. The training data is shared, since it is only read.
+	 * 
+	 * @return Independent copy
+	 */
+	@Override
+	protected Estimator copy()
+	{
+		try {
+			NominalEstimator copy = (NominalEstimator)super.clone();
+			copy.classifier = AbstractClassifier.makeCopy(this.classifier);
+			return copy;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
@@ -99,7 +216,7 @@ public class NominalEstimator extends Estimator
 	public double estimate(Instance instance)
 	{
 		try {
-			double[] distr = this.classifier.distributionForInstance(instance);
+			double[] distr = this.classifier.distributionForInstance(this.align(instance));
 			return distr[this.knowledge.classAttribute().indexOfValue("yes")];
 		} catch (Exception e) {
 			throw new RuntimeException(e);
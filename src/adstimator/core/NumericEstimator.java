@@ -1,17 +1,20 @@
 package adstimator.core;
 
+import adstimator.data.Ads;
 import weka.classifiers.*;
 import weka.core.*;
 
 /**
  * Numeric estimator.
  * 
- * Handles classifiers that expect the class value to be numeric, such as linear regression for example.
+ * Handles classifiers that expect the class value to be numeric, such as linear regression for example. If the
+ * classifier is updateable, such as IBk, the estimator can learn new ads incrementally.
  * 
  * @author erikbrannstrom
  */
 public class NumericEstimator extends Estimator
 {
+	private static final long serialVersionUID = 1L;
 	private Classifier classifier;
 
 	/**
@@ -63,6 +66,60 @@ public class NumericEstimator extends Estimator
 		this.knowledge = knowledge;
 	}
 
+	/**
+	 * Learn new ads, if the classifier is updateable.
+	 * 
+	 * @param delta New ads
+	 * @return True if the ads were learned
+	 */
+	@Override
+	protected boolean learn(Ads delta)
+	{
+		if (!(this.classifier instanceof UpdateableClassifier)) {
+			return false;
+		}
+		Attribute actions = delta.attribute("Clicks Count");
+		Attribute impressions = delta.attribute("Impressions");
+		if (actions == null || impressions == null) {
+			throw new RuntimeException("The required attributes could not be found in data set.");
+		}
+
+		Instances rates = new Instances(this.knowledge, delta.numInstances());
+		for (Instance row : delta) {
+			double[] values = this.convert(row);
+			if (values == null) {
+				return false;
+			}
+			values[this.knowledge.classIndex()] = row.value(actions)/row.value(impressions);
+			rates.add(new DenseInstance(1.0, values));
+		}
+		try {
+			for (Instance instance : rates) {
+				((UpdateableClassifier)this.classifier).updateClassifier(instance);
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return true;
+	}
+
+	/**
+	 * Copy the estimator with a copy of the trained classifier. The training data is shared, since it is only read.
+	 * 
+	 * @return Independent copy
+	 */
+	@Override
+	protected Estimator copy()
+	{
+		try {
+			NumericEstimator copy = (NumericEstimator)super.clone();
+			copy.classifier = AbstractClassifier.makeCopy(this.classifier);
+			return copy;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * Set and build classifier.
 	 * 
@@ -88,7 +145,7 @@ public class NumericEstimator extends Estimator
 	public double estimate(Instance instance)
 	{
 		try {
-			return this.classifier.classifyInstance(instance);
+			return this.classifier.classifyInstance(this.align(instance));
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
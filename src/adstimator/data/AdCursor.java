@@ -0,0 +1,32 @@
+package adstimator.data;
+
+/**
+ * Cursor which reads the ads of a storage in chunks of a fixed number of rows, so that only one chunk at a time needs
+ * to be in memory.
+ *
+ * All chunks have the same attributes. The values of a nominal attribute are listed in the order they were first seen
+ * by the cursor, so the header of a chunk extends the header of the chunks before it, and a value has the same index
+ * in all chunks. Chunks are read when asked for, so ads which are added while the cursor is open may or may not be
+ * included.
+ *
+ * @author erikbrannstrom
+ */
+public interface AdCursor
+{
+	/**
+	 * Default number of rows in a chunk.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 10000;
+
+	/**
+	 * Read the next chunk.
+	 *
+	 * @return Ads, at most the chunk size, or null when there are no more ads
+	 */
+	public Ads next();
+
+	/**
+	 * Release the cursor. Further calls to next() return null.
+	 */
+	public void close();
+}
@@ -1,9 +1,16 @@
 package adstimator.data;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
 import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import weka.core.Attribute;
-import weka.core.converters.DatabaseLoader;
-import weka.core.converters.DatabaseSaver;
+import weka.core.Instance;
 
 /**
  * Class for interacting with the database defined in the Weka database property file (DatabaseUtils.props).
@@ -11,12 +18,50 @@ import weka.core.converters.DatabaseSaver;
  * Implements the AdStorage interface, but also adds methods for getting aggregate data and targeting used in the
  * data set.
  * 
+ * The number of rows and the throughput of each add and upsert are logged.
+ * 
+ * Each call to add or upsert is recorded as a partition in the kb_partitions table, and its rows get the partition ID
+ * in the indexed Batch_Id column. Queries can be restricted to or exclude partitions, and partitions can be dropped.
+ * 
+ * Queries given as AdQuery objects keep no state in the storage, so one instance can serve any number of threads.
+ * The where clauses and partition filters set on the storage itself only apply to get(), getAggregate(), getTargets()
+ * and cursor() without a query.
+ * 
  * @author erikbrannstrom
  */
 public class AdDatabaseStorage implements AdStorage
 {
+	/**
+	 * Default number of rows sent to the database in each JDBC batch when adding ads.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	/**
+	 * Secondary indexes maintained on each table, by name suffix. The target index serves the target filters (which
+	 * always include Impressions), and the creative indexes serve aggregation on each ad property within a target.
+	 */
+	private static final Map<String, List<String>> INDEXES = new LinkedHashMap<String, List<String>>();
+
+	static {
+		INDEXES.put("target", Arrays.asList("Gender", "Age_Min", "Age_Max", "Impressions"));
+		INDEXES.put("body", Arrays.asList("Body", "Gender", "Age_Min", "Age_Max"));
+		INDEXES.put("image", Arrays.asList("Image_Hash", "Gender", "Age_Min", "Age_Max"));
+		INDEXES.put("batch", Arrays.asList("Batch_Id"));
+	}
+
+	/**
+	 * Ad property columns which have a rollup table holding the summed metrics per property value and target.
+	 */
+	private static final List<String> ROLLUPS = Arrays.asList("Body", "Image_Hash");
+	/**
+	 * Target columns which make up the rest of the rollup key, and which rollup queries may filter on.
+	 */
+	private static final List<String> ROLLUP_TARGETS = Arrays.asList("Gender", "Age_Min", "Age_Max");
+	private static final Logger LOG = Logger.getLogger(AdDatabaseStorage.class.getName());
+
 	private String tableName;
-	private List<String> where;
+	// Query built by where() and the partition filters, replaced as a whole so that readers never see it half changed
+	private volatile AdQuery query;
+	private volatile int batchSize;
 
 	/**
 	 * Constructor for initializing a database manager with a given table name.
@@ -26,41 +71,1048 @@ public class AdDatabaseStorage implements AdStorage
 	public AdDatabaseStorage(String tableName)
 	{
 		this.tableName = tableName;
-		this.where = new LinkedList<String>();
+		this.query = AdQuery.all();
+		this.batchSize = DEFAULT_BATCH_SIZE;
 	}
 
+	/**
+	 * Set the number of rows sent to the database in each batch when adding ads.
+	 *
+	 * @param batchSize Rows per batch, at least one
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least one.");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Appends the ads to the table using a single prepared statement and transaction. The table is created from the
+	 * attributes of the ads if it does not exist, and any attributes missing from an existing table are added as new
+	 * columns. As when storing through Weka, spaces in attribute names are replaced with underscores.
+	 *
+	 * The rollup tables are updated with the new rows in the same transaction.
+	 *
+	 * @param ads Ads to store
+	 */
 	@Override
 	public void add(Ads ads)
 	{
+		this.add(ads, null);
+	}
+
+	/**
+	 * Appends the ads to the table as add(ads) does, and runs the hook in the same transaction just before it is
+	 * committed.
+	 *
+	 * @param ads Ads to store
+	 * @param hook Work to commit along with the ads, or null
+	 */
+	public void add(Ads ads, CommitHook hook)
+	{
+		long start = System.nanoTime();
+		Connection con = DatabaseHelper.instance().getWriteConnection();
+		try {
+			con.setAutoCommit(false);
+			this.createTable(con, ads);
+			long lastRowId = AdDatabaseStorage.lastRowId(con, this.tableName);
+			this.insert(con, ads, "INSERT", this.createPartition(con, ads.numInstances(), System.currentTimeMillis()));
+			// Indexes are created after the rows, which is faster than maintaining them during the first import
+			this.createIndexes(con);
+			this.updateRollups(con, lastRowId);
+			AdDatabaseStorage.beforeCommit(con, hook);
+			con.commit();
+			AdsLoader.register(this.tableName, ads);
+			this.logImport("Added", ads.numInstances(), start);
+		} catch (SQLException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			// Returning the writer rolls back anything that was not committed
+			try {
+				con.close();
+			} catch (SQLException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Stores the ads keyed by their Ad ID. Ads with an ID which is already in the table replace the stored ad, and all
+	 * other ads are appended. If the same ID occurs more than once in the ads, the last one is kept. Ads without an ID
+	 * are always appended.
+	 *
+	 * This keeps the table at one row per distinct ad when overlapping reports are imported. Lookups go through a
+	 * unique index on the ID, and everything, including the rollups, is updated in a single transaction.
+	 *
+	 * @param ads Ads to store, which must have the Ad ID attribute
+	 */
+	public void upsert(Ads ads)
+	{
+		this.upsert(ads, null);
+	}
+
+	/**
+	 * Stores the ads keyed by their Ad ID as upsert(ads) does, and runs the hook in the same transaction just before
+	 * it is committed.
+	 *
+	 * @param ads Ads to store, which must have the Ad ID attribute
+	 * @param hook Work to commit along with the ads, or null
+	 */
+	public void upsert(Ads ads, CommitHook hook)
+	{
+		if (ads.attribute(Ads.KEY) == null) {
+			throw new RuntimeException("Ads must have the attribute " + Ads.KEY + " to be merged.");
+		}
+		long start = System.nanoTime();
+		Connection con = DatabaseHelper.instance().getWriteConnection();
+		try {
+			con.setAutoCommit(false);
+			this.createTable(con, ads);
+			String key = AdDatabaseStorage.column(Ads.KEY);
+			Statement stmnt = con.createStatement();
+			stmnt.execute(String.format("CREATE UNIQUE INDEX IF NOT EXISTS %s_key ON %s (%s)", this.tableName,
+					this.tableName, key));
+
+			// Collect the incoming IDs, so that the rows they replace can be found with a join on the key index
+			stmnt.execute("CREATE TEMP TABLE IF NOT EXISTS upsert_keys (id TEXT PRIMARY KEY)");
+			stmnt.execute("DELETE FROM upsert_keys");
+			PreparedStatement keys = con.prepareStatement("INSERT OR IGNORE INTO upsert_keys VALUES (?)");
+			Attribute attKey = ads.attribute(Ads.KEY);
+			int pending = 0;
+			for (Instance ad : ads) {
+				if (ad.isMissing(attKey)) {
+					continue;
+				}
+				keys.setString(1, attKey.isNumeric() ? String.valueOf((long)ad.value(attKey)) : ad.stringValue(attKey));
+				keys.addBatch();
+				if (++pending == this.batchSize) {
+					keys.executeBatch();
+					pending = 0;
+				}
+			}
+			if (pending > 0) {
+				keys.executeBatch();
+			}
+			keys.close();
+
+			// Take the replaced rows out of the rollups before deleting them, then append all ads as new rows
+			String replaced = String.format("%s IN (SELECT id FROM upsert_keys)", key);
+			this.subtractFromRollups(con, replaced);
+			stmnt.execute(String.format("DELETE FROM %s WHERE %s", this.tableName, replaced));
+			stmnt.execute("DELETE FROM upsert_keys");
+			stmnt.close();
+			long lastRowId = AdDatabaseStorage.lastRowId(con, this.tableName);
+			this.insert(con, ads, "INSERT OR REPLACE", this.createPartition(con, 0, System.currentTimeMillis()));
+			// Replaced rows may have belonged to any earlier partition
+			this.countPartitions(con);
+			this.createIndexes(con);
+			this.updateRollups(con, lastRowId);
+			AdDatabaseStorage.beforeCommit(con, hook);
+			con.commit();
+			AdsLoader.register(this.tableName, ads);
+			this.logImport("Upserted", ads.numInstances(), start);
+		} catch (SQLException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			try {
+				con.close();
+			} catch (SQLException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Fill the table with rows copied from other tables, optionally only those matching a target. Everything happens
+	 * inside the database with one INSERT ... SELECT per source table. Each partition of a source becomes a partition
+	 * of the table with a new ID and the same import time, and partitions left without rows are not kept. The table
+	 * gets the union of the columns of the sources, and its indexes and rollups are built once all rows are in place.
+	 *
+	 * If the sources are keyed by Ad ID, the table gets the same unique key and rows from later sources replace those
+	 * from earlier ones.
+	 *
+	 * @param con Connection to use, in a transaction
+	 * @param sources Tables to copy from
+	 * @param target Target, attribute => value, or null to copy all rows
+	 * @throws SQLException
+	 */
+	void copy(Connection con, List<String> sources, Map<String, String> target) throws SQLException
+	{
+		if (!AdDatabaseStorage.columns(con, this.tableName).isEmpty()) {
+			throw new RuntimeException("Can only copy into a new table, but " + this.tableName + " exists.");
+		}
+
+		// Union of the source columns, keeping the declared type of the first source that has the column
+		Map<String, String> types = new LinkedHashMap<String, String>();
+		Map<String, Set<String>> sourceColumns = new HashMap<String, Set<String>>();
+		for (String source : sources) {
+			Statement pragma = con.createStatement();
+			ResultSet rs = pragma.executeQuery(String.format("PRAGMA table_info(%s)", source));
+			Set<String> columns = new HashSet<String>();
+			while (rs.next()) {
+				String name = rs.getString("name");
+				if (!name.equalsIgnoreCase("Batch_Id") && !types.containsKey(name.toLowerCase())) {
+					types.put(name.toLowerCase(), name + " " + rs.getString("type"));
+				}
+				columns.add(name.toLowerCase());
+			}
+			rs.close();
+			pragma.close();
+			sourceColumns.put(source, columns);
+		}
+		if (types.isEmpty()) {
+			return;
+		}
+
+		StringBuilder definition = new StringBuilder();
+		StringBuilder columns = new StringBuilder();
+		for (String column : types.keySet()) {
+			definition.append(types.get(column)).append(", ");
+			columns.append(column).append(", ");
+		}
+		Statement stmnt = con.createStatement();
+		stmnt.execute(String.format("CREATE TABLE %s (%sBatch_Id INTEGER)", this.tableName, definition));
+		String verb = "INSERT";
+		String key = AdDatabaseStorage.column(Ads.KEY).toLowerCase();
+		if (types.containsKey(key)) {
+			stmnt.execute(String.format("CREATE UNIQUE INDEX %s_key ON %s (%s)", this.tableName, this.tableName, key));
+			verb = "INSERT OR REPLACE";
+		}
+		stmnt.close();
+
+		// Filter on the target with the same column names as queries
+		SortedMap<String, String> filter = AdDatabaseStorage.columnFilters(AdQuery.target(target));
+		for (String source : sources) {
+			Set<String> existing = sourceColumns.get(source);
+			boolean complete = true;
+			for (String column : filter.keySet()) {
+				complete &= existing.contains(column.toLowerCase());
+			}
+			if (!complete) {
+				// A source without the target columns has no rows in the segment
+				continue;
+			}
+			StringBuilder select = new StringBuilder();
+			for (String column : types.keySet()) {
+				select.append(existing.contains(column) ? column : "NULL").append(", ");
+			}
+			List<String> parameters = new ArrayList<String>();
+			StringBuilder where = new StringBuilder();
+			for (Map.Entry<String, String> entry : filter.entrySet()) {
+				where.append(where.length() == 0 ? " WHERE " : " AND ").append(entry.getKey()).append(" = ?");
+				parameters.add(entry.getValue());
+			}
+			// Give the rows the new IDs of their partitions, while rows without a partition stay without one
+			StringBuilder batch = new StringBuilder("NULL");
+			List<Partition> partitions = new AdDatabaseStorage(source).partitions(con);
+			if (!partitions.isEmpty()) {
+				batch = new StringBuilder("CASE Batch_Id");
+				for (Partition partition : partitions) {
+					int id = this.createPartition(con, 0, partition.imported().getTime());
+					batch.append(String.format(" WHEN %d THEN %d", partition.id(), id));
+				}
+				batch.append(" END");
+			}
+			PreparedStatement insert = con.prepareStatement(String.format("%s INTO %s (%sBatch_Id) SELECT %s%s FROM "
+					+ "%s%s", verb, this.tableName, columns, select, batch, source, where));
+			for (int i = 0; i < parameters.size(); i++) {
+				insert.setString(i + 1, parameters.get(i));
+			}
+			insert.executeUpdate();
+			insert.close();
+		}
+		this.countPartitions(con);
+		if (!AdDatabaseStorage.columns(con, "kb_partitions").isEmpty()) {
+			PreparedStatement empty = con.prepareStatement("DELETE FROM kb_partitions WHERE table_name = ? "
+					+ "AND row_count = 0");
+			empty.setString(1, this.tableName);
+			empty.executeUpdate();
+			empty.close();
+		}
+		this.createIndexes(con);
+		this.updateRollups(con, -1);
+	}
+
+	/**
+	 * Private helper method for inserting all ads using a single prepared statement, sent in batches.
+	 *
+	 * @param con Connection to use, in a transaction
+	 * @param ads Ads to insert
+	 * @param verb INSERT, or INSERT with a conflict clause
+	 * @param partition ID of the partition the rows belong to
+	 * @throws SQLException
+	 */
+	private void insert(Connection con, Ads ads, String verb, int partition) throws SQLException
+	{
+		// Prepare one insert for all rows with a placeholder per attribute, followed by the partition
+		StringBuilder columns = new StringBuilder();
+		StringBuilder values = new StringBuilder();
+		for (int i = 0; i < ads.numAttributes(); i++) {
+			columns.append(AdDatabaseStorage.column(ads.attribute(i).name())).append(", ");
+			values.append("?, ");
+		}
+		columns.append("Batch_Id");
+		values.append("?");
+		PreparedStatement insert = con.prepareStatement(String.format("%s INTO %s (%s) VALUES (%s)", verb,
+				this.tableName, columns, values));
+
+		int pending = 0;
+		for (Instance ad : ads) {
+			for (int i = 0; i < ads.numAttributes(); i++) {
+				Attribute attribute = ads.attribute(i);
+				if (ad.isMissing(i)) {
+					insert.setNull(i + 1, attribute.isNumeric() ? Types.DOUBLE : Types.VARCHAR);
+				} else if (attribute.isNumeric()) {
+					insert.setDouble(i + 1, ad.value(i));
+				} else {
+					insert.setString(i + 1, ad.stringValue(i));
+				}
+			}
+			insert.setInt(ads.numAttributes() + 1, partition);
+			insert.addBatch();
+			if (++pending == this.batchSize) {
+				insert.executeBatch();
+				pending = 0;
+			}
+		}
+		if (pending > 0) {
+			insert.executeBatch();
+		}
+		insert.close();
+	}
+
+	/**
+	 * Create the secondary indexes on the table if they do not already exist. This is done automatically when ads
+	 * are added, but can be used to add the indexes to tables created by earlier versions.
+	 */
+	public void createIndexes()
+	{
+		Connection con = DatabaseHelper.instance().getWriteConnection();
+		try {
+			this.createIndexes(con);
+		} catch (SQLException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			try {
+				con.close();
+			} catch (SQLException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Private helper method for creating the secondary indexes. An index is only created if the table has all of its
+	 * columns.
+	 *
+	 * @param con Connection to use
+	 * @throws SQLException
+	 */
+	private void createIndexes(Connection con) throws SQLException
+	{
+		Set<String> existing = AdDatabaseStorage.columns(con, this.tableName);
+		Statement stmnt = con.createStatement();
+		for (Map.Entry<String, List<String>> index : INDEXES.entrySet()) {
+			boolean complete = true;
+			for (String column : index.getValue()) {
+				complete &= existing.contains(column.toLowerCase());
+			}
+			if (complete) {
+				String columns = index.getValue().toString();
+				stmnt.execute(String.format("CREATE INDEX IF NOT EXISTS %s_%s ON %s (%s)", this.tableName,
+						index.getKey(), this.tableName, columns.substring(1, columns.length() - 1)));
+			}
+		}
+		stmnt.close();
+	}
+
+	/**
+	 * Create the rollup tables from the rows in the table if they do not already exist. This is done automatically
+	 * when ads are added, but can be used to add rollups to tables created by earlier versions.
+	 */
+	public void createRollups()
+	{
+		Connection con = DatabaseHelper.instance().getWriteConnection();
 		try {
-			DatabaseSaver save = new DatabaseSaver();
-			save.setUrl(DatabaseHelper.instance().getConnectionURL());
-			save.setInstances(ads);
-			save.setRelationForTableName(false);
-			save.setTableName(this.tableName);
-			save.connectToDatabase();
-			save.writeBatch();
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+			con.setAutoCommit(false);
+			this.updateRollups(con, -1);
+			con.commit();
+		} catch (SQLException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			try {
+				con.close();
+			} catch (SQLException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Build the missing rollup tables a chunk of rows at a time, for tables too large to build them in one go. Each
+	 * call adds up to the given number of rows to a rollup in its own transaction, so the writer is only held briefly.
+	 *
+	 * The rollup is built in a separate table which queries do not see, and it replaces the missing rollup once it has
+	 * reached the last row. The position of the build is stored in the database, so a build that is interrupted
+	 * continues where it left off. Rows added or removed in the meantime are taken into account.
+	 *
+	 * @param rows Number of rows to add to the rollup in this call
+	 * @return True if all rollups are complete, false if there is more to do
+	 */
+	public boolean buildRollups(int rows)
+	{
+		Connection con = DatabaseHelper.instance().getWriteConnection();
+		try {
+			con.setAutoCommit(false);
+			Set<String> existing = AdDatabaseStorage.columns(con, this.tableName);
+			if (!AdDatabaseStorage.hasRollupColumns(existing)) {
+				return true;
+			}
+			for (String column : ROLLUPS) {
+				String rollup = this.rollupTable(column);
+				if (!existing.contains(column.toLowerCase()) || !AdDatabaseStorage.columns(con, rollup).isEmpty()) {
+					continue;
+				}
+				this.buildRollupChunk(con, column, rows);
+				con.commit();
+				return false;
+			}
+			return true;
+		} catch (SQLException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			try {
+				con.close();
+			} catch (SQLException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Private helper method for adding the next chunk of rows to a rollup being built, starting the build if needed
+	 * and putting the rollup in place when it is complete.
+	 *
+	 * @param con Connection to use, in a transaction
+	 * @param column Ad property column of the rollup
+	 * @param rows Number of rows to add
+	 * @throws SQLException
+	 */
+	private void buildRollupChunk(Connection con, String column, int rows) throws SQLException
+	{
+		String rollup = this.rollupTable(column);
+		String build = this.buildTable(rollup);
+		String key = ROLLUP_TARGETS.toString();
+		String groupBy = String.format("%s, %s", column, key.substring(1, key.length() - 1));
+		Statement stmnt = con.createStatement();
+		long position = this.buildPosition(con, rollup);
+		if (position < 0) {
+			stmnt.execute("CREATE TABLE IF NOT EXISTS kb_rollup_builds (rollup_table VARCHAR(64) PRIMARY KEY, "
+					+ "position INTEGER)");
+			stmnt.execute(String.format("DROP TABLE IF EXISTS %s", build));
+			stmnt.execute(String.format("CREATE TABLE %s (%s TEXT, Gender TEXT, Age_Min DOUBLE, Age_Max DOUBLE, "
+					+ "Clicks_Count DOUBLE, Impressions DOUBLE)", build, column));
+			stmnt.execute(String.format("CREATE UNIQUE INDEX %s_key ON %s (%s)", build, build, groupBy));
+			position = 0;
+		}
+
+		long end = position + rows;
+		this.applyRollupDelta(con, column, build, String.format("rowid > %d AND rowid <= %d", position, end), 1);
+		if (end >= AdDatabaseStorage.lastRowId(con, this.tableName)) {
+			stmnt.execute(String.format("DROP INDEX %s_key", build));
+			stmnt.execute(String.format("ALTER TABLE %s RENAME TO %s", build, rollup));
+			stmnt.execute(String.format("CREATE UNIQUE INDEX %s_key ON %s (%s)", rollup, rollup, groupBy));
+			this.abandonBuild(con, rollup);
+		} else {
+			PreparedStatement progress = con.prepareStatement("INSERT OR REPLACE INTO kb_rollup_builds "
+					+ "(rollup_table, position) VALUES (?, ?)");
+			progress.setString(1, rollup);
+			progress.setLong(2, end);
+			progress.executeUpdate();
+			progress.close();
+		}
+		stmnt.close();
+	}
+
+	/**
+	 * Private helper method for getting the position of a rollup being built.
+	 *
+	 * @param con Connection to use
+	 * @param rollup Rollup table
+	 * @return Last row ID which is part of the build, negative if the rollup is not being built
+	 * @throws SQLException
+	 */
+	private long buildPosition(Connection con, String rollup) throws SQLException
+	{
+		if (AdDatabaseStorage.columns(con, "kb_rollup_builds").isEmpty()) {
+			return -1;
+		}
+		PreparedStatement query = con.prepareStatement("SELECT position FROM kb_rollup_builds WHERE rollup_table = ?");
+		query.setString(1, rollup);
+		ResultSet rs = query.executeQuery();
+		long position = rs.next() ? rs.getLong(1) : -1;
+		rs.close();
+		query.close();
+		return position;
+	}
+
+	/**
+	 * Private helper method for removing a rollup build, whether it is complete or not.
+	 *
+	 * @param con Connection to use, in a transaction
+	 * @param rollup Rollup table
+	 * @throws SQLException
+	 */
+	private void abandonBuild(Connection con, String rollup) throws SQLException
+	{
+		if (AdDatabaseStorage.columns(con, "kb_rollup_builds").isEmpty()) {
+			return;
+		}
+		Statement stmnt = con.createStatement();
+		stmnt.execute(String.format("DROP TABLE IF EXISTS %s", this.buildTable(rollup)));
+		stmnt.close();
+		PreparedStatement delete = con.prepareStatement("DELETE FROM kb_rollup_builds WHERE rollup_table = ?");
+		delete.setString(1, rollup);
+		delete.executeUpdate();
+		delete.close();
+	}
+
+	/**
+	 * Get the name of the table a rollup is built in.
+	 *
+	 * @param rollup Rollup table
+	 * @return Table name
+	 */
+	private String buildTable(String rollup)
+	{
+		return rollup + "_build";
+	}
+
+	/**
+	 * Check if a table has the columns needed for rollups, which are all target columns and both metrics.
+	 *
+	 * @param existing Lower case column names of the table
+	 * @return True if rollups can be kept
+	 */
+	private static boolean hasRollupColumns(Set<String> existing)
+	{
+		if (!existing.contains("clicks_count") || !existing.contains("impressions")) {
+			return false;
+		}
+		for (String target : ROLLUP_TARGETS) {
+			if (!existing.contains(target.toLowerCase())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Drop the table along with its rollup tables, including any that are being built. Indexes are dropped with the
+	 * tables they belong to.
+	 *
+	 * @param con Connection to use
+	 * @throws SQLException
+	 */
+	void drop(Connection con) throws SQLException
+	{
+		for (String column : ROLLUPS) {
+			this.abandonBuild(con, this.rollupTable(column));
+		}
+		Statement drop = con.createStatement();
+		for (String column : ROLLUPS) {
+			drop.execute(String.format("DROP TABLE IF EXISTS %s", this.rollupTable(column)));
+		}
+		drop.execute(String.format("DROP TABLE IF EXISTS %s", this.tableName));
+		drop.close();
+		if (!AdDatabaseStorage.columns(con, "kb_partitions").isEmpty()) {
+			PreparedStatement partitions = con.prepareStatement("DELETE FROM kb_partitions WHERE table_name = ?");
+			partitions.setString(1, this.tableName);
+			partitions.executeUpdate();
+			partitions.close();
+		}
+	}
+
+	/**
+	 * Get the partitions of the table, oldest first.
+	 *
+	 * @return Partitions, empty if nothing has been imported
+	 */
+	public List<Partition> partitions()
+	{
+		Connection con = DatabaseHelper.instance().getConnection();
+		try {
+			return this.partitions(con);
+		} catch (SQLException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			try {
+				con.close();
+			} catch (SQLException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Private helper method for reading the partitions of the table, oldest first, using a connection which is
+	 * already checked out.
+	 *
+	 * @param con Pooled connection
+	 * @return Partitions, empty if nothing has been imported
+	 * @throws SQLException
+	 */
+	private List<Partition> partitions(Connection con) throws SQLException
+	{
+		List<Partition> partitions = new ArrayList<Partition>();
+		if (AdDatabaseStorage.columns(con, "kb_partitions").isEmpty()) {
+			return partitions;
+		}
+		PreparedStatement query = DatabaseHelper.instance().prepareCached(con, "SELECT id, row_count, imported_at "
+				+ "FROM kb_partitions WHERE table_name = ? ORDER BY id");
+		query.setString(1, this.tableName);
+		ResultSet rs = query.executeQuery();
+		while (rs.next()) {
+			partitions.add(new Partition(rs.getInt(1), this.tableName, rs.getLong(2), new Date(rs.getLong(3))));
+		}
+		rs.close();
+		return partitions;
+	}
+
+	/**
+	 * Remove a partition along with all of its rows. The rows are found through the batch index and subtracted from
+	 * the rollups in the same transaction.
+	 *
+	 * @param partition Partition ID
+	 */
+	public void dropPartition(int partition)
+	{
+		this.dropPartition(partition, null);
+	}
+
+	/**
+	 * Remove a partition as dropPartition(partition) does, and run the hook in the same transaction just before it is
+	 * committed.
+	 *
+	 * @param partition Partition ID
+	 * @param hook Work to commit along with the removal, or null
+	 */
+	public void dropPartition(int partition, CommitHook hook)
+	{
+		Connection con = DatabaseHelper.instance().getWriteConnection();
+		try {
+			con.setAutoCommit(false);
+			if (AdDatabaseStorage.columns(con, this.tableName).contains("batch_id")) {
+				String condition = String.format("Batch_Id = %d", partition);
+				this.subtractFromRollups(con, condition);
+				Statement delete = con.createStatement();
+				delete.execute(String.format("DELETE FROM %s WHERE %s", this.tableName, condition));
+				delete.close();
+			}
+			PreparedStatement catalog = con.prepareStatement("DELETE FROM kb_partitions WHERE id = ?");
+			catalog.setInt(1, partition);
+			catalog.executeUpdate();
+			catalog.close();
+			AdDatabaseStorage.beforeCommit(con, hook);
+			con.commit();
+		} catch (SQLException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			try {
+				con.close();
+			} catch (SQLException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Private helper method for running a commit hook, if there is one.
+	 *
+	 * @param con Connection to use, in a transaction
+	 * @param hook Hook, or null
+	 * @throws SQLException
+	 */
+	private static void beforeCommit(Connection con, CommitHook hook) throws SQLException
+	{
+		if (hook != null) {
+			hook.beforeCommit(con);
 		}
 	}
+
+	/**
+	 * Private helper method for recording a new partition in the catalog, which is created if needed.
+	 *
+	 * @param con Connection to use, in a transaction
+	 * @param rows Number of rows in the partition
+	 * @param importedAt Time of the import in milliseconds
+	 * @return Partition ID
+	 * @throws SQLException
+	 */
+	private int createPartition(Connection con, long rows, long importedAt) throws SQLException
+	{
+		Statement stmnt = con.createStatement();
+		stmnt.execute("CREATE TABLE IF NOT EXISTS kb_partitions (id INTEGER PRIMARY KEY AUTOINCREMENT, "
+				+ "table_name VARCHAR(32), row_count INTEGER, imported_at INTEGER)");
+		stmnt.execute("CREATE INDEX IF NOT EXISTS kb_partitions_table ON kb_partitions (table_name)");
+		stmnt.close();
+		PreparedStatement insert = con.prepareStatement("INSERT INTO kb_partitions (table_name, row_count, imported_at) "
+				+ "VALUES (?, ?, ?)");
+		insert.setString(1, this.tableName);
+		insert.setLong(2, rows);
+		insert.setLong(3, importedAt);
+		insert.execute();
+		int id = insert.getGeneratedKeys().getInt(1);
+		insert.close();
+		return id;
+	}
+
+	/**
+	 * Private helper method for updating the row counts of all partitions of the table.
+	 *
+	 * @param con Connection to use, in a transaction
+	 * @throws SQLException
+	 */
+	private void countPartitions(Connection con) throws SQLException
+	{
+		PreparedStatement update = con.prepareStatement(String.format("UPDATE kb_partitions SET row_count = "
+				+ "(SELECT COUNT(*) FROM %s WHERE Batch_Id = kb_partitions.id) WHERE table_name = ?", this.tableName));
+		update.setString(1, this.tableName);
+		update.executeUpdate();
+		update.close();
+	}
+
+	/**
+	 * Get the name of the rollup table for an ad property column.
+	 *
+	 * @param column Column name
+	 * @return Table name
+	 */
+	private String rollupTable(String column)
+	{
+		return this.tableName + "_by_" + column.toLowerCase();
+	}
+
+	/**
+	 * Private helper method for maintaining the rollup tables. Rollups which do not exist are created from all rows in
+	 * the table. Existing rollups get the sums of the rows after the given row ID added to them.
+	 *
+	 * A rollup is only kept for tables which have its property column, all target columns and both metrics. Like
+	 * queries on the table, rollups only include rows with impressions.
+	 *
+	 * @param con Connection to use, in a transaction
+	 * @param afterRowId Last row ID that is already part of existing rollups, negative to only create missing rollups
+	 *                   (replacing any rollup that is being built in chunks)
+	 * @throws SQLException
+	 */
+	private void updateRollups(Connection con, long afterRowId) throws SQLException
+	{
+		Set<String> existing = AdDatabaseStorage.columns(con, this.tableName);
+		if (!AdDatabaseStorage.hasRollupColumns(existing)) {
+			return;
+		}
+		String key = ROLLUP_TARGETS.toString();
+		key = key.substring(1, key.length() - 1);
+
+		for (String column : ROLLUPS) {
+			if (!existing.contains(column.toLowerCase())) {
+				continue;
+			}
+			String rollup = this.rollupTable(column);
+			String groupBy = String.format("%s, %s", column, key);
+			String sums = "SUM(Clicks_Count) AS Clicks_Count, SUM(Impressions) AS Impressions";
+
+			if (AdDatabaseStorage.columns(con, rollup).isEmpty()) {
+				long position = this.buildPosition(con, rollup);
+				if (position >= 0 && afterRowId >= position) {
+					// The build reaches the new rows on its own, since they come after its position
+					continue;
+				}
+				if (position >= 0) {
+					// Either a full rollup was asked for, or row IDs below the position were reused
+					this.abandonBuild(con, rollup);
+				}
+				Statement stmnt = con.createStatement();
+				stmnt.execute(String.format("CREATE TABLE %s (%s TEXT, Gender TEXT, Age_Min DOUBLE, Age_Max DOUBLE, "
+						+ "Clicks_Count DOUBLE, Impressions DOUBLE)", rollup, column));
+				stmnt.execute(String.format("CREATE UNIQUE INDEX %s_key ON %s (%s)", rollup, rollup, groupBy));
+				stmnt.execute(String.format("INSERT INTO %s SELECT %s, %s FROM %s WHERE Impressions > 0 GROUP BY %s",
+						rollup, groupBy, sums, this.tableName, groupBy));
+				stmnt.close();
+				continue;
+			}
+			if (afterRowId < 0) {
+				continue;
+			}
+
+			this.applyRollupDelta(con, column, rollup, String.format("rowid > %d", afterRowId), 1);
+		}
+	}
+
+	/**
+	 * Private helper method for subtracting rows which are about to be deleted from the existing rollups.
+	 *
+	 * @param con Connection to use, in a transaction
+	 * @param condition SQL condition selecting the rows
+	 * @throws SQLException
+	 */
+	private void subtractFromRollups(Connection con, String condition) throws SQLException
+	{
+		for (String column : ROLLUPS) {
+			String rollup = this.rollupTable(column);
+			if (!AdDatabaseStorage.columns(con, rollup).isEmpty()) {
+				this.applyRollupDelta(con, column, rollup, condition, -1);
+			} else {
+				// A rollup being built only holds the rows up to its position
+				long position = this.buildPosition(con, rollup);
+				if (position < 0) {
+					continue;
+				}
+				rollup = this.buildTable(rollup);
+				this.applyRollupDelta(con, column, rollup, String.format("(%s) AND rowid <= %d", condition,
+						position), -1);
+			}
+			// Groups which no longer have any impressions are never read
+			Statement stmnt = con.createStatement();
+			stmnt.execute(String.format("DELETE FROM %s WHERE Impressions <= 0", rollup));
+			stmnt.close();
+		}
+	}
+
+	/**
+	 * Private helper method for adding or subtracting the sums of a set of rows to a rollup, one group at a time.
+	 * Groups with a missing value in the key are matched with IS, which cannot use the key index, so the plain
+	 * comparison is used for all other groups.
+	 *
+	 * @param con Connection to use, in a transaction
+	 * @param column Ad property column of the rollup
+	 * @param rollup Rollup table to update
+	 * @param condition SQL condition selecting the rows
+	 * @param sign 1 to add the sums, -1 to subtract them
+	 * @throws SQLException
+	 */
+	private void applyRollupDelta(Connection con, String column, String rollup, String condition, int sign)
+			throws SQLException
+	{
+		String key = ROLLUP_TARGETS.toString();
+		String groupBy = String.format("%s, %s", column, key.substring(1, key.length() - 1));
+		PreparedStatement delta = con.prepareStatement(String.format("SELECT %s, SUM(Clicks_Count), "
+				+ "SUM(Impressions) FROM %s WHERE %s AND Impressions > 0 GROUP BY %s", groupBy, this.tableName,
+				condition, groupBy));
+		String set = String.format("UPDATE %s SET Clicks_Count = Clicks_Count + ?, Impressions = Impressions + ?",
+				rollup);
+		PreparedStatement update = con.prepareStatement(String.format("%s WHERE %s = ? AND Gender = ? AND "
+				+ "Age_Min = ? AND Age_Max = ?", set, column));
+		PreparedStatement updateNull = con.prepareStatement(String.format("%s WHERE %s IS ? AND Gender IS ? AND "
+				+ "Age_Min IS ? AND Age_Max IS ?", set, column));
+		PreparedStatement insert = con.prepareStatement(String.format("INSERT INTO %s VALUES (?, ?, ?, ?, ?, ?)",
+				rollup));
+		ResultSet rs = delta.executeQuery();
+		while (rs.next()) {
+			PreparedStatement stmnt = update;
+			for (int i = 1; i <= 4; i++) {
+				if (rs.getObject(i) == null) {
+					stmnt = updateNull;
+				}
+			}
+			stmnt.setDouble(1, sign * rs.getDouble(5));
+			stmnt.setDouble(2, sign * rs.getDouble(6));
+			for (int i = 1; i <= 4; i++) {
+				stmnt.setObject(i + 2, rs.getObject(i));
+			}
+			if (stmnt.executeUpdate() == 0) {
+				for (int i = 1; i <= 4; i++) {
+					insert.setObject(i, rs.getObject(i));
+				}
+				insert.setDouble(5, sign * rs.getDouble(5));
+				insert.setDouble(6, sign * rs.getDouble(6));
+				insert.executeUpdate();
+			}
+		}
+		rs.close();
+		delta.close();
+		update.close();
+		updateNull.close();
+		insert.close();
+	}
+
+	/**
+	 * Get the largest row ID in a table.
+	 *
+	 * @param con Connection to use
+	 * @param table Table name
+	 * @return Largest row ID, zero if the table is empty
+	 * @throws SQLException
+	 */
+	static long lastRowId(Connection con, String table) throws SQLException
+	{
+		Statement stmnt = con.createStatement();
+		ResultSet rs = stmnt.executeQuery(String.format("SELECT MAX(rowid) FROM %s", table));
+		long rowId = rs.next() ? rs.getLong(1) : 0;
+		rs.close();
+		stmnt.close();
+		return rowId;
+	}
+
+	/**
+	 * Private helper method for logging the number of rows and the throughput of an import, including table creation
+	 * and commit.
+	 *
+	 * @param operation Name of the operation
+	 * @param rows Number of rows stored
+	 * @param start Value of System.nanoTime() when the import started
+	 */
+	private void logImport(String operation, int rows, long start)
+	{
+		double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+		LOG.log(Level.INFO, "{0} {1} rows to {2} in {3} ms ({4} rows/s)", new Object[]{operation, rows,
+				this.tableName, Math.round(seconds * 1000), Math.round(rows / seconds)});
+	}
+
+	/**
+	 * Private helper method for creating the table from the attributes of a data set, or adding any columns that are
+	 * missing if the table already exists. Column types match the ones Weka uses in DatabaseUtils.props.
+	 *
+	 * @param con Connection to use
+	 * @param ads Data set describing the schema
+	 * @throws SQLException
+	 */
+	private void createTable(Connection con, Ads ads) throws SQLException
+	{
+		Set<String> existing = AdDatabaseStorage.columns(con, this.tableName);
+		Statement stmnt = con.createStatement();
+		StringBuilder definition = new StringBuilder();
+		for (int i = 0; i < ads.numAttributes(); i++) {
+			Attribute attribute = ads.attribute(i);
+			String column = AdDatabaseStorage.column(attribute.name()) + (attribute.isNumeric() ? " DOUBLE" : " TEXT");
+			if (existing.isEmpty()) {
+				definition.append(i > 0 ? ", " : "").append(column);
+			} else if (!existing.contains(AdDatabaseStorage.column(attribute.name()).toLowerCase())) {
+				stmnt.execute(String.format("ALTER TABLE %s ADD COLUMN %s", this.tableName, column));
+			}
+		}
+		if (existing.isEmpty()) {
+			stmnt.execute(String.format("CREATE TABLE %s (%s, Batch_Id INTEGER)", this.tableName, definition));
+		} else if (!existing.contains("batch_id")) {
+			// Rows stored before partitions were recorded belong to no partition
+			stmnt.execute(String.format("ALTER TABLE %s ADD COLUMN Batch_Id INTEGER", this.tableName));
+		}
+		stmnt.close();
+	}
+
+	/**
+	 * Get the names of the columns in a table, in lower case.
+	 *
+	 * @param con Connection to use
+	 * @param table Table name
+	 * @return Column names, empty if the table does not exist
+	 * @throws SQLException
+	 */
+	static Set<String> columns(Connection con, String table) throws SQLException
+	{
+		Set<String> columns = new HashSet<String>();
+		PreparedStatement exists = con.prepareStatement("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?");
+		exists.setString(1, table);
+		ResultSet rs = exists.executeQuery();
+		boolean found = rs.next();
+		rs.close();
+		exists.close();
+		if (found) {
+			Statement pragma = con.createStatement();
+			rs = pragma.executeQuery(String.format("PRAGMA table_info(%s)", table));
+			while (rs.next()) {
+				columns.add(rs.getString("name").toLowerCase());
+			}
+			rs.close();
+			pragma.close();
+		}
+		return columns;
+	}
+
+	/**
+	 * Get the column name used for an attribute. Spaces are not allowed, and are replaced with underscores.
+	 *
+	 * @param attribute Attribute name
+	 * @return Column name
+	 */
+	static String column(String attribute)
+	{
+		return attribute.replaceAll(" ", "_");
+	}
 	
 	@Override
 	public Ads get()
 	{
-		return this.get("Body, Image_Hash, Clicks_Count, Impressions", "");
+		return this.get(this.query);
+	}
+
+	/**
+	 * Return the ads which match the query. Aggregates are read from the rollup of the attribute when the query can be
+	 * answered from it, which is when it only filters on target columns.
+	 * 
+	 * @param query Query
+	 * @return Ads, or null if no ads matched
+	 */
+	@Override
+	public Ads get(AdQuery query)
+	{
+		if (query.groupBy() == null) {
+			return this.get(query, "Body, Image_Hash, Clicks_Count, Impressions", this.tableName, "");
+		}
+		String attribute = AdDatabaseStorage.column(query.groupBy());
+		String select = attribute + ", SUM(Clicks_Count) AS Clicks_Count, SUM(Impressions) AS Impressions";
+		if (ROLLUPS.contains(attribute) && this.rollupCovers(query)) {
+			String rollup = this.rollupTable(attribute);
+			if (this.tableExists(rollup)) {
+				return this.get(query, select, rollup, attribute);
+			}
+		}
+		return this.get(query, select, this.tableName, attribute);
+	}
+
+	@Override
+	public AdCursor cursor(int chunkSize)
+	{
+		return this.cursor(this.query, chunkSize);
+	}
+
+	/**
+	 * Open a cursor over the same ads as get(query). Each chunk is a query of its own which continues after the last
+	 * row ID of the chunk before, so no connection is held between chunks and every chunk is found through the primary
+	 * key.
+	 * 
+	 * @param query Query without group by attribute
+	 * @param chunkSize Maximum number of rows in each chunk
+	 * @return Cursor
+	 */
+	@Override
+	public AdCursor cursor(AdQuery query, int chunkSize)
+	{
+		if (query.groupBy() != null) {
+			throw new IllegalArgumentException("Cursors do not aggregate: " + query);
+		}
+		List<String> parameters = new ArrayList<String>();
+		String sql = String.format("SELECT rowid, Body, Image_Hash, Clicks_Count, Impressions FROM %s %s AND rowid > ? "
+				+ "ORDER BY rowid LIMIT ?", this.tableName, this.createWhereClause(query, parameters));
+		return new DatabaseCursor(sql, parameters, chunkSize);
 	}
 
 	/**
-	 * Private helper method for generating and executing SELECT queries.
+	 * Private helper method for generating and executing SELECT queries against a specific table, which is either the
+	 * ad table or one of its rollups.
 	 * 
+	 * @param query Query to take the where clause from
 	 * @param select DB fields to select
+	 * @param from Table to select from
 	 * @param groupBy Field to group on
-	 * @return
+	 * @return Ads, or null if no ads matched
 	 */
-	private Ads get(String select, String groupBy)
+	private Ads get(AdQuery query, String select, String from, String groupBy)
 	{
-		String whereClause = this.createWhereClause();
+		List<String> parameters = new ArrayList<String>();
+		String whereClause = this.createWhereClause(query, parameters);
 		
 		if (groupBy != null && groupBy.length() > 0) {
 			groupBy = "GROUP BY " + groupBy;
@@ -68,102 +1120,327 @@ public class AdDatabaseStorage implements AdStorage
 			groupBy = "";
 		}
 		
+		Connection con = DatabaseHelper.instance().getConnection();
 		try {
-			DatabaseLoader loader = new DatabaseLoader();
-			loader.setUrl(DatabaseHelper.instance().getConnectionURL());
-			loader.connectToDatabase();
-			loader.setQuery(String.format("SELECT %s FROM %s %s %s", select, this.tableName, whereClause, groupBy));
-			if (loader.getDataSet() == null) {
-				loader.reset();
+			// Tables are created on the first import, so until then there is nothing to return
+			if (!AdDatabaseStorage.tableExists(con, from)) {
 				return null;
-			} else {
-				Ads data = new Ads(loader.getDataSet());
-				// Database replaces spaces with underscores in names on store, so we need to change that back
-				for (int attrIndex = 0; attrIndex < data.numAttributes(); attrIndex++) {
-					Attribute attribute = data.attribute(attrIndex);
-					if (attribute.name().indexOf("_") > 0) {
-						data.renameAttribute(attribute, attribute.name().replaceAll("_", " "));
-					}
-				}
-				loader.reset();
-				return data;
-			}
-		} catch (Exception ex) {
+			}
+			// The SQL only depends on which columns are filtered, so the compiled statement can be reused for all
+			// values of those columns
+			PreparedStatement statement = DatabaseHelper.instance().prepareCached(con, String.format(
+					"SELECT %s FROM %s %s %s", select, from, whereClause, groupBy));
+			for (int i = 0; i < parameters.size(); i++) {
+				statement.setString(i + 1, parameters.get(i));
+			}
+			ResultSet rs = statement.executeQuery();
+			Ads data = AdsLoader.load(rs, this.tableName);
+			rs.close();
+			return data;
+		} catch (SQLException ex) {
 			throw new RuntimeException(ex);
+		} finally {
+			try {
+				con.close();
+			} catch (SQLException ex) {
+				throw new RuntimeException(ex);
+			}
 		}
 	}
 	
 	/**
 	 * Return the sum of the metrics for a specific attribute (e.g. Body).
 	 *
+	 * The sums are read from the rollup table of the attribute when there is one and the where clauses only concern
+	 * the target, otherwise they are calculated from the ad table.
+	 *
 	 * @param attribute Name of attribute to aggregate
 	 * @return Aggregated ads
 	 */
 	public Ads getAggregate(String attribute)
 	{
-		attribute = attribute.replaceAll(" ", "_");
-		return this.get(attribute + ", SUM(Clicks_Count) AS Clicks_Count, SUM(Impressions) AS Impressions", attribute);
+		return this.get(this.query.groupBy(attribute));
+	}
+
+	/**
+	 * Work which is committed in the same transaction as a change to the ads, such as recording that they changed.
+	 */
+	public interface CommitHook
+	{
+		/**
+		 * Called on the writer connection after the ads have been changed, just before the transaction is committed.
+		 * If the hook throws, the whole transaction is rolled back.
+		 *
+		 * @param con Connection to use, in a transaction
+		 * @throws SQLException
+		 */
+		public void beforeCommit(Connection con) throws SQLException;
+	}
+
+	/**
+	 * Cursor which reads a query in chunks using the row ID as key.
+	 */
+	private class DatabaseCursor implements AdCursor
+	{
+		private final String sql;
+		private final List<String> parameters;
+		private final int chunkSize;
+		private AdsLoader loader;
+		private boolean done;
+
+		DatabaseCursor(String sql, List<String> parameters, int chunkSize)
+		{
+			this.sql = sql;
+			this.parameters = parameters;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		public Ads next()
+		{
+			if (this.done) {
+				return null;
+			}
+			Connection con = DatabaseHelper.instance().getConnection();
+			try {
+				// Tables are created on the first import, so until then there is nothing to return
+				if (this.loader == null && !AdDatabaseStorage.tableExists(con, AdDatabaseStorage.this.tableName)) {
+					this.done = true;
+					return null;
+				}
+				PreparedStatement query = DatabaseHelper.instance().prepareCached(con, this.sql);
+				int i = 1;
+				for (String parameter : this.parameters) {
+					query.setString(i++, parameter);
+				}
+				query.setLong(i++, this.loader == null ? Long.MIN_VALUE : this.loader.lastKey());
+				query.setInt(i, this.chunkSize);
+				ResultSet rs = query.executeQuery();
+				if (this.loader == null) {
+					this.loader = new AdsLoader(rs, AdDatabaseStorage.this.tableName, true);
+				}
+				Ads chunk = this.loader.read(rs, this.chunkSize);
+				rs.close();
+				this.done = chunk == null || chunk.numInstances() < this.chunkSize;
+				return chunk;
+			} catch (SQLException ex) {
+				throw new RuntimeException(ex);
+			} finally {
+				try {
+					con.close();
+				} catch (SQLException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		}
+
+		@Override
+		public void close()
+		{
+			this.done = true;
+		}
+	}
+
+	/**
+	 * Private helper method for checking if a table exists.
+	 *
+	 * @param table Table name
+	 * @return True if it exists
+	 */
+	private boolean tableExists(String table)
+	{
+		Connection con = DatabaseHelper.instance().getConnection();
+		try {
+			return AdDatabaseStorage.tableExists(con, table);
+		} catch (SQLException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			try {
+				con.close();
+			} catch (SQLException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+	
+	/**
+	 * Private helper method for checking if a table exists, using a connection which is already checked out.
+	 *
+	 * @param con Pooled connection
+	 * @param table Table name
+	 * @return True if it exists
+	 * @throws SQLException
+	 */
+	private static boolean tableExists(Connection con, String table) throws SQLException
+	{
+		PreparedStatement exists = DatabaseHelper.instance().prepareCached(con,
+				"SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?");
+		exists.setString(1, table);
+		ResultSet rs = exists.executeQuery();
+		boolean found = rs.next();
+		rs.close();
+		return found;
 	}
 	
 	/**
-	 * Return an instance of Ads that only contains target values for Gender, Age Min and Age Max.
+	 * Return an instance of Ads that only contains target values for Gender, Age Min and Age Max, with one instance
+	 * for each distinct combination.
+	 *
+	 * When there is a rollup table it is used instead of the ad table, since it has one row per property value and
+	 * target rather than one per ad. Otherwise the target index covers the query, so the ad rows are never read.
 	 *
 	 * @return Targets in data set
 	 */
 	public Ads getTargets()
 	{
-		return this.get("Gender, Age_Min, Age_Max", "");
+		return this.getTargets(this.query);
+	}
+
+	/**
+	 * Return the targets of the ads which match the query, like getTargets(). The group by attribute of the query is
+	 * ignored.
+	 *
+	 * @param query Query
+	 * @return Targets in data set
+	 */
+	public Ads getTargets(AdQuery query)
+	{
+		String select = "DISTINCT Gender, Age_Min, Age_Max";
+		if (this.rollupCovers(query)) {
+			for (String column : ROLLUPS) {
+				if (this.tableExists(this.rollupTable(column))) {
+					return this.get(query, select, this.rollupTable(column), "");
+				}
+			}
+		}
+		return this.get(query, select, this.tableName, "");
 	}
 
 	@Override
 	public void where(String key, String value)
 	{
-		if (key.equalsIgnoreCase("Age")) {
-			this.where("Age Min", value.substring(0, value.indexOf("-")));
-			this.where("Age Max", value.substring(value.indexOf("-")+1));
-			return;
-		}
-		this.where.add(key.replaceAll(" ", "_"));
-		this.where.add(value);
+		this.query = this.query.where(key, value);
+	}
+
+	/**
+	 * Restrict the following queries to ads from the given partitions.
+	 *
+	 * @param partitions Partition IDs
+	 */
+	public void includePartitions(Collection<Integer> partitions)
+	{
+		this.query = this.query.includePartitions(partitions);
+	}
+
+	/**
+	 * Exclude ads from the given partitions from the following queries. Ads which do not belong to any partition are
+	 * not excluded.
+	 *
+	 * @param partitions Partition IDs
+	 */
+	public void excludePartitions(Collection<Integer> partitions)
+	{
+		this.query = this.query.excludePartitions(partitions);
+	}
+
+	/**
+	 * Restrict the following queries to ads imported after the given time, for example the last 30 days of imports.
+	 *
+	 * @param date Earliest import time, exclusive
+	 */
+	public void importedAfter(Date date)
+	{
+		this.query = this.query.importedAfter(date);
 	}
 
+	/**
+	 * Clear all where clauses, including partition filters.
+	 */
 	@Override
 	public void resetWhere()
 	{
-		this.where = new LinkedList<String>();
+		this.query = AdQuery.all();
+	}
+
+	/**
+	 * Private helper method for checking if a query can be answered from the rollups, which is when it only filters on
+	 * target columns. Rollups do not keep partitions apart, so queries with partition filters always go to the table.
+	 *
+	 * @param query Query
+	 * @return True if the rollups can be used
+	 */
+	private boolean rollupCovers(AdQuery query)
+	{
+		return ROLLUP_TARGETS.containsAll(AdDatabaseStorage.columnFilters(query).keySet()) && !query.partitioned();
+	}
+
+	/**
+	 * Private helper method for getting the filters of a query by column name, sorted by column.
+	 *
+	 * @param query Query
+	 * @return Column => value
+	 */
+	private static SortedMap<String, String> columnFilters(AdQuery query)
+	{
+		SortedMap<String, String> filters = new TreeMap<String, String>();
+		for (Map.Entry<String, String> filter : query.filters().entrySet()) {
+			filters.put(AdDatabaseStorage.column(filter.getKey()), filter.getValue());
+		}
+		return filters;
 	}
 	
 	/**
-	 * Private helper method for generating the SQL where clause.
+	 * Private helper method for generating the SQL where clause. Values are not part of the clause, but are added to
+	 * the parameter list in the order of their placeholders. Since the filters are kept sorted by column, the same
+	 * set of columns always gives the same clause.
+	 * 
+	 * Values are bound as text. For numeric columns SQLite converts them to numbers before comparing, since a bound
+	 * parameter has no affinity of its own.
 	 * 
+	 * @param query Query to take the filters from
+	 * @param parameters List to which the values are added
 	 * @return SQL WHERE clause
 	 */
-	private String createWhereClause()
+	private String createWhereClause(AdQuery query, List<String> parameters)
 	{
 		StringBuilder buffer = new StringBuilder();
 		buffer.append("WHERE Impressions > 0");
-		
-		if (!this.where.isEmpty()) {
-			boolean key = true;
-			buffer.append(" AND ");
-			for (String item : where) {
-				if (key) {
-					buffer.append(item);
-				} else {
-					buffer.append(" = ");
-					if (item.matches("-?\\d+(\\.\\d+)?")) {
-						buffer.append(item);
-					} else {
-						buffer.append("'").append(item).append("'");
-					}
-					buffer.append(" AND ");
-				}
-				key = !key;
-			}
-			return buffer.substring(0, buffer.length()-5);
+		for (Map.Entry<String, String> filter : AdDatabaseStorage.columnFilters(query).entrySet()) {
+			buffer.append(" AND ").append(filter.getKey()).append(" = ?");
+			parameters.add(filter.getValue());
+		}
+		if (query.includedPartitions() != null) {
+			buffer.append(" AND Batch_Id IN (").append(this.placeholders(query.includedPartitions(), parameters))
+					.append(")");
+		}
+		if (query.excludedPartitions() != null && !query.excludedPartitions().isEmpty()) {
+			buffer.append(" AND (Batch_Id IS NULL OR Batch_Id NOT IN (")
+					.append(this.placeholders(query.excludedPartitions(), parameters)).append("))");
+		}
+		if (query.importedAfter() != null) {
+			buffer.append(" AND Batch_Id IN (SELECT id FROM kb_partitions WHERE table_name = ? AND imported_at > ?)");
+			parameters.add(this.tableName);
+			parameters.add(String.valueOf(query.importedAfter().getTime()));
 		}
-		
 		return buffer.toString();
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Private helper method for generating a placeholder list for a set of partitions, adding the IDs to the
+	 * parameter list.
+	 *
+	 * @param partitions Partition IDs
+	 * @param parameters Parameter list
+	 * @return Comma separated placeholders
+	 */
+	private String placeholders(Set<Integer> partitions, List<String> parameters)
+	{
+		StringBuilder buffer = new StringBuilder();
+		for (Integer partition : partitions) {
+			buffer.append(buffer.length() > 0 ? ", ?" : "?");
+			parameters.add(String.valueOf(partition));
+		}
+		// An empty list matches nothing, but IN () is not valid SQL
+		return buffer.length() > 0 ? buffer.toString() : "NULL";
+	}
+}
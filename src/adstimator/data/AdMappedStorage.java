@@ -0,0 +1,976 @@
+package adstimator.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Utils;
+
+/**
+ * Class for storing ads in an append-only binary file which is memory mapped when read.
+ *
+ * The file starts with a header of fixed size holding the schema and the number of rows, followed by the rows. Rows
+ * have a fixed width: numeric columns take eight bytes (a double) and text columns four bytes (an int code). The
+ * strings of the text columns are kept in a dictionary file next to the data file, as a log of column and string
+ * pairs where the code of a string is its position among the strings of its column. Adding ads appends rows and new
+ * strings, and only then updates the row count and dictionary length in the header. Anything past those is ignored
+ * when the file is read, so a failed import leaves the old rows intact.
+ *
+ * Queries scan the mapped rows directly, comparing codes rather than strings, and only the matching rows are turned
+ * into ads. The rows are mapped in chunks of at most CHUNK_SIZE bytes, since a single mapping cannot be larger than
+ * 2 GB. Each chunk holds a whole number of rows, so the chunk of a row is found by dividing its index by the number
+ * of rows per chunk.
+ *
+ * @author erikbrannstrom
+ */
+public class AdMappedStorage implements AdStorage
+{
+	/**
+	 * Size of the header in bytes. Rows start at this offset.
+	 */
+	public static final int HEADER_SIZE = 4096;
+	/**
+	 * Maximum size in bytes of each mapped chunk of rows.
+	 */
+	public static final int CHUNK_SIZE = 1 << 30;
+	// Rows encoded before they are written when adding ads
+	private static final int WRITE_ROWS = 8192;
+	private static final int MAGIC = 0x41445331;
+	private static final int FORMAT = 2;
+	private static final int NUMERIC = 0, TEXT = 1;
+	private static final int MISSING = -1;
+
+	private final File file, dictionaryFile, backupFile;
+	private final int chunkSize;
+	private volatile AdQuery query;
+	// Schema and dictionaries, as of the last time the header was read
+	private List<String> names;
+	private int[] types, offsets;
+	private int width, rowsPerChunk;
+	private long rows, dictionaryLength;
+	private List<Dictionary> dictionaries;
+	private MappedByteBuffer[] chunks;
+
+	/**
+	 * Create storage for a data file. The file is created when ads are first added.
+	 *
+	 * @param file Data file
+	 */
+	public AdMappedStorage(File file)
+	{
+		this(file, CHUNK_SIZE);
+	}
+
+	/**
+	 * Create storage for a data file which is mapped in chunks of the given size. Smaller chunks are only useful for
+	 * testing.
+	 *
+	 * @param file Data file
+	 * @param chunkSize Maximum size in bytes of each mapped chunk
+	 */
+	AdMappedStorage(File file, int chunkSize)
+	{
+		this.file = file;
+		this.chunkSize = chunkSize;
+		this.dictionaryFile = new File(file.getPath() + ".dict");
+		this.backupFile = new File(file.getPath() + ".old");
+		this.query = AdQuery.all();
+		this.names = new ArrayList<String>();
+		this.types = new int[0];
+		this.offsets = new int[0];
+		this.rowsPerChunk = 1;
+		this.dictionaries = new ArrayList<Dictionary>();
+	}
+
+	/**
+	 * @return Data file
+	 */
+	public File file()
+	{
+		return this.file;
+	}
+
+	/**
+	 * Append the ads to the file. Attributes which are not yet part of the schema are added, which means that the
+	 * existing rows are rewritten once with those columns missing.
+	 *
+	 * @param ads Ads to be stored
+	 */
+	@Override
+	public synchronized void add(Ads ads)
+	{
+		this.refresh();
+
+		// Add any new columns to the schema
+		List<String> newNames = new ArrayList<String>(this.names);
+		List<Integer> newTypes = new ArrayList<Integer>();
+		for (int type : this.types) {
+			newTypes.add(type);
+		}
+		for (int i = 0; i < ads.numAttributes(); i++) {
+			Attribute attribute = ads.attribute(i);
+			if (this.columnIndex(newNames, attribute.name()) < 0) {
+				newNames.add(attribute.name());
+				newTypes.add(attribute.isNominal() || attribute.isString() ? TEXT : NUMERIC);
+			}
+		}
+		if (newNames.size() > this.names.size()) {
+			this.rewrite(newNames, newTypes);
+		}
+
+		// Map each column to an attribute of the ads
+		int numColumns = this.names.size();
+		Attribute[] attributes = new Attribute[numColumns];
+		for (int c = 0; c < numColumns; c++) {
+			for (int i = 0; i < ads.numAttributes(); i++) {
+				if (AdMappedStorage.sameColumn(ads.attribute(i).name(), this.names.get(c))) {
+					attributes[c] = ads.attribute(i);
+					break;
+				}
+			}
+		}
+
+		boolean committed = false;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				long position = HEADER_SIZE + this.rows * this.width;
+				ByteBuffer rowBuffer = ByteBuffer.allocate(this.width * Math.min(WRITE_ROWS, ads.numInstances()));
+				for (Instance ad : ads) {
+					for (int c = 0; c < numColumns; c++) {
+						Attribute attribute = attributes[c];
+						boolean missing = attribute == null || ad.isMissing(attribute);
+						if (this.types[c] == TEXT) {
+							rowBuffer.putInt(missing ? MISSING : this.dictionaries.get(c).code(attribute.isNumeric()
+									? AdMappedStorage.format(ad.value(attribute)) : ad.stringValue(attribute)));
+						} else {
+							rowBuffer.putDouble(missing ? Utils.missingValue() : ad.value(attribute));
+						}
+					}
+					if (!rowBuffer.hasRemaining()) {
+						position = AdMappedStorage.write(channel, rowBuffer, position);
+					}
+				}
+				AdMappedStorage.write(channel, rowBuffer, position);
+				channel.force(false);
+				this.appendDictionaries();
+				this.rows += ads.numInstances();
+				this.writeHeader(channel);
+				channel.force(true);
+				committed = true;
+				this.map(channel);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			if (!committed) {
+				// Strings may have been given codes which were never stored
+				this.forget();
+			}
+		}
+	}
+
+	/**
+	 * Private helper method for discarding the schema and dictionaries which have been read, so that refresh() reads
+	 * them from the files again.
+	 */
+	private void forget()
+	{
+		AdMappedStorage.unmap(this.chunks);
+		this.chunks = null;
+		this.rows = 0;
+		this.dictionaryLength = 0;
+		this.dictionaries = new ArrayList<Dictionary>();
+	}
+
+	/**
+	 * Private helper method for writing the encoded rows in a buffer at a position of the file and clearing the
+	 * buffer.
+	 *
+	 * @param channel File channel
+	 * @param rowBuffer Encoded rows
+	 * @param position File position
+	 * @return Position after the rows
+	 * @throws IOException
+	 */
+	private static long write(FileChannel channel, ByteBuffer rowBuffer, long position) throws IOException
+	{
+		rowBuffer.flip();
+		while (rowBuffer.hasRemaining()) {
+			position += channel.write(rowBuffer, position);
+		}
+		rowBuffer.clear();
+		return position;
+	}
+
+	/**
+	 * Return Body, Image Hash, Clicks Count and Impressions of all ads with impressions which match the where clauses,
+	 * like AdDatabaseStorage.get().
+	 *
+	 * @return Ads matching where clause, null if no ads are found
+	 */
+	@Override
+	public Ads get()
+	{
+		return this.get(this.query);
+	}
+
+	/**
+	 * Return the ads which match the query. Aggregates are summed from the matching rows a chunk at a time.
+	 *
+	 * @param query Query, which may not filter on partitions
+	 * @return Ads matching the query, null if no ads are found
+	 */
+	@Override
+	public Ads get(AdQuery query)
+	{
+		if (query.groupBy() != null) {
+			return new AdsAggregator(query.groupBy()).aggregate(this.cursor(query.groupBy(null),
+					AdCursor.DEFAULT_CHUNK_SIZE));
+		}
+		AdMappedStorage.checkPartitions(query);
+		synchronized (this) {
+			return this.getAll(query);
+		}
+	}
+
+	/**
+	 * Private helper method for reading all ads matching a query which is not aggregated. Must be called while holding
+	 * the lock on this object.
+	 *
+	 * @param query Query
+	 * @return Ads matching the query, null if no ads are found
+	 */
+	private Ads getAll(AdQuery query)
+	{
+		this.refresh();
+		if (this.rows == 0) {
+			return null;
+		}
+
+		long[] rowIndices = this.select(query.filters(), 0, Integer.MAX_VALUE);
+		if (rowIndices.length == 0) {
+			return null;
+		}
+		List<Integer> columns = this.adColumns();
+		return this.build(rowIndices, columns, new int[columns.size()][], new ArrayList<List<String>>());
+	}
+
+	/**
+	 * Open a cursor over the same ads as get(). The cursor continues from the row after the last one it has read, and
+	 * sees ads which are added while it is open.
+	 *
+	 * @param chunkSize Maximum number of rows in each chunk
+	 * @return Cursor
+	 */
+	@Override
+	public AdCursor cursor(int chunkSize)
+	{
+		return this.cursor(this.query, chunkSize);
+	}
+
+	/**
+	 * Open a cursor over the same ads as get(query), like cursor(chunkSize).
+	 *
+	 * @param query Query without group by attribute, which may not filter on partitions
+	 * @param chunkSize Maximum number of rows in each chunk
+	 * @return Cursor
+	 */
+	@Override
+	public AdCursor cursor(AdQuery query, int chunkSize)
+	{
+		if (query.groupBy() != null) {
+			throw new IllegalArgumentException("Cursors do not aggregate: " + query);
+		}
+		AdMappedStorage.checkPartitions(query);
+		return new MappedCursor(query.filters(), chunkSize);
+	}
+
+	/**
+	 * Private helper method for rejecting queries with partition filters, since imports are not kept apart in the
+	 * file.
+	 *
+	 * @param query Query
+	 */
+	private static void checkPartitions(AdQuery query)
+	{
+		if (query.partitioned()) {
+			throw new IllegalArgumentException("Memory mapped storage has no partitions: " + query);
+		}
+	}
+
+	/**
+	 * Cursor which reads the mapped rows in chunks.
+	 */
+	private class MappedCursor implements AdCursor
+	{
+		private final Map<String, String> filters;
+		private final int chunkSize;
+		private long position;
+		private int[][] codes;
+		private final List<List<String>> values = new ArrayList<List<String>>();
+		private boolean done;
+
+		MappedCursor(Map<String, String> filters, int chunkSize)
+		{
+			this.filters = filters;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		public Ads next()
+		{
+			synchronized (AdMappedStorage.this) {
+				if (this.done) {
+					return null;
+				}
+				AdMappedStorage.this.refresh();
+				long[] rowIndices = new long[0];
+				if (this.position < AdMappedStorage.this.rows) {
+					rowIndices = AdMappedStorage.this.select(this.filters, this.position, this.chunkSize);
+				}
+				if (rowIndices.length < this.chunkSize) {
+					this.done = true;
+				} else {
+					this.position = rowIndices[rowIndices.length - 1] + 1;
+				}
+				if (rowIndices.length == 0) {
+					return null;
+				}
+				List<Integer> columns = AdMappedStorage.this.adColumns();
+				if (this.codes == null) {
+					this.codes = new int[columns.size()][];
+				}
+				return AdMappedStorage.this.build(rowIndices, columns, this.codes, this.values);
+			}
+		}
+
+		@Override
+		public void close()
+		{
+			this.done = true;
+		}
+	}
+
+	/**
+	 * Private helper method for getting the columns returned by get(), which are the ones of Body, Image Hash, Clicks
+	 * Count and Impressions that exist.
+	 *
+	 * @return Column indices
+	 */
+	private List<Integer> adColumns()
+	{
+		List<Integer> columns = new ArrayList<Integer>();
+		for (String name : new String[]{"Body", "Image Hash", "Clicks Count", "Impressions"}) {
+			int c = this.columnIndex(this.names, name);
+			if (c >= 0) {
+				columns.add(c);
+			}
+		}
+		return columns;
+	}
+
+	/**
+	 * Private helper method for reading mapped rows into a set of ads. Nominal values are only those of the rows read,
+	 * in order of first appearance. The codes and values are kept by the caller, so that they can be carried over to
+	 * the next set of rows.
+	 *
+	 * @param rowIndices Rows to read
+	 * @param columns Columns to read
+	 * @param codes Per column, 1 + the nominal index of each dictionary code, or 0 if not seen. Arrays are created and
+	 *              grown as needed
+	 * @param values Per column, the nominal values seen so far, filled in as needed
+	 * @return Ads
+	 */
+	private Ads build(long[] rowIndices, List<Integer> columns, int[][] codes, List<List<String>> values)
+	{
+		int numColumns = columns.size();
+		for (int i = values.size(); i < numColumns; i++) {
+			values.add(this.types[columns.get(i)] == TEXT ? new ArrayList<String>() : null);
+		}
+		for (int i = 0; i < numColumns; i++) {
+			int c = columns.get(i);
+			if (this.types[c] == TEXT && (codes[i] == null || codes[i].length < this.dictionaries.get(c).size())) {
+				codes[i] = codes[i] == null ? new int[this.dictionaries.get(c).size()]
+						: Arrays.copyOf(codes[i], this.dictionaries.get(c).size());
+			}
+		}
+		double[][] data = new double[rowIndices.length][numColumns];
+		for (int r = 0; r < rowIndices.length; r++) {
+			MappedByteBuffer buf = this.chunk(rowIndices[r]);
+			int base = this.base(rowIndices[r]);
+			for (int i = 0; i < numColumns; i++) {
+				int c = columns.get(i);
+				if (this.types[c] == NUMERIC) {
+					data[r][i] = buf.getDouble(base + this.offsets[c]);
+					continue;
+				}
+				int code = buf.getInt(base + this.offsets[c]);
+				if (code == MISSING) {
+					data[r][i] = Utils.missingValue();
+					continue;
+				}
+				if (codes[i][code] == 0) {
+					values.get(i).add(this.dictionaries.get(c).value(code));
+					codes[i][code] = values.get(i).size();
+				}
+				data[r][i] = codes[i][code] - 1;
+			}
+		}
+
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for (int i = 0; i < numColumns; i++) {
+			String name = this.names.get(columns.get(i));
+			attributes.add(values.get(i) == null ? new Attribute(name)
+					: new Attribute(name, new ArrayList<String>(values.get(i))));
+		}
+		Ads ads = new Ads(this.file.getName(), attributes, data.length);
+		int width = ads.numAttributes();
+		for (double[] row : data) {
+			if (row.length < width) {
+				int length = row.length;
+				row = Arrays.copyOf(row, width);
+				Arrays.fill(row, length, width, Utils.missingValue());
+			}
+			ads.append(row);
+		}
+		return ads;
+	}
+
+	/**
+	 * Read all ads with impressions into a columnar snapshot, which is used for aggregates and targets.
+	 *
+	 * @return Snapshot, empty if there are no ads
+	 */
+	public synchronized KnowledgeBaseSnapshot snapshot()
+	{
+		this.refresh();
+		// The snapshot grows as needed, and skips ads without impressions
+		KnowledgeBaseSnapshot snapshot = KnowledgeBaseSnapshot.empty((int)Math.min(this.rows, WRITE_ROWS));
+		int body = this.columnIndex(this.names, "Body");
+		int image = this.columnIndex(this.names, "Image Hash");
+		int gender = this.columnIndex(this.names, "Gender");
+		int ageMin = this.columnIndex(this.names, "Age Min");
+		int ageMax = this.columnIndex(this.names, "Age Max");
+		int clicks = this.columnIndex(this.names, "Clicks Count");
+		int impressions = this.columnIndex(this.names, "Impressions");
+		for (long row = 0; row < this.rows; row++) {
+			snapshot.add(this.text(row, body), this.text(row, image), this.text(row, gender),
+					this.number(row, ageMin), this.number(row, ageMax), this.number(row, clicks),
+					this.number(row, impressions));
+		}
+		return snapshot;
+	}
+
+	@Override
+	public void where(String key, String value)
+	{
+		this.query = this.query.where(key, value);
+	}
+
+	@Override
+	public void resetWhere()
+	{
+		this.query = AdQuery.all();
+	}
+
+	/**
+	 * Delete the data and dictionary files.
+	 */
+	public synchronized void drop()
+	{
+		// The files cannot be deleted on all platforms while they are mapped
+		AdMappedStorage.unmap(this.chunks);
+		this.chunks = null;
+		for (File file : new File[]{this.file, this.dictionaryFile, this.backupFile}) {
+			if (file.exists() && !file.delete()) {
+				throw new RuntimeException("Could not delete " + file);
+			}
+		}
+		this.names = new ArrayList<String>();
+		this.types = new int[0];
+		this.offsets = new int[0];
+		this.width = 0;
+		this.rowsPerChunk = 1;
+		this.rows = 0;
+		this.dictionaryLength = 0;
+		this.dictionaries = new ArrayList<Dictionary>();
+	}
+
+	/**
+	 * Private helper method for finding the rows with impressions which match a set of filters. The rows must be
+	 * mapped.
+	 *
+	 * @param filters Attribute => value, null for none
+	 * @param from First row to look at
+	 * @param limit Maximum number of rows to return
+	 * @return Indices of matching rows, in order
+	 */
+	private long[] select(Map<String, String> filters, long from, int limit)
+	{
+		int impressions = this.columnIndex(this.names, "Impressions");
+		int numFilters = filters == null ? 0 : filters.size();
+		int[] filterOffsets = new int[numFilters];
+		int[] filterTypes = new int[numFilters];
+		int[] filterCodes = new int[numFilters];
+		double[] filterValues = new double[numFilters];
+		if (filters != null) {
+			int f = 0;
+			for (Map.Entry<String, String> filter : filters.entrySet()) {
+				int c = this.columnIndex(this.names, filter.getKey());
+				if (c < 0) {
+					throw new RuntimeException("No such column: " + filter.getKey());
+				}
+				filterOffsets[f] = this.offsets[c];
+				filterTypes[f] = this.types[c];
+				if (this.types[c] == TEXT) {
+					filterCodes[f] = this.dictionaries.get(c).find(filter.getValue());
+					if (filterCodes[f] < 0) {
+						return new long[0];
+					}
+				} else {
+					try {
+						filterValues[f] = Double.parseDouble(filter.getValue());
+					} catch (NumberFormatException ex) {
+						return new long[0];
+					}
+				}
+				f++;
+			}
+		}
+
+		// Grown as needed, since most rows may not match
+		long[] matches = new long[(int)Math.min(Math.min(limit, WRITE_ROWS), Math.max(this.rows - from, 0))];
+		int count = 0;
+		rows:
+		for (long row = from; row < this.rows && count < limit; row++) {
+			MappedByteBuffer buf = this.chunk(row);
+			int base = this.base(row);
+			if (impressions >= 0 && !(buf.getDouble(base + this.offsets[impressions]) > 0)) {
+				continue;
+			}
+			for (int f = 0; f < numFilters; f++) {
+				if (filterTypes[f] == TEXT) {
+					if (buf.getInt(base + filterOffsets[f]) != filterCodes[f]) {
+						continue rows;
+					}
+				} else if (buf.getDouble(base + filterOffsets[f]) != filterValues[f]) {
+					continue rows;
+				}
+			}
+			if (count == matches.length) {
+				matches = Arrays.copyOf(matches, (int)Math.min((long)limit, 2L * count));
+			}
+			matches[count++] = row;
+		}
+		return Arrays.copyOf(matches, count);
+	}
+
+	/**
+	 * Private helper method for getting the mapped chunk holding a row.
+	 */
+	private MappedByteBuffer chunk(long row)
+	{
+		return this.chunks[(int)(row / this.rowsPerChunk)];
+	}
+
+	/**
+	 * Private helper method for getting the offset of a row within its chunk.
+	 */
+	private int base(long row)
+	{
+		return (int)(row % this.rowsPerChunk) * this.width;
+	}
+
+	/**
+	 * Private helper method for reading a text value of a mapped row.
+	 */
+	private String text(long row, int column)
+	{
+		if (column < 0) {
+			return null;
+		}
+		int code = this.chunk(row).getInt(this.base(row) + this.offsets[column]);
+		return code == MISSING ? null : this.dictionaries.get(column).value(code);
+	}
+
+	/**
+	 * Private helper method for reading a numeric value of a mapped row.
+	 */
+	private double number(long row, int column)
+	{
+		return column < 0 ? Utils.missingValue() : this.chunk(row).getDouble(this.base(row) + this.offsets[column]);
+	}
+
+	/**
+	 * Private helper method for reading the header and dictionaries if the file has changed since they were last
+	 * read, and mapping the rows.
+	 */
+	private void refresh()
+	{
+		if (!this.file.exists() && this.backupFile.exists() && !this.backupFile.renameTo(this.file)) {
+			// The file was being replaced when the application stopped, and the old one is still there
+			throw new RuntimeException("Could not restore " + this.file);
+		}
+		if (!this.file.exists()) {
+			this.drop();
+			return;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+			try {
+				if (raf.readInt() != MAGIC || raf.readInt() != FORMAT) {
+					throw new RuntimeException(this.file + " is not an ad file.");
+				}
+				long rows = raf.readLong();
+				long dictionaryLength = raf.readLong();
+				int numColumns = raf.readInt();
+				if (this.chunks != null && rows == this.rows && numColumns == this.names.size()) {
+					return;
+				}
+				this.names = new ArrayList<String>(numColumns);
+				this.types = new int[numColumns];
+				for (int c = 0; c < numColumns; c++) {
+					this.types[c] = raf.readByte();
+					byte[] name = new byte[raf.readUnsignedShort()];
+					raf.readFully(name);
+					this.names.add(new String(name, "UTF-8"));
+				}
+				this.layout();
+				this.rows = rows;
+				this.readDictionaries(dictionaryLength);
+				this.map(raf.getChannel());
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Private helper method for mapping the rows in chunks, replacing the old mappings.
+	 */
+	private void map(FileChannel channel) throws IOException
+	{
+		AdMappedStorage.unmap(this.chunks);
+		this.chunks = null;
+		int numChunks = (int)((this.rows + this.rowsPerChunk - 1) / this.rowsPerChunk);
+		MappedByteBuffer[] chunks = new MappedByteBuffer[numChunks];
+		for (int i = 0; i < numChunks; i++) {
+			long first = (long)i * this.rowsPerChunk;
+			long count = Math.min(this.rowsPerChunk, this.rows - first);
+			chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * this.width,
+					count * this.width);
+		}
+		this.chunks = chunks;
+	}
+
+	/**
+	 * Private helper method for releasing mapped chunks right away instead of when they are garbage collected, which
+	 * is needed before the file can be deleted or replaced on some platforms. The chunks must not be used afterwards.
+	 * If the JVM does not allow this, they are left to the garbage collector.
+	 */
+	private static void unmap(MappedByteBuffer[] chunks)
+	{
+		if (chunks == null) {
+			return;
+		}
+		for (MappedByteBuffer chunk : chunks) {
+			try {
+				java.lang.reflect.Method cleanerMethod = chunk.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(chunk);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			} catch (Exception ex) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Private helper method for computing the column offsets, row width and rows per chunk from the column types.
+	 */
+	private void layout()
+	{
+		this.offsets = new int[this.types.length];
+		this.width = 0;
+		for (int c = 0; c < this.types.length; c++) {
+			this.offsets[c] = this.width;
+			this.width += this.types[c] == TEXT ? 4 : 8;
+		}
+		this.rowsPerChunk = Math.max(1, this.chunkSize / Math.max(this.width, 1));
+	}
+
+	/**
+	 * Private helper method for changing the schema. Existing rows are written to a new file with the new columns
+	 * missing, which then replaces the old file. The dictionaries are kept, since new columns are added last.
+	 */
+	private void rewrite(List<String> newNames, List<Integer> newTypes)
+	{
+		List<String> oldNames = this.names;
+		int[] oldTypes = this.types, oldOffsets = this.offsets;
+		int oldWidth = this.width, oldRowsPerChunk = this.rowsPerChunk;
+		MappedByteBuffer[] old = this.chunks;
+
+		this.names = newNames;
+		this.types = new int[newTypes.size()];
+		for (int c = 0; c < this.types.length; c++) {
+			this.types[c] = newTypes.get(c);
+		}
+		this.layout();
+		while (this.dictionaries.size() < this.names.size()) {
+			this.dictionaries.add(new Dictionary());
+		}
+
+		File tmp = new File(this.file.getPath() + ".tmp");
+		boolean replaced = false;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				ByteBuffer row = ByteBuffer.allocate(this.width);
+				for (long r = 0; r < this.rows; r++) {
+					row.clear();
+					MappedByteBuffer chunk = old[(int)(r / oldRowsPerChunk)];
+					int base = (int)(r % oldRowsPerChunk) * oldWidth;
+					for (int c = 0; c < this.names.size(); c++) {
+						if (c < oldNames.size()) {
+							if (oldTypes[c] == TEXT) {
+								row.putInt(chunk.getInt(base + oldOffsets[c]));
+							} else {
+								row.putDouble(chunk.getDouble(base + oldOffsets[c]));
+							}
+						} else if (this.types[c] == TEXT) {
+							row.putInt(MISSING);
+						} else {
+							row.putDouble(Utils.missingValue());
+						}
+					}
+					row.flip();
+					channel.write(row, HEADER_SIZE + r * this.width);
+				}
+				this.writeHeader(channel);
+				channel.force(true);
+			} finally {
+				raf.close();
+			}
+			// The old file cannot be replaced on all platforms while it is mapped
+			AdMappedStorage.unmap(old);
+			this.chunks = null;
+			this.replace(tmp);
+			replaced = true;
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			if (!replaced) {
+				// The schema in memory is not the one in the file
+				this.forget();
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Private helper method for replacing the data file with a new one. Where renaming cannot replace a file, the old
+	 * file is first renamed to a backup, which refresh() restores if the new file never took its place.
+	 *
+	 * @param tmp New data file
+	 */
+	private void replace(File tmp)
+	{
+		if (tmp.renameTo(this.file)) {
+			return;
+		}
+		if (this.backupFile.exists() && !this.backupFile.delete() || !this.file.renameTo(this.backupFile)) {
+			throw new RuntimeException("Could not replace " + this.file);
+		}
+		if (!tmp.renameTo(this.file)) {
+			this.backupFile.renameTo(this.file);
+			throw new RuntimeException("Could not replace " + this.file);
+		}
+		this.backupFile.delete();
+	}
+
+	/**
+	 * Private helper method for writing the header.
+	 */
+	private void writeHeader(FileChannel channel) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(FORMAT);
+		header.putLong(this.rows);
+		header.putLong(this.dictionaryLength);
+		header.putInt(this.names.size());
+		try {
+			for (int c = 0; c < this.names.size(); c++) {
+				byte[] name = this.names.get(c).getBytes("UTF-8");
+				header.put((byte)this.types[c]);
+				header.putShort((short)name.length);
+				header.put(name);
+			}
+		} catch (java.nio.BufferOverflowException ex) {
+			throw new RuntimeException("The schema does not fit in the header of " + this.file, ex);
+		}
+		header.clear();
+		channel.write(header, 0);
+	}
+
+	/**
+	 * Private helper method for appending the strings which have been given codes since the dictionaries were last
+	 * stored. They are written after the stored length, so that anything left by a failed import is overwritten.
+	 */
+	private void appendDictionaries() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (int c = 0; c < this.dictionaries.size(); c++) {
+			Dictionary dictionary = this.dictionaries.get(c);
+			for (int code = dictionary.stored; code < dictionary.size(); code++) {
+				out.writeInt(c);
+				out.writeUTF(dictionary.value(code));
+			}
+		}
+		out.close();
+		if (bytes.size() == 0) {
+			return;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(this.dictionaryFile, "rw");
+		try {
+			raf.seek(this.dictionaryLength);
+			raf.write(bytes.toByteArray());
+			raf.getChannel().force(false);
+			this.dictionaryLength += bytes.size();
+		} finally {
+			raf.close();
+		}
+		for (Dictionary dictionary : this.dictionaries) {
+			dictionary.stored = dictionary.size();
+		}
+	}
+
+	/**
+	 * Private helper method for reading the dictionaries up to the stored length. Only the strings after the length
+	 * which has already been read are read, unless nothing has been read yet.
+	 *
+	 * @param length Stored length of the dictionary file
+	 */
+	private void readDictionaries(long length) throws IOException
+	{
+		if (length < this.dictionaryLength || this.dictionaryLength == 0) {
+			this.dictionaries = new ArrayList<Dictionary>();
+			this.dictionaryLength = 0;
+		}
+		if (length > this.dictionaryLength) {
+			byte[] bytes = new byte[(int)(length - this.dictionaryLength)];
+			RandomAccessFile raf = new RandomAccessFile(this.dictionaryFile, "r");
+			try {
+				raf.seek(this.dictionaryLength);
+				raf.readFully(bytes);
+			} finally {
+				raf.close();
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			while (in.available() > 0) {
+				int c = in.readInt();
+				while (this.dictionaries.size() <= c) {
+					this.dictionaries.add(new Dictionary());
+				}
+				this.dictionaries.get(c).code(in.readUTF());
+			}
+			this.dictionaryLength = length;
+		}
+		while (this.dictionaries.size() < this.names.size()) {
+			this.dictionaries.add(new Dictionary());
+		}
+		for (Dictionary dictionary : this.dictionaries) {
+			dictionary.stored = dictionary.size();
+		}
+	}
+
+	/**
+	 * Private helper method for finding a column by attribute name. Names match regardless of case and of whether
+	 * spaces or underscores are used, just like table columns.
+	 */
+	private int columnIndex(List<String> names, String name)
+	{
+		for (int c = 0; c < names.size(); c++) {
+			if (AdMappedStorage.sameColumn(names.get(c), name)) {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean sameColumn(String a, String b)
+	{
+		return AdDatabaseStorage.column(a).equalsIgnoreCase(AdDatabaseStorage.column(b));
+	}
+
+	/**
+	 * Private helper method for formatting a number stored in a text column.
+	 */
+	private static String format(double value)
+	{
+		return value == Math.rint(value) ? String.valueOf((long)value) : String.valueOf(value);
+	}
+
+	/**
+	 * Dictionary mapping the strings of a text column to consecutive int codes.
+	 */
+	private static class Dictionary
+	{
+		private final Map<String, Integer> codes = new HashMap<String, Integer>();
+		private final List<String> values = new ArrayList<String>();
+		// Number of strings which are stored in the dictionary file
+		private int stored;
+
+		int code(String value)
+		{
+			Integer code = this.codes.get(value);
+			if (code == null) {
+				code = this.values.size();
+				this.codes.put(value, code);
+				this.values.add(value);
+			}
+			return code;
+		}
+
+		int find(String value)
+		{
+			Integer code = this.codes.get(value);
+			return code == null ? -1 : code;
+		}
+
+		String value(int code)
+		{
+			return this.values.get(code);
+		}
+
+		int size()
+		{
+			return this.values.size();
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package adstimator.data;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable description of a query against an ad storage: which ads to include and whether to aggregate them.
+ *
+ * Queries are built from AdQuery.all() with methods which each return a new query, for example
+ * AdQuery.all().where("Gender", "Men").groupBy("Body"). Since a query never changes, the same storage can run any
+ * number of queries from different threads at the same time, and queries can be used as cache keys.
+ *
+ * Without a group by attribute, a query returns Body, Image Hash, Clicks Count and Impressions of each matching ad.
+ * With one, it returns that attribute and the sums of Clicks Count and Impressions for each of its values.
+ *
+ * @author erikbrannstrom
+ */
+public final class AdQuery
+{
+	private static final AdQuery ALL = new AdQuery(new TreeMap<String, String>(), null, null, null, null);
+	private final SortedMap<String, String> filters;
+	private final SortedSet<Integer> includedPartitions, excludedPartitions;
+	private final Long importedAfter;
+	private final String groupBy;
+
+	/**
+	 * Private constructor, which takes ownership of the collections.
+	 */
+	private AdQuery(SortedMap<String, String> filters, SortedSet<Integer> includedPartitions,
+			SortedSet<Integer> excludedPartitions, Long importedAfter, String groupBy)
+	{
+		this.filters = filters;
+		this.includedPartitions = includedPartitions;
+		this.excludedPartitions = excludedPartitions;
+		this.importedAfter = importedAfter;
+		this.groupBy = groupBy;
+	}
+
+	/**
+	 * Get the query for all ads.
+	 *
+	 * @return Query without filters
+	 */
+	public static AdQuery all()
+	{
+		return ALL;
+	}
+
+	/**
+	 * Get the query for the ads of a target.
+	 *
+	 * @param target Target, property => value, null for all targets
+	 * @return Query
+	 */
+	public static AdQuery target(Map<String, String> target)
+	{
+		AdQuery query = ALL;
+		if (target != null) {
+			for (Map.Entry<String, String> filter : target.entrySet()) {
+				query = query.where(filter.getKey(), filter.getValue());
+			}
+		}
+		return query;
+	}
+
+	/**
+	 * Add a filter on an attribute. The age range may be given as a single filter on Age, such as 18-24, which is the
+	 * same as filters on Age Min and Age Max.
+	 *
+	 * @param key Name of attribute
+	 * @param value Value of attribute
+	 * @return New query
+	 */
+	public AdQuery where(String key, String value)
+	{
+		if (key.equalsIgnoreCase("Age")) {
+			return this.where("Age Min", value.substring(0, value.indexOf("-")))
+					.where("Age Max", value.substring(value.indexOf("-") + 1));
+		}
+		SortedMap<String, String> filters = new TreeMap<String, String>(this.filters);
+		filters.put(key.replaceAll("_", " "), value);
+		return new AdQuery(filters, this.includedPartitions, this.excludedPartitions, this.importedAfter,
+				this.groupBy);
+	}
+
+	/**
+	 * Only include ads from the given partitions.
+	 *
+	 * @param partitions Partition IDs
+	 * @return New query
+	 */
+	public AdQuery includePartitions(Collection<Integer> partitions)
+	{
+		return new AdQuery(this.filters, new TreeSet<Integer>(partitions), this.excludedPartitions,
+				this.importedAfter, this.groupBy);
+	}
+
+	/**
+	 * Exclude ads from the given partitions. Ads which do not belong to any partition are not excluded.
+	 *
+	 * @param partitions Partition IDs
+	 * @return New query
+	 */
+	public AdQuery excludePartitions(Collection<Integer> partitions)
+	{
+		return new AdQuery(this.filters, this.includedPartitions, new TreeSet<Integer>(partitions),
+				this.importedAfter, this.groupBy);
+	}
+
+	/**
+	 * Only include ads imported after the given time, for example the last 30 days of imports.
+	 *
+	 * @param date Earliest import time, exclusive
+	 * @return New query
+	 */
+	public AdQuery importedAfter(Date date)
+	{
+		return new AdQuery(this.filters, this.includedPartitions, this.excludedPartitions, date.getTime(),
+				this.groupBy);
+	}
+
+	/**
+	 * Aggregate the ads on an attribute.
+	 *
+	 * @param attribute Name of attribute, null to not aggregate
+	 * @return New query
+	 */
+	public AdQuery groupBy(String attribute)
+	{
+		return new AdQuery(this.filters, this.includedPartitions, this.excludedPartitions, this.importedAfter,
+				attribute == null ? null : attribute.replaceAll("_", " "));
+	}
+
+	/**
+	 * @return Filters, attribute => value, sorted by attribute
+	 */
+	public SortedMap<String, String> filters()
+	{
+		return Collections.unmodifiableSortedMap(this.filters);
+	}
+
+	/**
+	 * @return Partitions to include, null for all
+	 */
+	public Set<Integer> includedPartitions()
+	{
+		return this.includedPartitions == null ? null : Collections.unmodifiableSet(this.includedPartitions);
+	}
+
+	/**
+	 * @return Partitions to exclude, null for none
+	 */
+	public Set<Integer> excludedPartitions()
+	{
+		return this.excludedPartitions == null ? null : Collections.unmodifiableSet(this.excludedPartitions);
+	}
+
+	/**
+	 * @return Earliest import time, exclusive, null for any
+	 */
+	public Date importedAfter()
+	{
+		return this.importedAfter == null ? null : new Date(this.importedAfter);
+	}
+
+	/**
+	 * @return Attribute to aggregate on, null if the ads are not aggregated
+	 */
+	public String groupBy()
+	{
+		return this.groupBy;
+	}
+
+	/**
+	 * Check if the query filters on partitions in any way.
+	 *
+	 * @return True if any partition filter is set
+	 */
+	public boolean partitioned()
+	{
+		return this.includedPartitions != null || this.excludedPartitions != null || this.importedAfter != null;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof AdQuery)) {
+			return false;
+		}
+		AdQuery other = (AdQuery) o;
+		return this.filters.equals(other.filters) && AdQuery.same(this.includedPartitions, other.includedPartitions)
+				&& AdQuery.same(this.excludedPartitions, other.excludedPartitions)
+				&& AdQuery.same(this.importedAfter, other.importedAfter) && AdQuery.same(this.groupBy, other.groupBy);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		int hash = this.filters.hashCode();
+		hash = 31 * hash + (this.includedPartitions == null ? 0 : this.includedPartitions.hashCode());
+		hash = 31 * hash + (this.excludedPartitions == null ? 0 : this.excludedPartitions.hashCode());
+		hash = 31 * hash + (this.importedAfter == null ? 0 : this.importedAfter.hashCode());
+		hash = 31 * hash + (this.groupBy == null ? 0 : this.groupBy.hashCode());
+		return hash;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("AdQuery[where %s, include %s, exclude %s, imported after %s, group by %s]",
+				this.filters, this.includedPartitions, this.excludedPartitions, this.importedAfter, this.groupBy);
+	}
+
+	/**
+	 * Private helper method for comparing values which may be null.
+	 */
+	private static boolean same(Object a, Object b)
+	{
+		return a == null ? b == null : a.equals(b);
+	}
+}
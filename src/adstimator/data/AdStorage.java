@@ -3,6 +3,10 @@ package adstimator.data;
 /**
  * Interface for interacting with persistent data storage.
  * 
+ * Queries are either given as immutable AdQuery objects, which is safe from any number of threads, or built up with
+ * where() on the storage itself. The latter is a convenience for code which owns its storage object, since the where
+ * clauses are shared by everyone using the same object.
+ * 
  * @author erikbrannstrom
  */
 public interface AdStorage
@@ -14,6 +18,24 @@ public interface AdStorage
 	 */
 	public void add(Ads ads);
 	
+	/**
+	 * Return the ads which match the query, aggregated if the query has a group by attribute.
+	 * 
+	 * @param query Query
+	 * @return Ads matching the query, null if no ads are found
+	 */
+	public Ads get(AdQuery query);
+	
+	/**
+	 * Open a cursor over the ads which get(query) would return, for reading them a chunk at a time. Queries with a
+	 * group by attribute are not supported; use an AdsAggregator on the chunks instead.
+	 * 
+	 * @param query Query without group by attribute
+	 * @param chunkSize Maximum number of rows in each chunk
+	 * @return Cursor
+	 */
+	public AdCursor cursor(AdQuery query, int chunkSize);
+	
 	/**
 	 * Return all ads which match the where clauses given. If the where method has not been used, all ads in storage
 	 * should be returned.
@@ -22,6 +44,15 @@ public interface AdStorage
 	 */
 	public Ads get();
 	
+	/**
+	 * Open a cursor over the ads which get() would return, for reading them a chunk at a time. The where clauses are
+	 * those in place when the cursor is opened.
+	 * 
+	 * @param chunkSize Maximum number of rows in each chunk
+	 * @return Cursor
+	 */
+	public AdCursor cursor(int chunkSize);
+	
 	/**
 	 * Add a where clause. This affects which ads will be returned by the next call to get().
 	 * 
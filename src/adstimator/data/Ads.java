@@ -26,6 +26,10 @@ public class Ads extends Instances
 	 * List of metrics.
 	 */
 	public static final List<String> METRICS = Arrays.asList("Clicks Count", "Impressions", "Click Rate");
+	/**
+	 * Attribute identifying an ad in Facebook reports, used as key when merging imports.
+	 */
+	public static final String KEY = "Ad ID";
 
 	/**
 	 * Create a new set of ads from instances.
@@ -35,8 +39,40 @@ public class Ads extends Instances
 	public Ads(Instances inst)
 	{
 		super(inst);
+		this.ensureMetrics();
+	}
+
+	/**
+	 * Create a new, empty set of ads with the given attributes.
+	 * 
+	 * @param name Name of the data set
+	 * @param attributes Attributes of the data set
+	 * @param capacity Initial capacity
+	 */
+	public Ads(String name, ArrayList<Attribute> attributes, int capacity)
+	{
+		super(name, attributes, capacity);
+		this.ensureMetrics();
+	}
 
-		// Make sure we have attribute for metrics, otherwise add rate attribute
+	/**
+	 * Append a row of values to the data set. Unlike add(), the values are not copied, so the caller must not modify
+	 * the array afterwards. The array must have one value for each attribute.
+	 * 
+	 * @param values Attribute values, in attribute order
+	 */
+	void append(double[] values)
+	{
+		DenseInstance inst = new DenseInstance(1.0, values);
+		inst.setDataset(this);
+		this.m_Instances.add(inst);
+	}
+
+	/**
+	 * Private helper method which makes sure we have an attribute for metrics, otherwise adds the rate attribute.
+	 */
+	private void ensureMetrics()
+	{
 		boolean hasMetrics = false;
 		for (int i = 0; i < this.numAttributes(); i++) {
 			if ( Ads.METRICS.contains(this.attribute(i).name()) ) {
@@ -109,6 +145,53 @@ public class Ads extends Instances
 		this.deleteAttributeAt(actions.index());
 	}
 
+	/**
+	 * Collapse ads which have the same value for every attribute other than the metrics into a single ad, with the
+	 * sum of their clicks and impressions. Reports often have several rows which only differ in attributes that are
+	 * not imported, and since all queries sum the metrics or turn them into rates, the collapsed ads give the same
+	 * results with fewer rows. If the ads have a Click Rate, it is computed again from the summed metrics.
+	 * 
+	 * @return New set of ads with the same attributes, where the ads are in order of first appearance
+	 */
+	public Ads collapse()
+	{
+		Attribute actions = this.attribute("Clicks Count");
+		Attribute impressions = this.attribute("Impressions");
+
+		if (actions == null || impressions == null) {
+			throw new RuntimeException("The required attributes could not be found in data set.");
+		}
+
+		// Ads are grouped on the values of all other attributes, where missing values are equal to each other
+		Map<List<Double>, double[]> groups = new LinkedHashMap<List<Double>, double[]>();
+		for (Instance ad : this) {
+			double[] values = ad.toDoubleArray();
+			List<Double> key = new ArrayList<Double>(values.length);
+			for (int i = 0; i < values.length; i++) {
+				if (!Ads.METRICS.contains(this.attribute(i).name())) {
+					key.add(values[i]);
+				}
+			}
+			double[] group = groups.get(key);
+			if (group == null) {
+				groups.put(key, values);
+			} else {
+				group[actions.index()] += values[actions.index()];
+				group[impressions.index()] += values[impressions.index()];
+			}
+		}
+
+		Attribute rate = this.attribute("Click Rate");
+		Ads collapsed = new Ads(new Instances(this, groups.size()));
+		for (double[] values : groups.values()) {
+			if (rate != null) {
+				values[rate.index()] = values[actions.index()] / values[impressions.index()];
+			}
+			collapsed.append(values);
+		}
+		return collapsed;
+	}
+
 	/**
 	 * Get the average action rate of the whole data set.
 	 * 
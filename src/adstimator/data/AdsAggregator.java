@@ -0,0 +1,180 @@
+package adstimator.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Utils;
+
+/**
+ * Consumer which sums the clicks and impressions of ads per distinct combination of some attributes, one chunk at a
+ * time. Memory use depends on the number of groups rather than the number of ads.
+ *
+ * Grouping on a single ad property gives the same result as an aggregate query, while grouping on all ad properties
+ * turns a cursor over a knowledge base into a training set with one row per ad.
+ *
+ * @author erikbrannstrom
+ */
+public class AdsAggregator
+{
+	private final List<String> groupBy;
+	private final Map<List<Object>, double[]> groups;
+	private boolean[] numeric;
+
+	/**
+	 * Create an aggregator for one attribute.
+	 *
+	 * @param attribute Name of attribute to group on
+	 */
+	public AdsAggregator(String attribute)
+	{
+		this(Arrays.asList(attribute));
+	}
+
+	/**
+	 * Create an aggregator for a combination of attributes.
+	 *
+	 * @param groupBy Names of attributes to group on
+	 */
+	public AdsAggregator(List<String> groupBy)
+	{
+		this.groupBy = new ArrayList<String>(groupBy);
+		this.groups = new LinkedHashMap<List<Object>, double[]>();
+	}
+
+	/**
+	 * Read all chunks of a cursor and close it.
+	 *
+	 * @param cursor Cursor to read
+	 * @return Aggregated ads, null if the cursor had no ads
+	 */
+	public Ads aggregate(AdCursor cursor)
+	{
+		try {
+			Ads chunk;
+			while ((chunk = cursor.next()) != null) {
+				this.add(chunk);
+			}
+		} finally {
+			cursor.close();
+		}
+		return this.result();
+	}
+
+	/**
+	 * Add a chunk of ads to the sums. The chunks must have the grouped attributes, Clicks Count and Impressions.
+	 *
+	 * @param chunk Ads
+	 */
+	public void add(Ads chunk)
+	{
+		int numGroupBy = this.groupBy.size();
+		Attribute[] attributes = new Attribute[numGroupBy];
+		for (int i = 0; i < numGroupBy; i++) {
+			attributes[i] = AdsAggregator.required(chunk, this.groupBy.get(i));
+		}
+		if (this.numeric == null) {
+			this.numeric = new boolean[numGroupBy];
+			for (int i = 0; i < numGroupBy; i++) {
+				this.numeric[i] = attributes[i].isNumeric();
+			}
+		}
+		Attribute clicks = AdsAggregator.required(chunk, "Clicks Count");
+		Attribute impressions = AdsAggregator.required(chunk, "Impressions");
+
+		for (Instance ad : chunk) {
+			List<Object> key = new ArrayList<Object>(numGroupBy);
+			for (int i = 0; i < numGroupBy; i++) {
+				if (ad.isMissing(attributes[i])) {
+					key.add(null);
+				} else if (this.numeric[i]) {
+					key.add(ad.value(attributes[i]));
+				} else {
+					key.add(ad.stringValue(attributes[i]));
+				}
+			}
+			double[] sums = this.groups.get(key);
+			if (sums == null) {
+				sums = new double[2];
+				this.groups.put(key, sums);
+			}
+			sums[0] += ad.value(clicks);
+			sums[1] += ad.value(impressions);
+		}
+	}
+
+	/**
+	 * Get the sums so far, with the grouped attributes followed by Clicks Count and Impressions. Groups are in the order
+	 * they were first seen.
+	 *
+	 * @return Aggregated ads, null if no ads have been added
+	 */
+	public Ads result()
+	{
+		if (this.groups.isEmpty()) {
+			return null;
+		}
+		int numGroupBy = this.groupBy.size();
+		List<Map<String, Integer>> dictionaries = new ArrayList<Map<String, Integer>>(numGroupBy);
+		for (int i = 0; i < numGroupBy; i++) {
+			dictionaries.add(this.numeric[i] ? null : new LinkedHashMap<String, Integer>());
+		}
+		List<double[]> rows = new ArrayList<double[]>(this.groups.size());
+		for (Map.Entry<List<Object>, double[]> group : this.groups.entrySet()) {
+			double[] row = new double[numGroupBy + 2];
+			for (int i = 0; i < numGroupBy; i++) {
+				Object value = group.getKey().get(i);
+				Map<String, Integer> dictionary = dictionaries.get(i);
+				if (value == null) {
+					row[i] = Utils.missingValue();
+				} else if (dictionary == null) {
+					row[i] = (Double) value;
+				} else {
+					Integer index = dictionary.get((String) value);
+					if (index == null) {
+						index = dictionary.size();
+						dictionary.put((String) value, index);
+					}
+					row[i] = index;
+				}
+			}
+			row[numGroupBy] = group.getValue()[0];
+			row[numGroupBy + 1] = group.getValue()[1];
+			rows.add(row);
+		}
+
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>(numGroupBy + 2);
+		for (int i = 0; i < numGroupBy; i++) {
+			Map<String, Integer> dictionary = dictionaries.get(i);
+			String name = this.groupBy.get(i);
+			attributes.add(dictionary == null ? new Attribute(name)
+					: new Attribute(name, new ArrayList<String>(dictionary.keySet())));
+		}
+		attributes.add(new Attribute("Clicks Count"));
+		attributes.add(new Attribute("Impressions"));
+		Ads ads = new Ads("Aggregate", attributes, rows.size());
+		for (double[] row : rows) {
+			ads.append(row);
+		}
+		return ads;
+	}
+
+	/**
+	 * Private helper method for getting an attribute which must exist.
+	 *
+	 * @param ads Ads
+	 * @param name Attribute name
+	 * @return Attribute
+	 */
+	private static Attribute required(Ads ads, String name)
+	{
+		Attribute attribute = ads.attribute(name);
+		if (attribute == null) {
+			throw new RuntimeException("The attribute " + name + " could not be found in data set.");
+		}
+		return attribute;
+	}
+}
@@ -0,0 +1,143 @@
+package adstimator.data;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Size bounded cache of query results from knowledge bases, with least recently used entries evicted first.
+ *
+ * Entries are keyed by knowledge base ID, the data version of the knowledge base, the target and the aggregated
+ * attribute (null for full data sets). Since the version is part of the key, results from before a knowledge base was
+ * modified are never returned. Cached ads are copied both when stored and when returned, so callers are free to
+ * modify the ads they get.
+ *
+ * @author erikbrannstrom
+ */
+public class AdsCache
+{
+	/**
+	 * Default maximum number of cached results.
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 32;
+
+	private static AdsCache instance;
+	private final LruMap<CacheKey, Ads> entries;
+	private long hits, misses;
+
+	/**
+	 * Create a new cache with the given maximum number of entries.
+	 *
+	 * @param maxEntries
+	 */
+	public AdsCache(int maxEntries)
+	{
+		this.entries = new LruMap<CacheKey, Ads>(maxEntries);
+	}
+
+	/**
+	 * Get the cache shared by all knowledge bases.
+	 *
+	 * @return Singleton
+	 */
+	public static synchronized AdsCache instance()
+	{
+		if (instance == null) {
+			instance = new AdsCache(DEFAULT_MAX_ENTRIES);
+		}
+		return instance;
+	}
+
+	/**
+	 * Get a copy of a cached result.
+	 *
+	 * @param kb Knowledge base ID
+	 * @param version Data version of the knowledge base
+	 * @param target Target, null for all targets
+	 * @param aggregate Aggregated attribute, null for full data sets
+	 * @return Copy of cached ads, null if not cached
+	 */
+	public synchronized Ads get(int kb, long version, Map<String, String> target, String aggregate)
+	{
+		Ads ads = this.entries.get(new CacheKey(kb, version, target, aggregate));
+		if (ads == null) {
+			this.misses++;
+			return null;
+		}
+		this.hits++;
+		return new Ads(ads);
+	}
+
+	/**
+	 * Store a copy of a result. Empty results (null) are not cached.
+	 *
+	 * @param kb Knowledge base ID
+	 * @param version Data version of the knowledge base
+	 * @param target Target, null for all targets
+	 * @param aggregate Aggregated attribute, null for full data sets
+	 * @param ads Result
+	 */
+	public synchronized void put(int kb, long version, Map<String, String> target, String aggregate, Ads ads)
+	{
+		if (ads != null) {
+			this.entries.put(new CacheKey(kb, version, target, aggregate), new Ads(ads));
+		}
+	}
+
+	/**
+	 * Remove all results for a knowledge base.
+	 *
+	 * @param kb Knowledge base ID
+	 */
+	public synchronized void invalidate(int kb)
+	{
+		Iterator<CacheKey> it = this.entries.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().kb() == kb) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Remove all results.
+	 */
+	public synchronized void clear()
+	{
+		this.entries.clear();
+	}
+
+	/**
+	 * Set the maximum number of entries. If there are more entries than that, they are evicted as new results are
+	 * stored.
+	 *
+	 * @param maxEntries
+	 */
+	public synchronized void setMaxEntries(int maxEntries)
+	{
+		this.entries.setMaxEntries(maxEntries);
+	}
+
+	/**
+	 * @return Number of cached results
+	 */
+	public synchronized int size()
+	{
+		return this.entries.size();
+	}
+
+	/**
+	 * @return Number of lookups which found a cached result
+	 */
+	public synchronized long hits()
+	{
+		return this.hits;
+	}
+
+	/**
+	 * @return Number of lookups which did not find a cached result
+	 */
+	public synchronized long misses()
+	{
+		return this.misses;
+	}
+}
@@ -0,0 +1,231 @@
+package adstimator.data;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import weka.core.Attribute;
+import weka.core.Utils;
+
+/**
+ * Loader which reads a JDBC result set straight into a set of ads, either all at once or in chunks.
+ *
+ * Text columns become nominal attributes and all other columns numeric ones. The nominal values are collected while
+ * the rows are read, in the order they first appear, so the result set is only traversed once.
+ *
+ * Column names are translated back to attribute names using a mapping which is cached per table. Names registered
+ * when ads are stored are used as is; other columns have their underscores replaced with spaces, since that is what
+ * happens to attribute names on store.
+ *
+ * @author erikbrannstrom
+ */
+class AdsLoader
+{
+	private static final ConcurrentHashMap<String, Map<String, String>> tables =
+			new ConcurrentHashMap<String, Map<String, String>>();
+	private final String table;
+	private final int first, numColumns;
+	private final String[] names;
+	private final boolean[] decided;
+	private final List<Map<String, Integer>> dictionaries;
+	private long lastKey = Long.MIN_VALUE;
+
+	/**
+	 * Remember the attribute names of ads stored in a table.
+	 *
+	 * @param table Table name
+	 * @param ads Stored ads
+	 */
+	static void register(String table, Ads ads)
+	{
+		Map<String, String> mapping = AdsLoader.mapping(table);
+		for (int i = 0; i < ads.numAttributes(); i++) {
+			String name = ads.attribute(i).name();
+			mapping.put(AdDatabaseStorage.column(name).toLowerCase(), name);
+		}
+	}
+
+	/**
+	 * Read all rows of the result set into a new set of ads. The result set is not closed.
+	 *
+	 * @param rs Result set positioned before the first row
+	 * @param table Table the result comes from
+	 * @return Ads, or null if the result set is empty
+	 * @throws SQLException
+	 */
+	static Ads load(ResultSet rs, String table) throws SQLException
+	{
+		return new AdsLoader(rs, table, false).read(rs, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Create a loader for reading a query in chunks. The loader keeps its nominal values from one chunk to the next,
+	 * so that the header of each chunk extends the header of the one before. All result sets given to it must have
+	 * the same columns.
+	 *
+	 * The columns are read from the first result set, before any rows are read from it. If keyed, the first column
+	 * holds a key which is not part of the ads, and the key of the last row read is available from lastKey().
+	 *
+	 * @param rs First result set
+	 * @param table Table the result comes from
+	 * @param keyed True if the first column is a key
+	 * @throws SQLException
+	 */
+	AdsLoader(ResultSet rs, String table, boolean keyed) throws SQLException
+	{
+		ResultSetMetaData meta = rs.getMetaData();
+		this.table = table;
+		this.first = keyed ? 2 : 1;
+		this.numColumns = meta.getColumnCount() - this.first + 1;
+		Map<String, String> mapping = AdsLoader.mapping(table);
+
+		// Nominal columns get a dictionary, numeric ones null. Columns without a declared type (e.g. aggregates) are
+		// decided by the first value that is not null. The metadata is read up front, since the driver releases it
+		// once the last row has been read.
+		this.dictionaries = new ArrayList<Map<String, Integer>>(this.numColumns);
+		this.names = new String[this.numColumns];
+		this.decided = new boolean[this.numColumns];
+		for (int i = 0; i < this.numColumns; i++) {
+			this.names[i] = AdsLoader.attributeName(mapping, meta.getColumnLabel(i + this.first));
+			String type = meta.getColumnTypeName(i + this.first);
+			if (type == null || type.length() == 0) {
+				this.dictionaries.add(null);
+			} else {
+				type = type.toUpperCase();
+				boolean text = type.contains("CHAR") || type.contains("TEXT") || type.contains("CLOB");
+				this.dictionaries.add(text ? new LinkedHashMap<String, Integer>() : null);
+				this.decided[i] = true;
+			}
+		}
+	}
+
+	/**
+	 * Read up to a given number of rows of the result set into a new set of ads. The result set is not closed.
+	 *
+	 * @param rs Result set with the columns this loader was created for
+	 * @param limit Maximum number of rows to read
+	 * @return Ads, or null if there were no rows
+	 * @throws SQLException
+	 */
+	Ads read(ResultSet rs, int limit) throws SQLException
+	{
+		int numColumns = this.numColumns;
+		List<double[]> rows = new ArrayList<double[]>();
+		while (rows.size() < limit && rs.next()) {
+			if (this.first > 1) {
+				this.lastKey = rs.getLong(1);
+			}
+			double[] row = new double[numColumns];
+			for (int i = 0; i < numColumns; i++) {
+				int column = i + this.first;
+				if (!this.decided[i]) {
+					Object value = rs.getObject(column);
+					if (value == null) {
+						row[i] = Utils.missingValue();
+						continue;
+					}
+					if (value instanceof String) {
+						this.dictionaries.set(i, new LinkedHashMap<String, Integer>());
+					}
+					this.decided[i] = true;
+				}
+				Map<String, Integer> dictionary = this.dictionaries.get(i);
+				if (dictionary != null) {
+					String value = rs.getString(column);
+					if (value == null) {
+						row[i] = Utils.missingValue();
+					} else {
+						Integer index = dictionary.get(value);
+						if (index == null) {
+							index = dictionary.size();
+							dictionary.put(value, index);
+						}
+						row[i] = index;
+					}
+				} else {
+					row[i] = rs.getDouble(column);
+					if (rs.wasNull()) {
+						row[i] = Utils.missingValue();
+					}
+				}
+			}
+			rows.add(row);
+		}
+
+		if (rows.isEmpty()) {
+			return null;
+		}
+
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>(numColumns);
+		for (int i = 0; i < numColumns; i++) {
+			Map<String, Integer> dictionary = this.dictionaries.get(i);
+			if (dictionary != null) {
+				attributes.add(new Attribute(this.names[i], new ArrayList<String>(dictionary.keySet())));
+			} else {
+				attributes.add(new Attribute(this.names[i]));
+			}
+		}
+
+		Ads ads = new Ads(this.table, attributes, rows.size());
+		int width = ads.numAttributes();
+		for (double[] row : rows) {
+			if (row.length < width) {
+				// The data set has added an attribute of its own, which is left missing
+				int length = row.length;
+				row = Arrays.copyOf(row, width);
+				Arrays.fill(row, length, width, Utils.missingValue());
+			}
+			ads.append(row);
+		}
+		return ads;
+	}
+
+	/**
+	 * Get the key of the last row read by a keyed loader.
+	 *
+	 * @return Key, Long.MIN_VALUE if no rows have been read
+	 */
+	long lastKey()
+	{
+		return this.lastKey;
+	}
+
+	/**
+	 * Private helper method for getting the column mapping of a table.
+	 *
+	 * @param table Table name
+	 * @return Mapping from lower case column name to attribute name
+	 */
+	private static Map<String, String> mapping(String table)
+	{
+		Map<String, String> mapping = AdsLoader.tables.get(table);
+		if (mapping == null) {
+			AdsLoader.tables.putIfAbsent(table, new ConcurrentHashMap<String, String>());
+			mapping = AdsLoader.tables.get(table);
+		}
+		return mapping;
+	}
+
+	/**
+	 * Private helper method for translating a column name to an attribute name.
+	 *
+	 * @param mapping Cached mapping for the table
+	 * @param column Column name or label
+	 * @return Attribute name
+	 */
+	private static String attributeName(Map<String, String> mapping, String column)
+	{
+		String key = column.toLowerCase();
+		String name = mapping.get(key);
+		if (name == null) {
+			name = column.indexOf("_") > 0 ? column.replaceAll("_", " ") : column;
+			mapping.put(key, name);
+		}
+		return name;
+	}
+}
@@ -0,0 +1,112 @@
+package adstimator.data;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Key of results computed from the ads of a knowledge base, such as cached query results and trained estimators.
+ *
+ * A key is made up of the knowledge base ID, the data version of the knowledge base, the target and any number of
+ * further parts which tell results for the same target apart, like the aggregated attribute or the classifier and its
+ * options. Parts may be null or arrays, which are compared by their elements. Since the version is part of the key,
+ * results from before a knowledge base was modified never match the key of a lookup after it.
+ *
+ * @author erikbrannstrom
+ */
+public class CacheKey
+{
+	private final int kb;
+	private final long version;
+	private final Map<String, String> target;
+	private final Object[] parts;
+
+	/**
+	 * Create a new key.
+	 *
+	 * @param kb Knowledge base ID
+	 * @param version Data version of the knowledge base
+	 * @param target Target, null for all targets
+	 * @param parts Further parts of the key
+	 */
+	public CacheKey(int kb, long version, Map<String, String> target, Object... parts)
+	{
+		this.kb = kb;
+		this.version = version;
+		// Copy the target and parts, so that the key does not change if the caller modifies them
+		this.target = target == null ? null : new TreeMap<String, String>(target);
+		this.parts = new Object[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			this.parts[i] = parts[i] instanceof Object[] ? ((Object[])parts[i]).clone() : parts[i];
+		}
+	}
+
+	/**
+	 * @return Knowledge base ID
+	 */
+	public int kb()
+	{
+		return this.kb;
+	}
+
+	/**
+	 * @return Data version of the knowledge base
+	 */
+	public long version()
+	{
+		return this.version;
+	}
+
+	/**
+	 * @return Target, null for all targets
+	 */
+	public Map<String, String> target()
+	{
+		return this.target;
+	}
+
+	/**
+	 * Create the key of the same result at another data version.
+	 *
+	 * @param version Data version
+	 * @return Key
+	 */
+	public CacheKey at(long version)
+	{
+		return new CacheKey(this.kb, version, this.target, this.parts);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof CacheKey)) {
+			return false;
+		}
+		CacheKey key = (CacheKey)o;
+		return key.kb == this.kb && key.version == this.version
+				&& (this.target == null ? key.target == null : this.target.equals(key.target))
+				&& Arrays.deepEquals(this.parts, key.parts);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		int hash = 7;
+		hash = 29 * hash + this.kb;
+		hash = 29 * hash + (int)(this.version ^ (this.version >>> 32));
+		hash = 29 * hash + (this.target != null ? this.target.hashCode() : 0);
+		hash = 29 * hash + Arrays.deepHashCode(this.parts);
+		return hash;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder(String.format("kb %d, version %d, target %s,", this.kb,
+				this.version, this.target));
+		for (Object part : this.parts) {
+			builder.append(' ').append(part instanceof Object[] ? Arrays.toString((Object[])part) : part);
+		}
+		return builder.toString();
+	}
+}
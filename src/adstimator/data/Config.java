@@ -1,21 +1,34 @@
 package adstimator.data;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import weka.experiment.DatabaseUtils;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Config class which uses database as its persistent storage.
- * 
+ *
  * The class loads all config items from the database upon initialization and stores them in a map for fast access.
- * When setting or removing an item, the action is immediately reproduced on the persistent storage.
- * 
- * The database used is the same one that is defined in the Weka property file (DatabaseUtils.props). The table
+ * Setting or removing an item takes effect in the map immediately, while the database is updated in the background.
+ * Changes are collected for a short while and then written in a single transaction, so that only the latest value of
+ * each item is written. Pending changes are also written when the application shuts down, by a single shutdown hook
+ * for all config objects, and flush() writes them right away.
+ *
+ * Connections are taken from the pool in DatabaseHelper, which defaults to the database that is defined in the Weka
+ * property file (DatabaseUtils.props). The table
  * used is called 'config_items' and is automatically created by the Setup.init() method on the applications first
  * run.
  *
@@ -23,7 +36,20 @@ import weka.experiment.DatabaseUtils;
  */
 public class Config
 {
+	/**
+	 * Time in milliseconds that changes are collected before they are written.
+	 */
+	public static final long FLUSH_DELAY = 500;
+
+	private static final Logger LOG = Logger.getLogger(Config.class.getName());
+	private static ScheduledExecutorService writer;
+	// Config objects with changes which have not been written, guarded by the class lock
+	private static final Set<Config> unflushed = new LinkedHashSet<Config>();
 	private Map<String, String> config;
+	// Changes not yet written, where null means that the item is removed
+	private Map<String, String> pending;
+	private boolean scheduled;
+	private final Object flushLock = new Object();
 
 	/**
 	 * Create a new configuration object.
@@ -31,102 +57,214 @@ public class Config
 	public Config()
 	{
 		this.config = new HashMap<String, String>();
+		this.pending = new LinkedHashMap<String, String>();
 		try {
-			Connection con = this.getConnection();
-			PreparedStatement readAll = con.prepareStatement("SELECT key, value FROM config_items");
-			ResultSet rs = readAll.executeQuery();
-			while (rs.next()) {
-				this.config.put(rs.getString("key"), rs.getString("value"));
+			Connection con = DatabaseHelper.instance().getConnection();
+			try {
+				PreparedStatement readAll = con.prepareStatement("SELECT key, value FROM config_items");
+				ResultSet rs = readAll.executeQuery();
+				while (rs.next()) {
+					this.config.put(rs.getString("key"), rs.getString("value"));
+				}
+				readAll.close();
+			} finally {
+				con.close();
 			}
-			con.close();
 		} catch (SQLException ex) {
 			throw new RuntimeException(ex);
 		}
 	}
-	
+
 	/**
 	 * Get the value of the specified config item.
-	 * 
+	 *
 	 * @param key
 	 * @return Value for key
 	 */
-	public String get(String key)
+	public synchronized String get(String key)
 	{
 		return this.config.get(key);
 	}
-	
+
 	/**
-	 * Set the value of the specified config item to the given value.
-	 * 
+	 * Set the value of the specified config item to the given value. New items are added.
+	 *
 	 * @param key
 	 * @param value
 	 */
 	public void set(String key, String value)
 	{
-		// If setting key to same value as before we don't have to do anything
-		if (this.config.get(key).equals(value)) {
+		if (value == null) {
+			this.remove(key);
 			return;
 		}
-		
-		try {
-			Connection con = this.getConnection();
-			
-			if (this.config.containsKey(key)) {
-				// Update
-				PreparedStatement update = con.prepareStatement("UPDATE config_items SET value = ? WHERE key = ?");
-				update.setString(1, value);
-				update.setString(2, key);
-				update.execute();
-				update.close();
-			} else {
-				// Insert
-				PreparedStatement create = con.prepareStatement("INSERT (key, value) INTO config_items VALUES (?, ?)");
-				create.setString(1, key);
-				create.setString(2, value);
-				create.execute();
-				create.close();
+		synchronized (this) {
+			// If setting key to same value as before we don't have to do anything
+			if (value.equals(this.config.get(key))) {
+				return;
 			}
-			
-			con.close();
 			this.config.put(key, value);
-		} catch (SQLException ex) {
-			throw new RuntimeException(ex);
+			this.pending.put(key, value);
+			this.schedule();
 		}
 	}
-	
+
 	/**
 	 * Remove the specified config item.
-	 * 
+	 *
 	 * @param key
 	 */
-	public void remove(String key)
+	public synchronized void remove(String key)
 	{
-		try {
-			Connection con = this.getConnection();
-			PreparedStatement delete = con.prepareStatement("DELETE FROM config_items WHERE key = ?");
-			delete.setString(1, key);
-			delete.execute();
-			delete.close();
-			con.close();
-			this.config.remove(key);
-		} catch (SQLException ex) {
-			throw new RuntimeException(ex);
+		this.config.remove(key);
+		this.pending.put(key, null);
+		this.schedule();
+	}
+
+	/**
+	 * Write all pending changes to the database in a single transaction. If writing fails, the changes are kept so
+	 * that they are retried by the next flush, unless the items have been changed again since.
+	 */
+	public void flush()
+	{
+		// Only one flush writes at a time, so that changes reach the database in the order they were made
+		synchronized (this.flushLock) {
+			Map<String, String> batch;
+			synchronized (this) {
+				if (this.pending.isEmpty()) {
+					return;
+				}
+				batch = this.pending;
+				this.pending = new LinkedHashMap<String, String>();
+			}
+
+			try {
+				Connection con = DatabaseHelper.instance().getWriteConnection();
+				try {
+					con.setAutoCommit(false);
+					PreparedStatement upsert = con.prepareStatement(
+							"INSERT OR REPLACE INTO config_items (key, value) VALUES (?, ?)");
+					PreparedStatement delete = con.prepareStatement("DELETE FROM config_items WHERE key = ?");
+					for (Map.Entry<String, String> change : batch.entrySet()) {
+						if (change.getValue() == null) {
+							delete.setString(1, change.getKey());
+							delete.addBatch();
+						} else {
+							upsert.setString(1, change.getKey());
+							upsert.setString(2, change.getValue());
+							upsert.addBatch();
+						}
+					}
+					upsert.executeBatch();
+					delete.executeBatch();
+					upsert.close();
+					delete.close();
+					con.commit();
+				} finally {
+					con.close();
+				}
+				synchronized (this) {
+					if (this.pending.isEmpty()) {
+						Config.unflushed(this, false);
+					}
+				}
+			} catch (SQLException ex) {
+				synchronized (this) {
+					for (Map.Entry<String, String> change : batch.entrySet()) {
+						if (!this.pending.containsKey(change.getKey())) {
+							this.pending.put(change.getKey(), change.getValue());
+						}
+					}
+				}
+				throw new RuntimeException(ex);
+			}
 		}
 	}
-	
+
 	/**
-	 * Private helper method for getting a connection to the database specified by Weka.
-	 * 
-	 * @return Weka database connection
+	 * Private helper method for scheduling a flush on the background writer, unless one is already scheduled. Must be
+	 * called while holding the lock on this object.
 	 */
-	private Connection getConnection()
+	private void schedule()
 	{
-		try {
-			DatabaseUtils wekaDbUtil = new DatabaseUtils();
-			return DriverManager.getConnection(wekaDbUtil.getDatabaseURL(), null, null);
-		} catch (Exception ex) {
-			throw new RuntimeException(ex);
+		if (this.scheduled) {
+			return;
+		}
+		this.scheduled = true;
+		Config.unflushed(this, true);
+		Config.writer().schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized (Config.this) {
+					Config.this.scheduled = false;
+				}
+				try {
+					Config.this.flush();
+				} catch (RuntimeException ex) {
+					LOG.log(Level.WARNING, "Could not save config", ex);
+				}
+			}
+		}, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Private helper method for keeping track of the config objects with changes which have not been written, so
+	 * that the shutdown hook can write them.
+	 *
+	 * @param config Config object
+	 * @param unflushed True if it has pending changes, false if they have been written
+	 */
+	private static synchronized void unflushed(Config config, boolean unflushed)
+	{
+		if (unflushed) {
+			Config.unflushed.add(config);
+		} else {
+			Config.unflushed.remove(config);
+		}
+	}
+
+	/**
+	 * Private helper method for getting the background writer shared by all config objects. The thread is a daemon,
+	 * so it does not keep the application running; a shutdown hook, registered along with the writer, writes
+	 * whatever is left.
+	 *
+	 * @return Executor
+	 */
+	private static synchronized ScheduledExecutorService writer()
+	{
+		if (Config.writer == null) {
+			Runtime.getRuntime().addShutdownHook(new Thread("Config flush")
+			{
+				@Override
+				public void run()
+				{
+					List<Config> configs;
+					synchronized (Config.class) {
+						configs = new ArrayList<Config>(Config.unflushed);
+					}
+					for (Config config : configs) {
+						try {
+							config.flush();
+						} catch (RuntimeException ex) {
+							LOG.log(Level.WARNING, "Could not save config", ex);
+						}
+					}
+				}
+			});
+			Config.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "Config writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 		}
+		return Config.writer;
 	}
-	
+
 }
@@ -1,23 +1,67 @@
 package adstimator.data;
 
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 import weka.experiment.DatabaseUtils;
 
 /**
  * Singleton for getting and setting connections to a database.
- * 
+ *
  * The object defaults to using the database specified by Weka in the DatabaseUtils.props file, but it can be
- * changed by setting a new connection URL (useful for example when testing). This URL is then used to generate new 
- * Connection objects.
+ * changed by setting a new connection URL (useful for example when testing).
+ *
+ * Connections are pooled rather than opened for each operation. The pool follows the locking model of SQLite in WAL
+ * mode: any number of readers may run concurrently (bounded by the pool size), while there is exactly one writer
+ * connection which can only be checked out by one thread at a time. Connections handed out by the helper must be
+ * closed by the caller as usual, but closing them only returns the underlying connection to the pool. Both kinds of
+ * checkout are re-entrant: a thread which already holds a reader gets the same connection again instead of waiting for
+ * another one, so helpers which query the database while their caller has a reader open cannot exhaust the pool.
+ *
+ * Each physical connection also keeps a bounded cache of prepared statements, so that queries which are run
+ * repeatedly with different parameters are only compiled once per connection.
  *
  * @author erikbrannstrom
  */
 public class DatabaseHelper
 {
+	/**
+	 * Default maximum number of concurrent reader connections.
+	 */
+	public static final int DEFAULT_MAX_READERS = 4;
+	/**
+	 * Maximum number of cached prepared statements per connection.
+	 */
+	public static final int STATEMENT_CACHE_SIZE = 32;
+
 	private static DatabaseHelper instance;
 	private String connectionURL;
+	private int maxReaders;
+	private int generation;
+	// Reader pool
+	private final LinkedList<Connection> idleReaders;
+	private final Map<Thread, HeldReader> heldReaders;
+	private int openReaders;
+	// Single writer
+	private Connection writer;
+	private final ReentrantLock writeLock;
+	// Prepared statements per physical connection
+	private final Map<Connection, Map<String, PreparedStatement>> statements;
+	// Statistics
+	private long connectionsCreated, readCheckouts, writeCheckouts, readWaits, writeWaits;
+	private long statementHits, statementMisses;
 
 	/**
 	 * Protected constructor, should not be called by other classes.
@@ -29,14 +73,19 @@ public class DatabaseHelper
 		} catch (ClassNotFoundException ex) {
 			System.err.print("Could not load JDBC driver.");
 		}
+		this.maxReaders = DEFAULT_MAX_READERS;
+		this.idleReaders = new LinkedList<Connection>();
+		this.heldReaders = new HashMap<Thread, HeldReader>();
+		this.writeLock = new ReentrantLock(true);
+		this.statements = new HashMap<Connection, Map<String, PreparedStatement>>();
 	}
 
 	/**
 	 * Returns the current connection URL. If no other URL has been set it defaults to the one set by Weka.
-	 * 
+	 *
 	 * @return Connection URL
 	 */
-	public String getConnectionURL()
+	public synchronized String getConnectionURL()
 	{
 		if (this.connectionURL == null) {
 			try {
@@ -50,39 +99,566 @@ public class DatabaseHelper
 	}
 
 	/**
-	 * Set the connection URL. Note that this does not affect connections which have been created previously.
-	 * 
+	 * Returns the directory where data kept outside the database, such as memory mapped knowledge bases, is stored.
+	 * For SQLite this is the directory of the database file, otherwise the working directory.
+	 *
+	 * @return Data directory
+	 */
+	public File getDataDirectory()
+	{
+		String url = this.getConnectionURL();
+		String prefix = "jdbc:sqlite:";
+		if (url.startsWith(prefix)) {
+			File parent = new File(url.substring(prefix.length())).getAbsoluteFile().getParentFile();
+			if (parent != null) {
+				return parent;
+			}
+		}
+		return new File(".");
+	}
+
+	/**
+	 * Set the connection URL. All pooled connections to the previous URL are closed. Connections which are checked
+	 * out at the time are closed as soon as they are returned.
+	 *
 	 * @param connectionURL New connection URL
 	 */
 	public void setConnectionURL(String connectionURL)
 	{
-		this.connectionURL = connectionURL;
+		this.close();
+		synchronized (this) {
+			this.connectionURL = connectionURL;
+		}
+	}
+
+	/**
+	 * Set the maximum number of reader connections that may be open at the same time.
+	 *
+	 * @param maxReaders Pool size, at least one
+	 */
+	public synchronized void setMaxReaders(int maxReaders)
+	{
+		if (maxReaders < 1) {
+			throw new IllegalArgumentException("The pool must allow at least one reader.");
+		}
+		this.maxReaders = maxReaders;
+		this.notifyAll();
 	}
-	
+
 	/**
-	 * Initializes and returns a new Connection object with the current connection URL. No username or password is used.
+	 * Check out a reader connection from the pool. If all reader connections are in use, the call blocks until one
+	 * is returned. The connection is returned to the pool when it is closed.
 	 * 
-	 * @return New database connection
+	 * A thread that already holds a reader gets the same physical connection again, without waiting, and the
+	 * connection is returned to the pool when the outermost checkout is closed.
+	 *
+	 * Reader connections should only be used for queries; use getWriteConnection() for anything that modifies the
+	 * database.
+	 *
+	 * @return Pooled database connection
 	 */
 	public Connection getConnection()
 	{
+		Thread owner = Thread.currentThread();
+		Connection con;
+		int gen;
+		synchronized (this) {
+			HeldReader held = this.heldReaders.get(owner);
+			if (held != null) {
+				held.count++;
+				this.readCheckouts++;
+				return this.wrap(held.con, held.gen, false, owner);
+			}
+			boolean waited = false;
+			while (this.idleReaders.isEmpty() && this.openReaders >= this.maxReaders) {
+				waited = true;
+				try {
+					this.wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(ex);
+				}
+			}
+			if (waited) {
+				this.readWaits++;
+			}
+			this.readCheckouts++;
+			gen = this.generation;
+			if (!this.idleReaders.isEmpty()) {
+				con = this.idleReaders.removeFirst();
+			} else {
+				con = this.open();
+				this.openReaders++;
+			}
+			this.heldReaders.put(owner, new HeldReader(con, gen));
+		}
+		return this.wrap(con, gen, false, owner);
+	}
+
+	/**
+	 * Check out the writer connection. Only one thread can hold the writer at a time, other threads block until it is
+	 * closed. A thread that already holds the writer may check it out again, in which case it is released when the
+	 * outermost checkout is closed.
+	 *
+	 * If the connection is closed with an open transaction, that transaction is rolled back.
+	 *
+	 * @return Exclusive writer connection
+	 */
+	public Connection getWriteConnection()
+	{
+		boolean waited = !this.writeLock.tryLock();
+		if (waited) {
+			this.writeLock.lock();
+		}
 		try {
-			return DriverManager.getConnection(this.getConnectionURL(), null, null);
-		} catch (SQLException ex) {
-			throw new RuntimeException(ex);
+			Connection con;
+			int gen;
+			synchronized (this) {
+				if (waited) {
+					this.writeWaits++;
+				}
+				this.writeCheckouts++;
+				if (this.writer == null) {
+					this.writer = this.open();
+				}
+				con = this.writer;
+				gen = this.generation;
+			}
+			return this.wrap(con, gen, true, null);
+		} catch (RuntimeException ex) {
+			this.writeLock.unlock();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Get a prepared statement for the SQL from the cache of the connection, preparing it if necessary. The statement
+	 * belongs to the cache and must not be closed by the caller; its parameters are kept from the previous use, so all
+	 * of them should be set again. The statement may only be used while the connection is checked out.
+	 *
+	 * Connections which were not checked out from this pool get a new statement on each call, which the caller is
+	 * responsible for closing.
+	 *
+	 * @param con Connection checked out from the pool
+	 * @param sql SQL of the statement, which also serves as cache key
+	 * @return Prepared statement
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareCached(Connection con, String sql) throws SQLException
+	{
+		if (!Proxy.isProxyClass(con.getClass()) || !(Proxy.getInvocationHandler(con) instanceof PooledConnection)) {
+			return con.prepareStatement(sql);
+		}
+		Connection physical = ((PooledConnection)Proxy.getInvocationHandler(con)).con;
+		Map<String, PreparedStatement> cache;
+		synchronized (this) {
+			cache = this.statements.get(physical);
+			if (cache == null) {
+				cache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true)
+				{
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+					{
+						if (this.size() > STATEMENT_CACHE_SIZE) {
+							DatabaseHelper.closeQuietly(eldest.getValue());
+							return true;
+						}
+						return false;
+					}
+				};
+				this.statements.put(physical, cache);
+			}
+			PreparedStatement stmnt = cache.get(sql);
+			if (stmnt != null) {
+				this.statementHits++;
+				return stmnt;
+			}
+			this.statementMisses++;
+		}
+		// Only the thread holding the connection uses its cache, so it is safe to prepare outside the lock
+		PreparedStatement stmnt = physical.prepareStatement(sql);
+		synchronized (this) {
+			cache.put(sql, stmnt);
+		}
+		return stmnt;
+	}
+
+	/**
+	 * Return a snapshot of the pool statistics.
+	 *
+	 * @return Pool statistics
+	 */
+	public synchronized PoolStatistics statistics()
+	{
+		return new PoolStatistics(this.maxReaders, this.openReaders, this.idleReaders.size(), this.connectionsCreated,
+				this.readCheckouts, this.writeCheckouts, this.readWaits, this.writeWaits, this.statementHits,
+				this.statementMisses);
+	}
+
+	/**
+	 * Close all idle connections in the pool, including the writer unless it is currently checked out. Connections
+	 * that are checked out will be closed when they are returned. The pool can still be used afterwards, in which
+	 * case new connections are opened.
+	 */
+	public void close()
+	{
+		this.writeLock.lock();
+		try {
+			synchronized (this) {
+				this.generation++;
+				for (Connection con : this.idleReaders) {
+					this.closeQuietly(con);
+				}
+				this.openReaders -= this.idleReaders.size();
+				this.idleReaders.clear();
+				if (this.writer != null) {
+					this.closeQuietly(this.writer);
+					this.writer = null;
+				}
+				this.notifyAll();
+			}
+		} finally {
+			this.writeLock.unlock();
 		}
 	}
 
 	/**
 	 * Get the singleton instance.
-	 * 
+	 *
 	 * @return Singleton
 	 */
-	public static DatabaseHelper instance()
+	public static synchronized DatabaseHelper instance()
 	{
 		if (instance == null) {
 			instance = new DatabaseHelper();
 		}
 		return instance;
 	}
+
+	/**
+	 * Private helper method for opening and configuring a new physical connection.
+	 *
+	 * @return New database connection
+	 */
+	private Connection open()
+	{
+		try {
+			Connection con = DriverManager.getConnection(this.getConnectionURL(), null, null);
+			Statement pragma = con.createStatement();
+			// WAL lets readers continue while the writer commits, and normal sync is safe in WAL mode
+			pragma.execute("PRAGMA journal_mode = WAL");
+			pragma.execute("PRAGMA synchronous = NORMAL");
+			pragma.close();
+			this.connectionsCreated++;
+			return con;
+		} catch (SQLException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Private helper method for returning a reader connection to the pool, once its outermost checkout is closed.
+	 *
+	 * @param con Physical connection
+	 * @param gen Pool generation the connection was checked out in
+	 * @param owner Thread which checked out the connection
+	 */
+	private synchronized void releaseReader(Connection con, int gen, Thread owner)
+	{
+		HeldReader held = this.heldReaders.get(owner);
+		if (held != null && held.con == con) {
+			if (--held.count > 0) {
+				return;
+			}
+			this.heldReaders.remove(owner);
+		}
+		if (gen == this.generation && this.reset(con)) {
+			this.idleReaders.addFirst(con);
+		} else {
+			// Idle connections of old generations are already accounted for by close()
+			this.closeQuietly(con);
+			this.openReaders--;
+		}
+		this.notifyAll();
+	}
+
+	/**
+	 * Private helper method for returning the writer connection.
+	 *
+	 * @param con Physical connection
+	 * @param gen Pool generation the connection was checked out in
+	 */
+	private void releaseWriter(Connection con, int gen)
+	{
+		try {
+			if (this.writeLock.getHoldCount() == 1) {
+				synchronized (this) {
+					if (gen != this.generation || !this.reset(con)) {
+						this.closeQuietly(con);
+						if (this.writer == con) {
+							this.writer = null;
+						}
+					}
+				}
+			}
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Roll back any transaction left open and restore auto commit.
+	 *
+	 * @param con
+	 * @return False if the connection is no longer usable
+	 */
+	private boolean reset(Connection con)
+	{
+		try {
+			if (con.isClosed()) {
+				return false;
+			}
+			if (!con.getAutoCommit()) {
+				con.rollback();
+				con.setAutoCommit(true);
+			}
+			return true;
+		} catch (SQLException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Close a connection and its cached statements and ignore any errors.
+	 *
+	 * @param con
+	 */
+	private void closeQuietly(Connection con)
+	{
+		Map<String, PreparedStatement> cache = this.statements.remove(con);
+		if (cache != null) {
+			for (PreparedStatement stmnt : cache.values()) {
+				DatabaseHelper.closeQuietly(stmnt);
+			}
+		}
+		try {
+			con.close();
+		} catch (SQLException ex) {
+			// Nothing more we can do with it
+		}
+	}
+
+	/**
+	 * Close a statement and ignore any errors.
+	 *
+	 * @param stmnt
+	 */
+	private static void closeQuietly(Statement stmnt)
+	{
+		try {
+			stmnt.close();
+		} catch (SQLException ex) {
+			// Nothing more we can do with it
+		}
+	}
+
+	/**
+	 * Private helper method for wrapping a physical connection in a proxy which returns it to the pool on close.
+	 *
+	 * @param con Physical connection
+	 * @param gen Pool generation
+	 * @param write Whether this is the writer connection
+	 * @param owner Thread which checked out a reader connection, null for the writer
+	 * @return Proxy connection
+	 */
+	private Connection wrap(Connection con, int gen, boolean write, Thread owner)
+	{
+		return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+				new PooledConnection(con, gen, write, owner));
+	}
+
+	/**
+	 * Reader connection held by a thread, with the number of checkouts which have not been closed.
+	 */
+	private static class HeldReader
+	{
+		private final Connection con;
+		private final int gen;
+		private int count;
+
+		HeldReader(Connection con, int gen)
+		{
+			this.con = con;
+			this.gen = gen;
+			this.count = 1;
+		}
+	}
+
+	/**
+	 * Invocation handler for checked out connections. All calls except close are passed on to the physical
+	 * connection.
+	 */
+	private class PooledConnection implements InvocationHandler
+	{
+		private final Connection con;
+		private final int gen;
+		private final boolean write;
+		private final Thread owner;
+		private boolean closed;
+
+		PooledConnection(Connection con, int gen, boolean write, Thread owner)
+		{
+			this.con = con;
+			this.gen = gen;
+			this.write = write;
+			this.owner = owner;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			String name = method.getName();
+			if (name.equals("close")) {
+				if (!this.closed) {
+					this.closed = true;
+					if (this.write) {
+						DatabaseHelper.this.releaseWriter(this.con, this.gen);
+					} else {
+						DatabaseHelper.this.releaseReader(this.con, this.gen, this.owner);
+					}
+				}
+				return null;
+			} else if (name.equals("isClosed")) {
+				return this.closed || this.con.isClosed();
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			if (this.closed) {
+				throw new SQLException("Connection has been returned to the pool.");
+			}
+			try {
+				return method.invoke(this.con, args);
+			} catch (InvocationTargetException ex) {
+				throw ex.getCause();
+			}
+		}
+	}
+
+	/**
+	 * Immutable snapshot of the connection pool statistics.
+	 */
+	public static class PoolStatistics
+	{
+		private final int maxReaders, openReaders, idleReaders;
+		private final long connectionsCreated, readCheckouts, writeCheckouts, readWaits, writeWaits;
+		private final long statementHits, statementMisses;
+
+		PoolStatistics(int maxReaders, int openReaders, int idleReaders, long connectionsCreated, long readCheckouts,
+				long writeCheckouts, long readWaits, long writeWaits, long statementHits, long statementMisses)
+		{
+			this.maxReaders = maxReaders;
+			this.openReaders = openReaders;
+			this.idleReaders = idleReaders;
+			this.connectionsCreated = connectionsCreated;
+			this.readCheckouts = readCheckouts;
+			this.writeCheckouts = writeCheckouts;
+			this.readWaits = readWaits;
+			this.writeWaits = writeWaits;
+			this.statementHits = statementHits;
+			this.statementMisses = statementMisses;
+		}
+
+		/**
+		 * @return Maximum number of reader connections
+		 */
+		public int maxReaders()
+		{
+			return this.maxReaders;
+		}
+
+		/**
+		 * @return Number of open reader connections, idle or checked out
+		 */
+		public int openReaders()
+		{
+			return this.openReaders;
+		}
+
+		/**
+		 * @return Number of reader connections waiting in the pool
+		 */
+		public int idleReaders()
+		{
+			return this.idleReaders;
+		}
+
+		/**
+		 * @return Number of physical connections opened since start
+		 */
+		public long connectionsCreated()
+		{
+			return this.connectionsCreated;
+		}
+
+		/**
+		 * @return Number of times a reader was checked out
+		 */
+		public long readCheckouts()
+		{
+			return this.readCheckouts;
+		}
+
+		/**
+		 * @return Number of times the writer was checked out
+		 */
+		public long writeCheckouts()
+		{
+			return this.writeCheckouts;
+		}
+
+		/**
+		 * @return Number of reader checkouts that had to wait for a free connection
+		 */
+		public long readWaits()
+		{
+			return this.readWaits;
+		}
+
+		/**
+		 * @return Number of writer checkouts that had to wait for another thread
+		 */
+		public long writeWaits()
+		{
+			return this.writeWaits;
+		}
+
+		/**
+		 * @return Number of prepared statements served from a connection cache
+		 */
+		public long statementHits()
+		{
+			return this.statementHits;
+		}
+
+		/**
+		 * @return Number of prepared statements that had to be compiled
+		 */
+		public long statementMisses()
+		{
+			return this.statementMisses;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("readers %d/%d (%d idle), created %d, checkouts %d read/%d write, "
+					+ "waits %d read/%d write, statements %d hits/%d misses", this.openReaders, this.maxReaders,
+					this.idleReaders, this.connectionsCreated, this.readCheckouts, this.writeCheckouts, this.readWaits,
+					this.writeWaits, this.statementHits, this.statementMisses);
+		}
+	}
 }
@@ -1,16 +1,19 @@
 package adstimator.data;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import weka.core.Attribute;
 import weka.core.Instance;
 
@@ -18,15 +21,47 @@ import weka.core.Instance;
  * Data access object for the knowledge base.
  * 
  * A knowledge base has an ID and a name as well as a set of instances.
+ * 
+ * Query results are cached in the shared AdsCache. Each knowledge base has a data version which changes whenever its
+ * ads are modified, and since the version is part of the cache key, stale results are never returned. The version is
+ * stored along with the knowledge base, so that caches which outlive the application, such as trained models on disk,
+ * can be keyed on it too. Listeners registered with addListener are told about ads added with addAds, so that such
+ * caches can be brought up to date with the new ads instead of being rebuilt.
+ * 
+ * A knowledge base can also be kept in memory, in which case queries are answered from a columnar snapshot of its ads
+ * instead of the database. The snapshot is loaded on first use. Ads added with addAds are appended to it, while
+ * merged or removed ads make it reload when the data version changes.
+ * 
+ * The ads are stored either in a database table (the default) or in a memory mapped file, as chosen when the knowledge
+ * base is created. Aggregates and targets of memory mapped knowledge bases are always answered from a snapshot.
+ * 
+ * Queries are passed to the storage as immutable AdQuery objects, so the same knowledge base can be queried from
+ * several threads at once.
  *
  * @author erikbrannstrom
  */
 public class KnowledgeBase
 {
+	/**
+	 * Storage backend keeping the ads in a database table.
+	 */
+	public static final String DATABASE = "database";
+	/**
+	 * Storage backend keeping the ads in a memory mapped file.
+	 */
+	public static final String MAPPED = "mapped";
+	
+	private static final Map<Integer, Long> versions = new ConcurrentHashMap<Integer, Long>();
+	private static final Map<Integer, CachedTargets> targets = new ConcurrentHashMap<Integer, CachedTargets>();
+	private static final Map<Integer, CachedSnapshot> snapshots = new ConcurrentHashMap<Integer, CachedSnapshot>();
+	private static final Set<Integer> inMemory = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	private static final List<AdsListener> listeners = new CopyOnWriteArrayList<AdsListener>();
 	private boolean exists, saved;
 	private int id;
 	private String name;
+	private String storage;
 	private AdDatabaseStorage manager;
+	private AdMappedStorage mappedManager;
 	
 	/**
 	 * Get ID of this knowledge base. If it has not been saved, the ID is zero.
@@ -59,6 +94,247 @@ public class KnowledgeBase
 		this.saved(false);
 	}
 	
+	/**
+	 * Get the data version of this knowledge base. The version is increased each time ads are added to the knowledge
+	 * base or it is deleted, and is shared by all objects for the same knowledge base. It is read from the database
+	 * the first time it is needed.
+	 * 
+	 * @return Data version, zero if the knowledge base has never been modified
+	 */
+	public long version()
+	{
+		Long version = KnowledgeBase.versions.get(this.id);
+		if (version == null) {
+			synchronized (KnowledgeBase.versions) {
+				version = KnowledgeBase.versions.get(this.id);
+				if (version == null) {
+					version = this.exists ? this.readVersion() : 0;
+					KnowledgeBase.versions.put(this.id, version);
+				}
+			}
+		}
+		return version;
+	}
+	
+	/**
+	 * Private helper method for reading the stored data version.
+	 * 
+	 * @return Data version, zero if the knowledge base is not found
+	 */
+	private long readVersion()
+	{
+		try {
+			Connection con = DatabaseHelper.instance().getConnection();
+			try {
+				PreparedStatement select = con.prepareStatement("SELECT data_version FROM knowledge_bases WHERE id = ?");
+				select.setInt(1, this.id);
+				ResultSet rs = select.executeQuery();
+				long version = rs.next() ? rs.getLong(1) : 0;
+				rs.close();
+				select.close();
+				return version;
+			} finally {
+				con.close();
+			}
+		} catch (SQLException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * Private helper method for marking the ads of this knowledge base as changed.
+	 * 
+	 * The new version is taken from the clock when that is larger than the next number in sequence. A database which is
+	 * deleted and created again reuses the IDs of its knowledge bases, and this way it does not reuse their versions.
+	 * 
+	 * If the only change is that ads were appended, they are appended to a cached snapshot of the previous version as
+	 * well, so that it does not have to be loaded again. Any other change discards the snapshot.
+	 * 
+	 * @param appended Ads appended to the knowledge base, or null if ads were changed in some other way
+	 * @return New data version
+	 */
+	private long bumpVersion(Ads appended)
+	{
+		return this.bumpVersion(appended, 0);
+	}
+
+	/**
+	 * Private helper method for marking the ads of this knowledge base as changed, where the new version may already
+	 * have been stored by a VersionHook in the transaction which changed them.
+	 *
+	 * The version is stored before the lock on versions is taken, since other threads hold the writer while they
+	 * take that lock.
+	 *
+	 * @param appended Ads appended to the knowledge base, or null if ads were changed in some other way
+	 * @param stored Data version stored along with the change, or zero to take and store a new one
+	 * @return New data version
+	 */
+	private long bumpVersion(Ads appended, long stored)
+	{
+		if (stored <= 0 && this.exists) {
+			stored = this.storeVersion();
+		}
+		long previous, version;
+		synchronized (KnowledgeBase.versions) {
+			previous = this.version();
+			version = stored > 0 ? Math.max(previous, stored) : Math.max(previous + 1, System.currentTimeMillis());
+			KnowledgeBase.versions.put(this.id, version);
+		}
+		AdsCache.instance().invalidate(this.id);
+		CachedSnapshot cached = KnowledgeBase.snapshots.remove(this.id);
+		if (appended != null && cached != null && cached.version == previous && version > previous
+				&& KnowledgeBaseSnapshot.appendable(appended)) {
+			cached.snapshot.append(appended);
+			KnowledgeBase.snapshots.put(this.id, new CachedSnapshot(version, cached.snapshot));
+		}
+		return version;
+	}
+	
+	/**
+	 * Register a listener which is told whenever ads are added to a knowledge base or one is deleted.
+	 * 
+	 * @param listener Listener
+	 */
+	public static void addListener(AdsListener listener)
+	{
+		KnowledgeBase.listeners.add(listener);
+	}
+	
+	/**
+	 * Remove a registered listener.
+	 * 
+	 * @param listener Listener
+	 */
+	public static void removeListener(AdsListener listener)
+	{
+		KnowledgeBase.listeners.remove(listener);
+	}
+	
+	/**
+	 * Private helper method for taking and storing a new data version on its own, for changes which were not made in
+	 * a database transaction.
+	 * 
+	 * @return Stored data version
+	 */
+	private long storeVersion()
+	{
+		try {
+			Connection con = DatabaseHelper.instance().getWriteConnection();
+			try {
+				VersionHook hook = new VersionHook();
+				hook.beforeCommit(con);
+				return hook.version;
+			} finally {
+				con.close();
+			}
+		} catch (SQLException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * Private helper method for storing the data version using a given connection.
+	 * 
+	 * @param con Writer connection
+	 * @param version Data version
+	 * @throws SQLException
+	 */
+	private void writeVersion(Connection con, long version) throws SQLException
+	{
+		PreparedStatement update = DatabaseHelper.instance().prepareCached(con,
+				"UPDATE knowledge_bases SET data_version = ? WHERE id = ?");
+		update.setLong(1, version);
+		update.setInt(2, this.id);
+		update.executeUpdate();
+	}
+	
+	/**
+	 * Check whether queries on this knowledge base are answered from an in-memory snapshot.
+	 * 
+	 * @return True if kept in memory
+	 */
+	public boolean inMemory()
+	{
+		return KnowledgeBase.inMemory.contains(this.id);
+	}
+	
+	/**
+	 * Set whether queries on this knowledge base should be answered from an in-memory snapshot rather than the
+	 * database. This is shared by all objects for the same knowledge base. Turning it off releases the snapshot.
+	 * 
+	 * @param inMemory True to keep the knowledge base in memory
+	 */
+	public void inMemory(boolean inMemory)
+	{
+		if (inMemory) {
+			KnowledgeBase.inMemory.add(this.id);
+		} else {
+			KnowledgeBase.inMemory.remove(this.id);
+			KnowledgeBase.snapshots.remove(this.id);
+		}
+	}
+	
+	/**
+	 * Get a columnar snapshot of the ads in this knowledge base, loading it if there is none for the current data
+	 * version.
+	 * 
+	 * @return Snapshot
+	 */
+	public KnowledgeBaseSnapshot snapshot()
+	{
+		long version = this.version();
+		CachedSnapshot cached = KnowledgeBase.snapshots.get(this.id);
+		if (cached == null || cached.version != version) {
+			KnowledgeBaseSnapshot snapshot;
+			if (this.storage.equals(MAPPED)) {
+				snapshot = this.mappedManager().snapshot();
+			} else {
+				this.databaseManager();
+				snapshot = KnowledgeBaseSnapshot.load(this.table());
+			}
+			cached = new CachedSnapshot(version, snapshot);
+			KnowledgeBase.snapshots.put(this.id, cached);
+		}
+		return cached.snapshot;
+	}
+	
+	/**
+	 * Get the storage backend of this knowledge base, either DATABASE or MAPPED.
+	 * 
+	 * @return Storage backend
+	 */
+	public String storage()
+	{
+		return this.storage;
+	}
+	
+	/**
+	 * Set the storage backend of this knowledge base. The backend can only be chosen before the knowledge base is
+	 * saved for the first time, since existing ads are not moved.
+	 * 
+	 * @param storage DATABASE or MAPPED
+	 */
+	public void storage(String storage)
+	{
+		if (!DATABASE.equals(storage) && !MAPPED.equals(storage)) {
+			throw new IllegalArgumentException("Unknown storage: " + storage);
+		}
+		if (this.exists && !this.storage.equals(storage)) {
+			throw new RuntimeException("The storage of an existing knowledge base cannot be changed.");
+		}
+		this.storage = storage;
+	}
+	
+	/**
+	 * Returns the file where the ads are stored if the knowledge base is memory mapped.
+	 * 
+	 * @return Data file
+	 */
+	public File file()
+	{
+		return new File(DatabaseHelper.instance().getDataDirectory(), this.table() + ".ads");
+	}
+	
 	/**
 	 * Returns the table name where the ads belonging to the knowledge base are stored.
 	 * 
@@ -80,6 +356,7 @@ public class KnowledgeBase
 	{
 		this.id = id;
 		this.name = name;
+		this.storage = DATABASE;
 	}
 	
 	/**
@@ -131,13 +408,73 @@ public class KnowledgeBase
 		return this.manager;
 	}
 	
+	/**
+	 * Private access method for the memory mapped storage.
+	 * 
+	 * @return Memory mapped storage
+	 */
+	private AdMappedStorage mappedManager()
+	{
+		if (!this.saved) {
+			throw new RuntimeException("Knowledge base must be saved before connecting to its storage.");
+		}
+		if (this.mappedManager == null) {
+			this.mappedManager = new AdMappedStorage(this.file());
+		}
+		return this.mappedManager;
+	}
+	
+	/**
+	 * Private access method for the storage of the ads, depending on the backend.
+	 * 
+	 * @return Ad storage
+	 */
+	private AdStorage storageManager()
+	{
+		return this.storage.equals(MAPPED) ? this.mappedManager() : this.databaseManager();
+	}
+	
+	/**
+	 * Private helper method for checking whether queries are answered from a snapshot.
+	 * 
+	 * @return True if a snapshot is used
+	 */
+	private boolean useSnapshot()
+	{
+		return this.inMemory() || this.storage.equals(MAPPED);
+	}
+	
 	/**
 	 * Get a map where the keys are the targeting properties used in the data set and the values are lists of the
 	 * values that each property can take.
 	 * 
+	 * The targets are only read from the database once per data version. The returned map is a copy which the caller
+	 * may modify.
+	 * 
 	 * @return Target properties and their values
 	 */
 	public Map<String, List<String>> targets()
+	{
+		long version = this.version();
+		CachedTargets cached = KnowledgeBase.targets.get(this.id);
+		if (cached == null || cached.version != version) {
+			cached = new CachedTargets(version, this.useSnapshot() ? this.snapshot().targets() : this.readTargets());
+			KnowledgeBase.targets.put(this.id, cached);
+		}
+		
+		Map<String, List<String>> map = new HashMap<String, List<String>>();
+		for (Map.Entry<String, List<String>> entry : cached.targets.entrySet()) {
+			map.put(entry.getKey(), new LinkedList<String>(entry.getValue()));
+		}
+		return map;
+	}
+	
+	/**
+	 * Private helper method for reading the targets from the database. See targets().
+	 * 
+	 * @return Target properties and their values
+	 */
+	private Map<String, List<String>> readTargets()
 	{
 		Map<String, List<String>> map = new HashMap<String, List<String>>();
 		List<String> ageList = new LinkedList<String>();
@@ -148,7 +485,7 @@ public class KnowledgeBase
 		genders.add("All");
 		map.put("Gender", genders);
 		
-		Ads targets = this.databaseManager().getTargets();
+		Ads targets = this.databaseManager().getTargets(AdQuery.all());
 		
 		if (targets == null || targets.numAttributes() == 0) {
 			return map;
@@ -158,6 +495,7 @@ public class KnowledgeBase
 			genders.add(targets.attribute("Gender").value(i));
 		}
 
+		// Each instance is a distinct target, so there is one per gender and age range at most
 		Set<String> ages = new TreeSet<String>();
 		Attribute attMinAge = targets.attribute("Age Min");
 		Attribute attMaxAge = targets.attribute("Age Max");
@@ -170,25 +508,44 @@ public class KnowledgeBase
 	}
 	
 	/**
-	 * Get all ads that matches the specified target.
+	 * Get all ads that matches the specified target. Results are cached, but the returned ads are always a copy which
+	 * the caller may modify.
 	 * 
 	 * @param target targeting, property => value, and null means all targets
 	 * @return 
 	 */
 	public Ads getAds(Map<String, String> target)
 	{
-		this.databaseManager().resetWhere();
-		if (target != null) {
-			for (String key : target.keySet()) {
-				this.databaseManager().where(key, target.get(key));
-			}
+		long version = this.version();
+		Ads ads = AdsCache.instance().get(this.id, version, target, null);
+		if (ads != null) {
+			return ads;
+		}
+		if (this.inMemory()) {
+			ads = this.snapshot().getAds(target);
+		} else {
+			ads = this.storageManager().get(AdQuery.target(target));
 		}
-		Ads ads = this.databaseManager().get();
+		AdsCache.instance().put(this.id, version, target, null, ads);
 		return ads;
 	}
 	
 	/**
-	 * Get the aggregate of all ads matching the target with aggregation on the specified attribute.
+	 * Open a cursor over all ads that match the specified target, for reading them a chunk at a time. Unlike getAds,
+	 * the ads are never read all at once and are not cached, so this works for knowledge bases of any size.
+	 * 
+	 * @param target targeting, property => value, and null means all targets
+	 * @param chunkSize Maximum number of rows in each chunk
+	 * @return Cursor, which the caller should close
+	 */
+	public AdCursor cursor(Map<String, String> target, int chunkSize)
+	{
+		return this.storageManager().cursor(AdQuery.target(target), chunkSize);
+	}
+	
+	/**
+	 * Get the aggregate of all ads matching the target with aggregation on the specified attribute. Results are cached
+	 * in the same way as for getAds.
 	 * 
 	 * @param target
 	 * @param aggregate
@@ -196,73 +553,261 @@ public class KnowledgeBase
 	 */
 	public Ads getAggregatedAds(Map<String, String> target, String aggregate)
 	{
-		this.databaseManager().resetWhere();
-		if (target != null) {
-			for (String key : target.keySet()) {
-				this.databaseManager().where(key, target.get(key));
-			}
+		long version = this.version();
+		Ads ads = AdsCache.instance().get(this.id, version, target, aggregate);
+		if (ads != null) {
+			return ads;
+		}
+		if (this.useSnapshot()) {
+			ads = this.snapshot().getAggregate(aggregate, target);
+		} else {
+			ads = this.databaseManager().get(AdQuery.target(target).groupBy(aggregate));
 		}
-		Ads ads = this.databaseManager().getAggregate(aggregate);
+		AdsCache.instance().put(this.id, version, target, aggregate, ads);
 		return ads;
 	}
 	
 	/**
-	 * Store the ads provided in this knowledge base by appending them to the knowledge base table.
+	 * Store the ads provided in this knowledge base by appending them to the knowledge base table or file. Registered
+	 * listeners are told about the ads once they are stored.
 	 * 
 	 * @param ads Ads to be stored
 	 */
 	public void addAds(Ads ads)
 	{
-		this.databaseManager().add(ads);
+		long previous = this.version();
+		long version;
+		boolean stored = false;
+		VersionHook hook = new VersionHook();
+		try {
+			if (this.storage.equals(MAPPED)) {
+				this.mappedManager().add(ads);
+			} else {
+				this.databaseManager().add(ads, hook);
+			}
+			stored = true;
+		} finally {
+			// Ads which were only partly stored cannot be appended to the snapshot
+			version = this.bumpVersion(stored ? ads : null, stored ? hook.version : 0);
+		}
+		for (AdsListener listener : KnowledgeBase.listeners) {
+			listener.added(this, previous, version, ads);
+		}
 	}
 
 	/**
-	 * Get all knowledge bases.
+	 * Store the ads provided in this knowledge base, replacing stored ads with the same Ad ID and appending the rest.
+	 * Use this when importing reports which overlap earlier imports. Only knowledge bases in the database can merge
+	 * ads.
 	 * 
-	 * @return List of knowledge bases
+	 * @param ads Ads to be stored, with the Ad ID attribute
 	 */
-	public static List<KnowledgeBase> getAll()
+	public void upsertAds(Ads ads)
 	{
+		if (!this.storage.equals(DATABASE)) {
+			throw new RuntimeException("Only knowledge bases stored in the database can merge ads.");
+		}
+		VersionHook hook = new VersionHook();
+		boolean stored = false;
 		try {
-			Connection con = DatabaseHelper.instance().getConnection();
-			PreparedStatement readAll = con.prepareStatement("SELECT id, name FROM knowledge_bases");
-			ResultSet rs = readAll.executeQuery();
-			List<KnowledgeBase> list = new LinkedList<KnowledgeBase>();
-			while (rs.next()) {
-				KnowledgeBase kb = new KnowledgeBase(rs.getInt("id"), rs.getString("name"));
-				kb.saved(true);
-				list.add(kb);
+			this.databaseManager().upsert(ads, hook);
+			stored = true;
+		} finally {
+			this.bumpVersion(null, stored ? hook.version : 0);
+		}
+	}
+
+	/**
+	 * Get the imports of this knowledge base, oldest first. Only knowledge bases in the database record imports.
+	 * 
+	 * @return Partitions, one per import
+	 */
+	public List<Partition> partitions()
+	{
+		if (!this.storage.equals(DATABASE)) {
+			return new LinkedList<Partition>();
+		}
+		return this.databaseManager().partitions();
+	}
+	
+	/**
+	 * Remove an import and all of its ads from this knowledge base.
+	 * 
+	 * @param partition Partition of this knowledge base
+	 */
+	public void dropPartition(Partition partition)
+	{
+		if (!partition.table().equals(this.table())) {
+			throw new RuntimeException("The partition does not belong to this knowledge base.");
+		}
+		VersionHook hook = new VersionHook();
+		boolean dropped = false;
+		try {
+			this.databaseManager().dropPartition(partition.id(), hook);
+			dropped = true;
+		} finally {
+			this.bumpVersion(null, dropped ? hook.version : 0);
+		}
+	}
+
+	/**
+	 * Create a new knowledge base holding a copy of all ads in this one.
+	 * 
+	 * @param name Name of the new knowledge base
+	 * @return New knowledge base
+	 */
+	public KnowledgeBase copy(String name)
+	{
+		return this.copy(name, null);
+	}
+	
+	/**
+	 * Create a new knowledge base holding a copy of the ads in this one with the given target.
+	 * 
+	 * @param name Name of the new knowledge base
+	 * @param target Target, property => value, null for all targets
+	 * @return New knowledge base
+	 */
+	public KnowledgeBase copy(String name, Map<String, String> target)
+	{
+		List<KnowledgeBase> sources = new LinkedList<KnowledgeBase>();
+		sources.add(this);
+		return KnowledgeBase.create(name, sources, target);
+	}
+	
+	/**
+	 * Create a new knowledge base holding all ads of several knowledge bases.
+	 * 
+	 * @param name Name of the new knowledge base
+	 * @param sources Knowledge bases to merge
+	 * @return New knowledge base
+	 */
+	public static KnowledgeBase merge(String name, List<KnowledgeBase> sources)
+	{
+		return KnowledgeBase.create(name, sources, null);
+	}
+	
+	/**
+	 * Split this knowledge base into one new knowledge base per value of a target property, for example one per
+	 * gender. The new knowledge bases are named after this one and the value. This knowledge base is left as it is.
+	 * 
+	 * @param property Target property, as in targets()
+	 * @return New knowledge bases
+	 */
+	public List<KnowledgeBase> split(String property)
+	{
+		List<String> values = this.targets().get(property);
+		if (values == null) {
+			throw new RuntimeException("Cannot split on " + property);
+		}
+		List<KnowledgeBase> kbs = new LinkedList<KnowledgeBase>();
+		for (String value : values) {
+			if (value.equals("All")) {
+				continue;
 			}
-			readAll.close();
-			con.close();
-			return list;
+			Map<String, String> target = new HashMap<String, String>();
+			target.put(property, value);
+			kbs.add(this.copy(String.format("%s (%s)", this.name, value), target));
+		}
+		return kbs;
+	}
+	
+	/**
+	 * Private helper method for creating a new knowledge base from the ads of others. The knowledge base and its ads
+	 * are created in a single transaction, and the ads are copied without leaving the database.
+	 * 
+	 * @param name Name of the new knowledge base
+	 * @param sources Knowledge bases to copy from, which must be stored in the database
+	 * @param target Target, property => value, null for all targets
+	 * @return New knowledge base
+	 */
+	private static KnowledgeBase create(String name, List<KnowledgeBase> sources, Map<String, String> target)
+	{
+		List<String> tables = new LinkedList<String>();
+		for (KnowledgeBase source : sources) {
+			if (!source.storage.equals(DATABASE)) {
+				throw new RuntimeException("Only knowledge bases stored in the database can be copied.");
+			}
+			tables.add(source.table());
+		}
+		
+		KnowledgeBase kb = new KnowledgeBase(name);
+		VersionHook hook = kb.new VersionHook();
+		boolean committed = false;
+		Connection con = DatabaseHelper.instance().getWriteConnection();
+		try {
+			con.setAutoCommit(false);
+			// The writer is re-entrant, so saving joins this transaction
+			kb.save();
+			new AdDatabaseStorage(kb.table()).copy(con, tables, target);
+			hook.beforeCommit(con);
+			con.commit();
+			committed = true;
 		} catch (SQLException ex) {
 			throw new RuntimeException(ex);
+		} finally {
+			try {
+				con.close();
+			} catch (SQLException ex) {
+				throw new RuntimeException(ex);
+			}
+			if (!committed) {
+				// The knowledge base was rolled back along with its ads
+				KnowledgeBaseCatalog.instance().reload();
+			}
 		}
+		// Published once the writer has been returned, as for other changes
+		kb.bumpVersion(null, hook.version);
+		return kb;
 	}
 	
 	/**
-	 * Get a single knowledge base based on its ID.
+	 * Get all knowledge bases. The knowledge bases come from the shared catalog, so the same knowledge base is always
+	 * represented by the same object.
+	 * 
+	 * @return List of knowledge bases
+	 */
+	public static List<KnowledgeBase> getAll()
+	{
+		return KnowledgeBaseCatalog.instance().all();
+	}
+	
+	/**
+	 * Get a single knowledge base based on its ID, from the shared catalog.
 	 * 
 	 * @param id Knowledge base ID
-	 * @return 
+	 * @return Knowledge base, null if there is none with the ID
 	 */
 	public static KnowledgeBase find(int id)
+	{
+		return KnowledgeBaseCatalog.instance().find(id);
+	}
+	
+	/**
+	 * Read all knowledge bases from the database. Used by the catalog; everything else should use getAll().
+	 * 
+	 * @return List of knowledge bases
+	 */
+	static List<KnowledgeBase> readAll()
 	{
 		try {
 			Connection con = DatabaseHelper.instance().getConnection();
-			PreparedStatement find = con.prepareStatement("SELECT id, name FROM knowledge_bases WHERE id = ?");
-			find.setInt(1, id);
-			ResultSet rs = find.executeQuery();
-			if (rs.isAfterLast()) {
-				// Query didn't return any matches
-				return null;
+			try {
+				PreparedStatement readAll = con.prepareStatement("SELECT id, name, storage FROM knowledge_bases "
+						+ "ORDER BY id");
+				ResultSet rs = readAll.executeQuery();
+				List<KnowledgeBase> list = new LinkedList<KnowledgeBase>();
+				while (rs.next()) {
+					KnowledgeBase kb = new KnowledgeBase(rs.getInt("id"), rs.getString("name"));
+					kb.storage = rs.getString("storage");
+					kb.saved(true);
+					list.add(kb);
+				}
+				readAll.close();
+				return list;
+			} finally {
+				con.close();
 			}
-			KnowledgeBase kb = new KnowledgeBase(rs.getInt("id"), rs.getString("name"));
-			kb.saved(true);
-			find.close();
-			con.close();
-			return kb;
 		} catch (SQLException ex) {
 			throw new RuntimeException(ex);
 		}
@@ -270,30 +815,39 @@ public class KnowledgeBase
 	
 	/**
 	 * Save the object, either inserting it to the database if it does not already exist or otherwise updating 
-	 * its record.
+	 * its record. The catalog is updated to match.
 	 */
 	public void save()
 	{
+		boolean changed = !this.saved;
 		try {
-			Connection con = DatabaseHelper.instance().getConnection();
-			if (this.exists && !this.saved) {
-				PreparedStatement update = con.prepareStatement("UPDATE knowledge_bases SET name = ? WHERE id = ?");
-				update.setString(1, this.name);
-				update.setInt(2, this.id);
-				update.executeUpdate();
-				update.close();
-			} else if (!this.exists) {
-				PreparedStatement insert = con.prepareStatement("INSERT INTO knowledge_bases VALUES (null, ?)");
-				insert.setString(1, this.name);
-				insert.execute();
-				this.id = insert.getGeneratedKeys().getInt(1);
-				insert.close();
+			Connection con = DatabaseHelper.instance().getWriteConnection();
+			try {
+				if (this.exists && !this.saved) {
+					PreparedStatement update = con.prepareStatement("UPDATE knowledge_bases SET name = ? WHERE id = ?");
+					update.setString(1, this.name);
+					update.setInt(2, this.id);
+					update.executeUpdate();
+					update.close();
+				} else if (!this.exists) {
+					PreparedStatement insert = con.prepareStatement(
+							"INSERT INTO knowledge_bases (name, storage) VALUES (?, ?)");
+					insert.setString(1, this.name);
+					insert.setString(2, this.storage);
+					insert.execute();
+					this.id = insert.getGeneratedKeys().getInt(1);
+					insert.close();
+				}
+			} finally {
+				con.close();
 			}
 			this.saved(true);
-			con.close();
 		} catch (SQLException ex) {
 			throw new RuntimeException(ex);
 		}
+		if (changed) {
+			KnowledgeBaseCatalog.instance().saved(this);
+		}
 	}
 	
 	/**
@@ -306,20 +860,31 @@ public class KnowledgeBase
 		}
 		
 		try {
-			Connection con = DatabaseHelper.instance().getConnection();
-			PreparedStatement delete = con.prepareStatement("DELETE FROM knowledge_bases WHERE id = ?");
-			delete.setInt(1, this.id());
-			delete.executeUpdate();
-			delete.close();
-			Statement drop = con.createStatement();
-			drop.execute(String.format("DROP TABLE IF EXISTS %s", this.table()));
-			drop.close();
-			con.close();
+			Connection con = DatabaseHelper.instance().getWriteConnection();
+			try {
+				PreparedStatement delete = con.prepareStatement("DELETE FROM knowledge_bases WHERE id = ?");
+				delete.setInt(1, this.id());
+				delete.executeUpdate();
+				delete.close();
+				if (this.storage.equals(MAPPED)) {
+					new AdMappedStorage(this.file()).drop();
+					this.mappedManager = null;
+				} else {
+					new AdDatabaseStorage(this.table()).drop(con);
+				}
+			} finally {
+				con.close();
+			}
+			this.bumpVersion(null);
 			this.saved(false);
 			this.exists(false);
 		} catch (SQLException ex) {
 			throw new RuntimeException(ex);
 		}
+		KnowledgeBaseCatalog.instance().deleted(this);
+		for (AdsListener listener : KnowledgeBase.listeners) {
+			listener.deleted(this);
+		}
 	}
 
 	@Override
@@ -341,4 +906,89 @@ public class KnowledgeBase
 		return hash;
 	}
 	
-}
+	/**
+	 * Listener for ads added to knowledge bases, and for knowledge bases which are deleted along with their ads.
+	 */
+	public interface AdsListener
+	{
+		/**
+		 * Called after ads have been stored in a knowledge base, on the thread which added them. Results which were
+		 * computed at the previous version, and have been brought up to date with the ads, are valid at the new
+		 * version.
+		 * 
+		 * @param kb Knowledge base
+		 * @param previousVersion Data version before the ads were added
+		 * @param version Data version after the ads were added
+		 * @param ads Added ads
+		 */
+		public void added(KnowledgeBase kb, long previousVersion, long version, Ads ads);
+
+		/**
+		 * Called after a knowledge base has been deleted, so that results computed from its ads can be dropped.
+		 * 
+		 * @param kb Deleted knowledge base, which still has its ID
+		 */
+		public void deleted(KnowledgeBase kb);
+	}
+	
+	/**
+	 * Targets of a knowledge base along with the data version they were read at.
+	 */
+	private static class CachedTargets
+	{
+		private final long version;
+		private final Map<String, List<String>> targets;
+
+		CachedTargets(long version, Map<String, List<String>> targets)
+		{
+			this.version = version;
+			this.targets = targets;
+		}
+	}
+	
+	/**
+	 * Snapshot of a knowledge base along with the data version it was loaded at.
+	 */
+	private static class CachedSnapshot
+	{
+		private final long version;
+		private final KnowledgeBaseSnapshot snapshot;
+
+		CachedSnapshot(long version, KnowledgeBaseSnapshot snapshot)
+		{
+			this.version = version;
+			this.snapshot = snapshot;
+		}
+	}
+
+	/**
+	 * Commit hook which stores a new data version in the same transaction as a change to the ads, so that the stored
+	 * version never disagrees with the stored ads. The version is only published to the other objects for the knowledge
+	 * base by bumpVersion once the transaction has committed.
+	 *
+	 * The hook runs while the writer is held, so it reads the published version without taking the lock on versions;
+	 * the writer is never taken while that lock is held, and the other way around would deadlock.
+	 */
+	private class VersionHook implements AdDatabaseStorage.CommitHook
+	{
+		private long version;
+
+		@Override
+		public void beforeCommit(Connection con) throws SQLException
+		{
+			PreparedStatement select = DatabaseHelper.instance().prepareCached(con,
+					"SELECT data_version FROM knowledge_bases WHERE id = ?");
+			select.setInt(1, KnowledgeBase.this.id);
+			ResultSet rs = select.executeQuery();
+			long current = rs.next() ? rs.getLong(1) : 0;
+			rs.close();
+			Long published = KnowledgeBase.versions.get(KnowledgeBase.this.id);
+			if (published != null) {
+				current = Math.max(current, published);
+			}
+			this.version = Math.max(current + 1, System.currentTimeMillis());
+			KnowledgeBase.this.writeVersion(con, this.version);
+		}
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,120 @@
+package adstimator.data;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+
+/**
+ * Catalog of all knowledge bases in the database.
+ *
+ * The catalog is read from the database once and then kept up to date as knowledge bases are saved and deleted. It
+ * holds a single instance per knowledge base, so everything that asks for a knowledge base shares the same object and
+ * thereby its storage handles.
+ *
+ * The catalog is Observable, and observers are notified with the affected knowledge base whenever one is added,
+ * renamed or deleted, and with null when the catalog is reloaded.
+ *
+ * @author erikbrannstrom
+ */
+public class KnowledgeBaseCatalog extends Observable
+{
+	private static KnowledgeBaseCatalog instance;
+	private Map<Integer, KnowledgeBase> kbs;
+	private String connectionURL;
+
+	/**
+	 * Get the catalog shared by the whole application.
+	 *
+	 * @return Singleton
+	 */
+	public static synchronized KnowledgeBaseCatalog instance()
+	{
+		if (instance == null) {
+			instance = new KnowledgeBaseCatalog();
+		}
+		return instance;
+	}
+
+	/**
+	 * Get all knowledge bases, in order of ID.
+	 *
+	 * @return List of knowledge bases, which the caller may modify
+	 */
+	public synchronized List<KnowledgeBase> all()
+	{
+		return new ArrayList<KnowledgeBase>(this.kbs().values());
+	}
+
+	/**
+	 * Get a single knowledge base based on its ID.
+	 *
+	 * @param id Knowledge base ID
+	 * @return Knowledge base, null if there is none with the ID
+	 */
+	public synchronized KnowledgeBase find(int id)
+	{
+		return this.kbs().get(id);
+	}
+
+	/**
+	 * Read the catalog from the database again. Only needed if the knowledge_bases table is modified directly.
+	 */
+	public void reload()
+	{
+		synchronized (this) {
+			this.kbs = null;
+			this.kbs();
+			this.setChanged();
+		}
+		this.notifyObservers(null);
+	}
+
+	/**
+	 * Register that a knowledge base has been saved.
+	 *
+	 * @param kb Saved knowledge base
+	 */
+	void saved(KnowledgeBase kb)
+	{
+		synchronized (this) {
+			this.kbs().put(kb.id(), kb);
+			this.setChanged();
+		}
+		this.notifyObservers(kb);
+	}
+
+	/**
+	 * Register that a knowledge base has been deleted.
+	 *
+	 * @param kb Deleted knowledge base
+	 */
+	void deleted(KnowledgeBase kb)
+	{
+		synchronized (this) {
+			this.kbs().remove(kb.id());
+			this.setChanged();
+		}
+		this.notifyObservers(kb);
+	}
+
+	/**
+	 * Private helper method for getting the catalog, reading it if it has not been read or if the database has been
+	 * changed since.
+	 *
+	 * @return Knowledge bases by ID
+	 */
+	private Map<Integer, KnowledgeBase> kbs()
+	{
+		String url = DatabaseHelper.instance().getConnectionURL();
+		if (this.kbs == null || !url.equals(this.connectionURL)) {
+			this.kbs = new LinkedHashMap<Integer, KnowledgeBase>();
+			for (KnowledgeBase kb : KnowledgeBase.readAll()) {
+				this.kbs.put(kb.id(), kb);
+			}
+			this.connectionURL = url;
+		}
+		return this.kbs;
+	}
+}
@@ -14,6 +14,13 @@ public class KnowledgeBaseContainer extends Observable
 {
 	private KnowledgeBase kb;
 
+	/**
+	 * Initialize a new, empty container. Observers are notified when a knowledge base is set.
+	 */
+	public KnowledgeBaseContainer()
+	{
+	}
+
 	/**
 	 * Initialize a new container with a specific knowledge base.
 	 * 
@@ -37,7 +44,7 @@ public class KnowledgeBaseContainer extends Observable
 	/**
 	 * Return the knowledge base instance.
 	 * 
-	 * @return Active knowledge base
+	 * @return Active knowledge base, null if none has been set
 	 */
 	public KnowledgeBase getKnowledgeBase()
 	{
@@ -0,0 +1,488 @@
+package adstimator.data;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Utils;
+
+/**
+ * Columnar in-memory copy of the ads in a knowledge base.
+ *
+ * Body, Image Hash and Gender are stored as int codes into a dictionary per column, ages as ints and the metrics as
+ * longs, with one primitive array per column. This takes a fraction of the memory of the same rows as Weka instances,
+ * and filtering by target and aggregating by ad property are simple loops over the arrays. Ads are only created when a
+ * result is returned, and they then look exactly like the ones returned by AdDatabaseStorage.
+ *
+ * Like queries on the database, the snapshot only holds ads with impressions.
+ *
+ * Ads can be appended to a snapshot while other threads query it, so appending and querying are synchronized.
+ *
+ * @author erikbrannstrom
+ */
+public class KnowledgeBaseSnapshot
+{
+	private static final int MISSING = -1;
+	private static final int MISSING_AGE = Integer.MIN_VALUE;
+
+	private final Dictionary bodies, images, genders;
+	private int[] body, image, gender, ageMin, ageMax;
+	private long[] clicks, impressions;
+	private int size;
+
+	/**
+	 * Create an empty snapshot with room for the given number of ads. It grows as needed.
+	 *
+	 * @param capacity Initial capacity
+	 */
+	private KnowledgeBaseSnapshot(int capacity)
+	{
+		capacity = Math.max(capacity, 16);
+		this.bodies = new Dictionary();
+		this.images = new Dictionary();
+		this.genders = new Dictionary();
+		this.body = new int[capacity];
+		this.image = new int[capacity];
+		this.gender = new int[capacity];
+		this.ageMin = new int[capacity];
+		this.ageMax = new int[capacity];
+		this.clicks = new long[capacity];
+		this.impressions = new long[capacity];
+	}
+
+	/**
+	 * Load a snapshot of a knowledge base table in a single pass over the rows.
+	 *
+	 * @param table Table name
+	 * @return Snapshot, empty if the table does not exist
+	 */
+	public static KnowledgeBaseSnapshot load(String table)
+	{
+		KnowledgeBaseSnapshot snapshot = new KnowledgeBaseSnapshot(1024);
+		Connection con = DatabaseHelper.instance().getConnection();
+		try {
+			if (AdDatabaseStorage.columns(con, table).isEmpty()) {
+				return snapshot;
+			}
+			Statement query = con.createStatement();
+			ResultSet rs = query.executeQuery(String.format("SELECT Body, Image_Hash, Gender, Age_Min, Age_Max, "
+					+ "Clicks_Count, Impressions FROM %s WHERE Impressions > 0", table));
+			while (rs.next()) {
+				int row = snapshot.newRow();
+				snapshot.body[row] = snapshot.bodies.code(rs.getString(1));
+				snapshot.image[row] = snapshot.images.code(rs.getString(2));
+				snapshot.gender[row] = snapshot.genders.code(rs.getString(3));
+				snapshot.ageMin[row] = rs.getInt(4);
+				if (rs.wasNull()) {
+					snapshot.ageMin[row] = MISSING_AGE;
+				}
+				snapshot.ageMax[row] = rs.getInt(5);
+				if (rs.wasNull()) {
+					snapshot.ageMax[row] = MISSING_AGE;
+				}
+				snapshot.clicks[row] = rs.getLong(6);
+				snapshot.impressions[row] = rs.getLong(7);
+			}
+			rs.close();
+			query.close();
+			return snapshot;
+		} catch (SQLException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			try {
+				con.close();
+			} catch (SQLException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Create a snapshot from a set of ads. The ads must have the Body, Image Hash, Gender, Age Min, Age Max, Clicks
+	 * Count and Impressions attributes.
+	 *
+	 * @param ads Ads to copy
+	 * @return Snapshot
+	 */
+	public static KnowledgeBaseSnapshot of(Ads ads)
+	{
+		KnowledgeBaseSnapshot snapshot = new KnowledgeBaseSnapshot(ads.numInstances());
+		snapshot.append(ads);
+		return snapshot;
+	}
+
+	/**
+	 * Create an empty snapshot, to be filled using add().
+	 *
+	 * @param capacity Expected number of ads
+	 * @return Snapshot
+	 */
+	static KnowledgeBaseSnapshot empty(int capacity)
+	{
+		return new KnowledgeBaseSnapshot(capacity);
+	}
+
+	/**
+	 * Add a single ad to the snapshot. Ads without impressions are skipped.
+	 *
+	 * @param body Body, null if missing
+	 * @param image Image Hash, null if missing
+	 * @param gender Gender, null if missing
+	 * @param ageMin Minimum age, NaN if missing
+	 * @param ageMax Maximum age, NaN if missing
+	 * @param clicks Clicks Count
+	 * @param impressions Impressions
+	 */
+	void add(String body, String image, String gender, double ageMin, double ageMax, double clicks,
+			double impressions)
+	{
+		if (!(impressions > 0)) {
+			return;
+		}
+		int row = this.newRow();
+		this.body[row] = this.bodies.code(body);
+		this.image[row] = this.images.code(image);
+		this.gender[row] = this.genders.code(gender);
+		this.ageMin[row] = Double.isNaN(ageMin) ? MISSING_AGE : (int)ageMin;
+		this.ageMax[row] = Double.isNaN(ageMax) ? MISSING_AGE : (int)ageMax;
+		this.clicks[row] = Double.isNaN(clicks) ? 0 : (long)clicks;
+		this.impressions[row] = (long)impressions;
+	}
+
+	/**
+	 * Append ads to the snapshot. Ads without impressions are skipped. The ads must have the Body, Image Hash, Gender,
+	 * Age Min, Age Max, Clicks Count and Impressions attributes.
+	 *
+	 * @param ads Ads to append
+	 */
+	public synchronized void append(Ads ads)
+	{
+		Attribute attBody = KnowledgeBaseSnapshot.required(ads, "Body");
+		Attribute attImage = KnowledgeBaseSnapshot.required(ads, "Image Hash");
+		Attribute attGender = KnowledgeBaseSnapshot.required(ads, "Gender");
+		Attribute attMin = KnowledgeBaseSnapshot.required(ads, "Age Min");
+		Attribute attMax = KnowledgeBaseSnapshot.required(ads, "Age Max");
+		Attribute attClicks = KnowledgeBaseSnapshot.required(ads, "Clicks Count");
+		Attribute attImpressions = KnowledgeBaseSnapshot.required(ads, "Impressions");
+		for (Instance ad : ads) {
+			this.add(ad.isMissing(attBody) ? null : ad.stringValue(attBody),
+					ad.isMissing(attImage) ? null : ad.stringValue(attImage),
+					ad.isMissing(attGender) ? null : ad.stringValue(attGender),
+					ad.value(attMin), ad.value(attMax), ad.value(attClicks), ad.value(attImpressions));
+		}
+	}
+
+	/**
+	 * Check whether ads have the attributes needed to append them to a snapshot.
+	 *
+	 * @param ads Ads
+	 * @return True if append() accepts the ads
+	 */
+	public static boolean appendable(Ads ads)
+	{
+		for (String name : new String[]{"Body", "Image Hash", "Gender", "Age Min", "Age Max", "Clicks Count",
+				"Impressions"}) {
+			if (ads.attribute(name) == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Number of ads in the snapshot
+	 */
+	public synchronized int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * Get all ads matching the target, with the same attributes as AdDatabaseStorage.get(): Body, Image Hash, Clicks
+	 * Count and Impressions.
+	 *
+	 * @param target Target, property => value, null for all targets
+	 * @return Matching ads, null if there are none
+	 */
+	public synchronized Ads getAds(Map<String, String> target)
+	{
+		int[] rows = this.select(target);
+		if (rows.length == 0) {
+			return null;
+		}
+
+		// Nominal values are only those of the matching ads, in order of first appearance
+		int[] bodyCodes = new int[this.bodies.size()];
+		int[] imageCodes = new int[this.images.size()];
+		List<String> bodyValues = new ArrayList<String>();
+		List<String> imageValues = new ArrayList<String>();
+		for (int row : rows) {
+			KnowledgeBaseSnapshot.recode(this.body[row], this.bodies, bodyCodes, bodyValues);
+			KnowledgeBaseSnapshot.recode(this.image[row], this.images, imageCodes, imageValues);
+		}
+
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		attributes.add(new Attribute("Body", bodyValues));
+		attributes.add(new Attribute("Image Hash", imageValues));
+		attributes.add(new Attribute("Clicks Count"));
+		attributes.add(new Attribute("Impressions"));
+		Ads ads = new Ads("snapshot", attributes, rows.length);
+		for (int row : rows) {
+			ads.append(new double[]{
+				this.body[row] == MISSING ? Utils.missingValue() : bodyCodes[this.body[row]] - 1,
+				this.image[row] == MISSING ? Utils.missingValue() : imageCodes[this.image[row]] - 1,
+				this.clicks[row],
+				this.impressions[row]
+			});
+		}
+		return ads;
+	}
+
+	/**
+	 * Get the summed metrics per value of an ad property for all ads matching the target, with the same attributes as
+	 * AdDatabaseStorage.getAggregate().
+	 *
+	 * @param attribute Body or Image Hash
+	 * @param target Target, property => value, null for all targets
+	 * @return Aggregated ads, null if no ads match
+	 */
+	public synchronized Ads getAggregate(String attribute, Map<String, String> target)
+	{
+		int[] column;
+		Dictionary dictionary;
+		if (attribute.equals("Body")) {
+			column = this.body;
+			dictionary = this.bodies;
+		} else if (attribute.equals("Image Hash")) {
+			column = this.image;
+			dictionary = this.images;
+		} else {
+			throw new IllegalArgumentException("Cannot aggregate on " + attribute);
+		}
+
+		// One slot per code, with the last slot for missing values
+		int slots = dictionary.size() + 1;
+		long[] sumClicks = new long[slots];
+		long[] sumImpressions = new long[slots];
+		for (int row : this.select(target)) {
+			int slot = column[row] == MISSING ? slots - 1 : column[row];
+			sumClicks[slot] += this.clicks[row];
+			sumImpressions[slot] += this.impressions[row];
+		}
+
+		List<String> values = new ArrayList<String>();
+		List<double[]> rows = new ArrayList<double[]>();
+		for (int slot = 0; slot < slots; slot++) {
+			if (sumImpressions[slot] == 0) {
+				continue;
+			}
+			double value = Utils.missingValue();
+			if (slot < slots - 1) {
+				value = values.size();
+				values.add(dictionary.value(slot));
+			}
+			rows.add(new double[]{value, sumClicks[slot], sumImpressions[slot]});
+		}
+		if (rows.isEmpty()) {
+			return null;
+		}
+
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		attributes.add(new Attribute(attribute, values));
+		attributes.add(new Attribute("Clicks Count"));
+		attributes.add(new Attribute("Impressions"));
+		Ads ads = new Ads("snapshot", attributes, rows.size());
+		for (double[] row : rows) {
+			ads.append(row);
+		}
+		return ads;
+	}
+
+	/**
+	 * Get a map where the keys are the targeting properties and the values are lists of the values that each property
+	 * takes in the snapshot, in the same format as KnowledgeBase.targets().
+	 *
+	 * @return Target properties and their values
+	 */
+	public synchronized Map<String, List<String>> targets()
+	{
+		// Sorted, like the distinct targets read through the target index of the database
+		boolean[] usedGenders = new boolean[this.genders.size()];
+		Set<String> genders = new TreeSet<String>();
+		Set<String> ages = new TreeSet<String>();
+		for (int row = 0; row < this.size; row++) {
+			if (this.gender[row] != MISSING && !usedGenders[this.gender[row]]) {
+				usedGenders[this.gender[row]] = true;
+				genders.add(this.genders.value(this.gender[row]));
+			}
+			if (this.ageMin[row] != MISSING_AGE && this.ageMax[row] != MISSING_AGE) {
+				ages.add(this.ageMin[row] + "-" + this.ageMax[row]);
+			}
+		}
+		List<String> genderList = new ArrayList<String>();
+		genderList.add("All");
+		genderList.addAll(genders);
+		List<String> ageList = new ArrayList<String>();
+		ageList.add("All");
+		ageList.addAll(ages);
+
+		Map<String, List<String>> map = new HashMap<String, List<String>>();
+		map.put("Gender", genderList);
+		map.put("Age", ageList);
+		return map;
+	}
+
+	/**
+	 * Find the rows matching a target.
+	 *
+	 * @param target Target, property => value, null for all targets. Age can be given either as Age (min-max) or as
+	 * Age Min and Age Max. Body and Image Hash may also be used.
+	 * @return Indices of matching rows
+	 */
+	synchronized int[] select(Map<String, String> target)
+	{
+		// Translate the target to codes, where MISSING means no filter on the column
+		int wantGender = MISSING, wantBody = MISSING, wantImage = MISSING;
+		int wantMin = MISSING_AGE, wantMax = MISSING_AGE;
+		if (target != null) {
+			for (Map.Entry<String, String> filter : target.entrySet()) {
+				String key = filter.getKey();
+				String value = filter.getValue();
+				int code = 0;
+				if (key.equalsIgnoreCase("Age")) {
+					wantMin = (int)Double.parseDouble(value.substring(0, value.indexOf("-")));
+					wantMax = (int)Double.parseDouble(value.substring(value.indexOf("-") + 1));
+				} else if (key.equals("Age Min")) {
+					wantMin = (int)Double.parseDouble(value);
+				} else if (key.equals("Age Max")) {
+					wantMax = (int)Double.parseDouble(value);
+				} else if (key.equals("Gender")) {
+					code = wantGender = this.genders.find(value);
+				} else if (key.equals("Body")) {
+					code = wantBody = this.bodies.find(value);
+				} else if (key.equals("Image Hash")) {
+					code = wantImage = this.images.find(value);
+				} else {
+					throw new IllegalArgumentException("Cannot filter on " + key);
+				}
+				if (code < 0) {
+					// Value does not exist in the snapshot
+					return new int[0];
+				}
+			}
+		}
+
+		int[] rows = new int[this.size];
+		int count = 0;
+		for (int row = 0; row < this.size; row++) {
+			if ((wantGender == MISSING || this.gender[row] == wantGender)
+					&& (wantMin == MISSING_AGE || this.ageMin[row] == wantMin)
+					&& (wantMax == MISSING_AGE || this.ageMax[row] == wantMax)
+					&& (wantBody == MISSING || this.body[row] == wantBody)
+					&& (wantImage == MISSING || this.image[row] == wantImage)) {
+				rows[count++] = row;
+			}
+		}
+		return Arrays.copyOf(rows, count);
+	}
+
+	/**
+	 * Private helper method for adding a row, growing the arrays if needed.
+	 *
+	 * @return Index of the new row
+	 */
+	private int newRow()
+	{
+		if (this.size == this.body.length) {
+			int capacity = this.body.length * 2;
+			this.body = Arrays.copyOf(this.body, capacity);
+			this.image = Arrays.copyOf(this.image, capacity);
+			this.gender = Arrays.copyOf(this.gender, capacity);
+			this.ageMin = Arrays.copyOf(this.ageMin, capacity);
+			this.ageMax = Arrays.copyOf(this.ageMax, capacity);
+			this.clicks = Arrays.copyOf(this.clicks, capacity);
+			this.impressions = Arrays.copyOf(this.impressions, capacity);
+		}
+		return this.size++;
+	}
+
+	/**
+	 * Private helper method for assigning a code in a result to a dictionary code, the first time it is seen. Result
+	 * codes are stored one higher than their index, so that zero means not yet seen.
+	 */
+	private static void recode(int code, Dictionary dictionary, int[] codes, List<String> values)
+	{
+		if (code != MISSING && codes[code] == 0) {
+			values.add(dictionary.value(code));
+			codes[code] = values.size();
+		}
+	}
+
+	/**
+	 * Private helper method for getting an attribute that must exist.
+	 */
+	private static Attribute required(Ads ads, String name)
+	{
+		Attribute attribute = ads.attribute(name);
+		if (attribute == null) {
+			throw new RuntimeException("The required attributes could not be found in data set.");
+		}
+		return attribute;
+	}
+
+	/**
+	 * Dictionary mapping the distinct values of a column to consecutive int codes.
+	 */
+	private static class Dictionary
+	{
+		private final Map<String, Integer> codes = new HashMap<String, Integer>();
+		private final List<String> values = new ArrayList<String>();
+
+		/**
+		 * Get the code of a value, adding it if it is new.
+		 */
+		int code(String value)
+		{
+			if (value == null) {
+				return MISSING;
+			}
+			Integer code = this.codes.get(value);
+			if (code == null) {
+				code = this.values.size();
+				this.codes.put(value, code);
+				this.values.add(value);
+			}
+			return code;
+		}
+
+		/**
+		 * Get the code of a value without adding it.
+		 *
+		 * @return Code, or a negative number if the value is unknown
+		 */
+		int find(String value)
+		{
+			Integer code = this.codes.get(value);
+			return code == null ? -2 : code;
+		}
+
+		String value(int code)
+		{
+			return this.values.get(code);
+		}
+
+		int size()
+		{
+			return this.values.size();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package adstimator.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Map in access order which evicts its least recently used entries once it holds more than a maximum number of them.
+ * Used for the in-memory caches. Like LinkedHashMap, the map is not synchronized.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ * @author erikbrannstrom
+ */
+public class LruMap<K, V> extends LinkedHashMap<K, V>
+{
+	private static final long serialVersionUID = 1L;
+	private int maxEntries;
+
+	/**
+	 * Create a new map with the given maximum number of entries.
+	 *
+	 * @param maxEntries Maximum number of entries
+	 */
+	public LruMap(int maxEntries)
+	{
+		super(16, 0.75f, true);
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Set the maximum number of entries. If there are more entries than that, they are evicted as new entries are
+	 * put.
+	 *
+	 * @param maxEntries Maximum number of entries
+	 */
+	public void setMaxEntries(int maxEntries)
+	{
+		this.maxEntries = maxEntries;
+	}
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+	{
+		return this.size() > this.maxEntries;
+	}
+}
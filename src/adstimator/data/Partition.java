@@ -0,0 +1,73 @@
+package adstimator.data;
+
+import java.util.Date;
+
+/**
+ * A partition of a knowledge base table, holding the ads stored by a single import.
+ *
+ * Partitions are recorded in the kb_partitions table when ads are added, and every row of the import has the ID of its
+ * partition in the Batch_Id column. Rows stored before partitions were introduced do not belong to any partition.
+ *
+ * @author erikbrannstrom
+ */
+public class Partition
+{
+	private final int id;
+	private final String table;
+	private final long rows;
+	private final Date imported;
+
+	/**
+	 * Create a partition description.
+	 *
+	 * @param id Partition ID, which is the batch ID of its rows
+	 * @param table Table the partition belongs to
+	 * @param rows Number of rows in the partition
+	 * @param imported Time of the import
+	 */
+	public Partition(int id, String table, long rows, Date imported)
+	{
+		this.id = id;
+		this.table = table;
+		this.rows = rows;
+		this.imported = imported;
+	}
+
+	/**
+	 * @return Partition ID
+	 */
+	public int id()
+	{
+		return this.id;
+	}
+
+	/**
+	 * @return Table the partition belongs to
+	 */
+	public String table()
+	{
+		return this.table;
+	}
+
+	/**
+	 * @return Number of rows in the partition
+	 */
+	public long rows()
+	{
+		return this.rows;
+	}
+
+	/**
+	 * @return Time of the import
+	 */
+	public Date imported()
+	{
+		return new Date(this.imported.getTime());
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s #%d (%d rows, imported %tF %<tR)", this.table, this.id, this.rows, this.imported);
+	}
+}
@@ -18,6 +18,9 @@ import net.miginfocom.swing.MigLayout;
  * The GUI mostly uses other components, however it is responsible for listening to changes to the knowledge base
  * and resetting the table when that happens.
  * 
+ * The frame is created without touching the database, so that it can be shown right away. The controls that need a
+ * knowledge base are disabled until load() hands over the config and the current knowledge base.
+ * 
  * @author erikbrannstrom
  */
 public class GUI extends JFrame implements Observer
@@ -28,6 +31,7 @@ public class GUI extends JFrame implements Observer
 	// GUI components
 	private AdsTable table;
 	private TargetPanel targetPanel;
+	private List<JButton> buttons;
 
 	public GUI()
 	{
@@ -46,15 +50,15 @@ public class GUI extends JFrame implements Observer
 		// Initialize private variables
 		this.tableModel = new AdsTableModel(null, null);
 		this.table = new AdsTable(this.tableModel);
-		this.config = new Config();
-		this.kbContainer = new KnowledgeBaseContainer(Integer.parseInt(this.config.get("knowledge_base")));
+		this.kbContainer = new KnowledgeBaseContainer();
 		this.targetPanel = new TargetPanel(this.kbContainer);
 		this.kbContainer.addObserver(this);
-		this.update(this.kbContainer, null);
+		this.buttons = new ArrayList<JButton>();
 
 		// Menu bar
 		Exporter exp = new Exporter("resources/export-template.csv");
-		JMenuBar menuBar = new Menu(new ExportActionListener(exp, this.table, this.targetPanel), this.kbContainer);
+		JMenuBar menuBar = new Menu(new ExportActionListener(exp, this.table, this.targetPanel,
+				this.kbContainer), this.kbContainer);
 		this.setJMenuBar(menuBar);
 
 		// Targeting
@@ -67,16 +71,22 @@ public class GUI extends JFrame implements Observer
 		JButton btnSubmit = new JButton("Show suggestions");
 		btnSubmit.setActionCommand("All");
 		btnSubmit.addActionListener(showAction);
+		btnSubmit.setEnabled(false);
+		this.buttons.add(btnSubmit);
 		pnlTarget.add(btnSubmit);
 		
 		JButton btnTexts = new JButton("Show texts");
 		btnTexts.setActionCommand("Body");
 		btnTexts.addActionListener(showAction);
+		btnTexts.setEnabled(false);
+		this.buttons.add(btnTexts);
 		pnlTarget.add(btnTexts);
 		
 		JButton btnImages = new JButton("Show images");
 		btnImages.setActionCommand("Image Hash");
 		btnImages.addActionListener(showAction);
+		btnImages.setEnabled(false);
+		this.buttons.add(btnImages);
 		pnlTarget.add(btnImages);
 		
 		this.add(pnlTarget, "wrap");
@@ -92,6 +102,22 @@ public class GUI extends JFrame implements Observer
 		this.pack();
 	}
 
+	/**
+	 * Fill in the frame once the config and the current knowledge base have been loaded. Must be called on the event
+	 * dispatch thread.
+	 * 
+	 * @param config Configuration
+	 * @param kb Knowledge base to start with
+	 */
+	public void load(Config config, KnowledgeBase kb)
+	{
+		this.config = config;
+		this.kbContainer.setKnowledgeBase(kb);
+		for (JButton button : this.buttons) {
+			button.setEnabled(true);
+		}
+	}
+
 	/**
 	 * Stores the current knowledge base as the default one in the configuration and clears the table.
 	 * Automatically called when knowledge base instance is changed in the container.
@@ -102,6 +128,9 @@ public class GUI extends JFrame implements Observer
 	@Override
 	public final void update(Observable o, Object o1)
 	{
+		if (this.config == null || this.kbContainer.getKnowledgeBase() == null) {
+			return;
+		}
 		GUI.this.config.set("knowledge_base", String.valueOf(this.kbContainer.getKnowledgeBase().id()));
 		this.tableModel.setData(null, null);
 	}
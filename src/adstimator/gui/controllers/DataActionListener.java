@@ -3,6 +3,7 @@ package adstimator.gui.controllers;
 import adstimator.core.AdFactory;
 import adstimator.core.CombinationAdFactory;
 import adstimator.core.Estimator;
+import adstimator.core.EstimatorCache;
 import adstimator.data.Ads;
 import adstimator.data.KnowledgeBaseContainer;
 import adstimator.gui.models.AdsTableModel;
@@ -11,7 +12,6 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.util.Map;
 import javax.swing.JOptionPane;
-import weka.core.Instance;
 import weka.core.Instances;
 
 /**
@@ -23,7 +23,8 @@ import weka.core.Instances;
  * causes the table to be updated.
  *
  * The classifier used is Weka's implementation of IBk (a nearest neighbor algorithm). It has only slightly less
- * accurate estimates than logistic regression, while still being a lot faster.
+ * accurate estimates than logistic regression, while still being a lot faster. Trained estimators are kept in the
+ * EstimatorCache, so showing suggestions for the same target again does not train the classifier again.
  *
  * @author erikbrannstrom
  */
@@ -71,12 +72,11 @@ public class DataActionListener implements ActionListener
 			// is required for good results.
 			//Estimator est = Estimator.factory(dataManager.get(), "weka.classifiers.functions.Logistic", 
 			//		Arrays.asList("-R", "1000").toArray(new String[0])); 
-			Estimator est = Estimator.factory(training, "weka.classifiers.lazy.IBk", null);
+			Estimator est = EstimatorCache.instance().get(this.kbContainer.getKnowledgeBase(), currentTarget,
+					"weka.classifiers.lazy.IBk", null);
 			Instances ads = adFactory.all();
 			ads.setClassIndex(ads.numAttributes() - 1);
-			for (Instance ad : ads) {
-				ad.setClassValue(est.estimate(ad));
-			}
+			est.estimateAll(ads);
 			Ads knowledge = this.kbContainer.getKnowledgeBase().getAds(currentTarget);
 			knowledge.convertToRate();
 
@@ -1,10 +1,14 @@
 package adstimator.gui.controllers;
 
+import adstimator.data.AdCursor;
+import adstimator.data.KnowledgeBase;
+import adstimator.data.KnowledgeBaseContainer;
 import adstimator.gui.models.SelectionInterface;
 import adstimator.gui.models.TargetInterface;
 import adstimator.io.Exporter;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
 import java.util.List;
 import java.util.Map;
 import javax.swing.JFileChooser;
@@ -17,54 +21,119 @@ import javax.swing.filechooser.FileNameExtensionFilter;
  * exported row, where as the selection has its own key-value map for each row.
  * 
  * The file to which the export is written is chosen by the user in a file dialog.
+ * 
+ * With the ADS action command, the ads of the current knowledge base which match the target are exported instead of
+ * the selection. They are read through a cursor, so knowledge bases of any size can be exported.
  *
  * @author erikbrannstrom
  */
 public class ExportActionListener implements ActionListener
 {
+	/**
+	 * Action command for exporting the ads of the knowledge base rather than the selection.
+	 */
+	public static final String ADS = "Export ads";
 
 	private Exporter exporter;
 	private final SelectionInterface selection;
 	private final TargetInterface target;
+	private final KnowledgeBaseContainer kbContainer;
 
 	/**
-	 * Initialize a new listener with an exporter as well as a selection and a target interface.
+	 * Initialize a new listener with an exporter as well as a selection and a target interface, and the container of
+	 * the knowledge base.
 	 * 
 	 * @param exporter
 	 * @param table
 	 * @param target 
+	 * @param kbContainer
 	 */
-	public ExportActionListener(Exporter exporter, SelectionInterface table, TargetInterface target)
+	public ExportActionListener(Exporter exporter, SelectionInterface table, TargetInterface target,
+			KnowledgeBaseContainer kbContainer)
 	{
 		this.exporter = exporter;
 		this.selection = table;
 		this.target = target;
+		this.kbContainer = kbContainer;
 	}
 
 	@Override
 	public void actionPerformed(ActionEvent ae)
 	{
+		if (ADS.equals(ae.getActionCommand())) {
+			this.exportAds();
+			return;
+		}
 		List<Map<String, String>> adList = this.selection.exportSelected();
+		if (adList.isEmpty()) {
+			JOptionPane.showMessageDialog(null, "No rows selected.");
+			return;
+		}
+
 		Map<String, String> additions = this.target.currentTarget();
-		String campaignName = JOptionPane.showInputDialog(null, "What is the name of the campaign?");
+		String campaignName = this.askCampaignName();
+		if (campaignName == null) {
+			return;
+		}
 		additions.put("Campaign Name", campaignName);
 		
 		for (Map<String, String> map : adList) {
 			map.putAll(additions);
 		}
 
-		if (adList.isEmpty()) {
-			JOptionPane.showMessageDialog(null, "No rows selected.");
+		// Perform export
+		File file = this.chooseFile();
+		if (file != null) {
+			this.exporter.export(file, adList);
+			JOptionPane.showMessageDialog(null, "All lines were exported successfully.");
+		}
+	}
+
+	/**
+	 * Private helper method for exporting the ads of the current knowledge base which match the target, with the
+	 * target and campaign name repeated on each row.
+	 */
+	private void exportAds()
+	{
+		KnowledgeBase kb = this.kbContainer.getKnowledgeBase();
+		if (kb == null) {
+			return;
+		}
+		Map<String, String> target = this.target.currentTarget();
+		String campaignName = this.askCampaignName();
+		if (campaignName == null) {
 			return;
 		}
+		Map<String, String> additions = this.target.currentTarget();
+		additions.put("Campaign Name", campaignName);
 
-		// Perform export
+		File file = this.chooseFile();
+		if (file != null) {
+			this.exporter.export(file, kb.cursor(target, AdCursor.DEFAULT_CHUNK_SIZE), additions);
+			JOptionPane.showMessageDialog(null, "All ads were exported successfully.");
+		}
+	}
+
+	/**
+	 * Private helper method for asking the user for the name of the campaign.
+	 * 
+	 * @return Campaign name, null if the user cancelled
+	 */
+	private String askCampaignName()
+	{
+		return JOptionPane.showInputDialog(null, "What is the name of the campaign?");
+	}
+
+	/**
+	 * Private helper method for letting the user choose the file to export to.
+	 * 
+	 * @return File, null if the user cancelled
+	 */
+	private File chooseFile()
+	{
 		JFileChooser chooser = new JFileChooser();
 		chooser.setFileFilter(new FileNameExtensionFilter("CSV", "csv"));
 		int returnVal = chooser.showSaveDialog(null);
-		if (returnVal == JFileChooser.APPROVE_OPTION) {
-			this.exporter.export(chooser.getSelectedFile(), adList);
-			JOptionPane.showMessageDialog(null, "All lines were exported successfully.");
-		}
+		return returnVal == JFileChooser.APPROVE_OPTION ? chooser.getSelectedFile() : null;
 	}
 }
@@ -2,6 +2,7 @@ package adstimator.gui.views;
 
 import adstimator.data.Ads;
 import adstimator.data.KnowledgeBase;
+import adstimator.data.KnowledgeBaseCatalog;
 import adstimator.data.KnowledgeBaseContainer;
 import adstimator.gui.controllers.ExportActionListener;
 import adstimator.io.FacebookDataParser;
@@ -10,7 +11,10 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
 import javax.swing.ButtonGroup;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFileChooser;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
@@ -18,6 +22,7 @@ import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JRadioButtonMenuItem;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 /**
@@ -27,18 +32,23 @@ import javax.swing.filechooser.FileNameExtensionFilter;
  * The import function uses the FacebookDataParser class to parse a report chosen by the user and hands that data on to
  * the knowledge base.
  * 
- * The knowledge base menu is updated any time the current knowledge base is changed, a new one is created or an 
- * existing one is deleted. It contains some logic, but most of the heavy lifting is delegated to the KnowledgeBase
- * class.
+ * The knowledge base menu observes the knowledge base catalog and is updated any time a knowledge base is created,
+ * renamed or deleted, and the container for when the current knowledge base is replaced. Until the container holds a
+ * knowledge base, the import actions and the knowledge base menu are disabled. It contains some logic, but most of the
+ * heavy lifting is delegated to the KnowledgeBase class.
  *
  * @author erikbrannstrom
  */
-public class Menu extends JMenuBar
+public class Menu extends JMenuBar implements Observer
 {
 
 	private ExportActionListener exportAction;
 	private KnowledgeBaseContainer kbContainer;
 	private JMenu menuDatabase;
+	private JMenuItem menuItmReport;
+	private JMenuItem menuItmMerge;
+	private JMenuItem menuItmExportAds;
+	private JCheckBoxMenuItem menuItmCollapse;
 
 	/**
 	 * Initialize a new menu with an export action instance and the container for the knowledge base.
@@ -51,6 +61,28 @@ public class Menu extends JMenuBar
 		this.exportAction = exportAction;
 		this.kbContainer = kbContainer;
 		this.init();
+		KnowledgeBaseCatalog.instance().addObserver(this);
+		this.kbContainer.addObserver(this);
+	}
+
+	/**
+	 * Rebuild the knowledge base menu when the catalog or the current knowledge base changes. Changes may be made on any
+	 * thread, so the menu is always rebuilt on the event dispatch thread.
+	 * 
+	 * @param o Catalog or container
+	 * @param arg Knowledge base which changed, if any
+	 */
+	@Override
+	public void update(Observable o, Object arg)
+	{
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				updateKBMenu();
+			}
+		});
 	}
 
 	/**
@@ -59,7 +91,7 @@ public class Menu extends JMenuBar
 	private void init()
 	{
 		JMenu menuFile = new JMenu("File");
-		JMenuItem menuItmReport = new JMenuItem("Import Facebook CSV");
+		menuItmReport = new JMenuItem("Import Facebook CSV");
 		menuItmReport.addActionListener(new ActionListener()
 		{
 			@Override
@@ -69,7 +101,8 @@ public class Menu extends JMenuBar
 				chooser.setFileFilter(new FileNameExtensionFilter("CSV", "csv"));
 				int returnVal = chooser.showOpenDialog(getParent());
 				if (returnVal == JFileChooser.APPROVE_OPTION) {
-					kbContainer.getKnowledgeBase().addAds(new Ads(FacebookDataParser.parse(chooser.getSelectedFile())));
+					kbContainer.getKnowledgeBase().addAds(prepare(new Ads(FacebookDataParser.parse(
+							chooser.getSelectedFile()))));
 					kbContainer.updated();
 				}
 			}
@@ -78,12 +111,40 @@ public class Menu extends JMenuBar
 				Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()));
 		menuFile.add(menuItmReport);
 
+		menuItmMerge = new JMenuItem("Import Facebook CSV, replacing earlier ads");
+		menuItmMerge.addActionListener(new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				JFileChooser chooser = new JFileChooser();
+				chooser.setFileFilter(new FileNameExtensionFilter("CSV", "csv"));
+				int returnVal = chooser.showOpenDialog(getParent());
+				if (returnVal == JFileChooser.APPROVE_OPTION) {
+					kbContainer.getKnowledgeBase().upsertAds(prepare(new Ads(FacebookDataParser.parse(
+							chooser.getSelectedFile(), true))));
+					kbContainer.updated();
+				}
+			}
+		});
+		menuFile.add(menuItmMerge);
+
+		// Rows which only differ in columns that are not imported can be stored as one
+		menuItmCollapse = new JCheckBoxMenuItem("Collapse duplicate rows on import");
+		menuFile.add(menuItmCollapse);
+		menuFile.addSeparator();
+
 		JMenuItem menuItmExport = new JMenuItem("Export selection");
 		menuItmExport.addActionListener(this.exportAction);
 		menuItmExport.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_E,
 				Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()));
 		menuFile.add(menuItmExport);
 
+		menuItmExportAds = new JMenuItem("Export knowledge base ads");
+		menuItmExportAds.setActionCommand(ExportActionListener.ADS);
+		menuItmExportAds.addActionListener(this.exportAction);
+		menuFile.add(menuItmExportAds);
+
 		JMenuItem quit = new JMenuItem("Quit");
 		quit.addActionListener(new ActionListener()
 		{
@@ -102,6 +163,18 @@ public class Menu extends JMenuBar
 		this.add(menuDatabase);
 	}
 
+	/**
+	 * Private method for preparing imported ads before they are stored, collapsing duplicate rows if the user has
+	 * chosen to.
+	 * 
+	 * @param ads Imported ads
+	 * @return Ads to store
+	 */
+	private Ads prepare(Ads ads)
+	{
+		return this.menuItmCollapse.isSelected() ? ads.collapse() : ads;
+	}
+
 	/**
 	 * Private method for updating the knowledge base menu.
 	 */
@@ -109,25 +182,39 @@ public class Menu extends JMenuBar
 	{
 		// Empty menu
 		this.menuDatabase.removeAll();
+		boolean loaded = this.kbContainer.getKnowledgeBase() != null;
+		this.menuDatabase.setEnabled(loaded);
+		this.menuItmReport.setEnabled(loaded);
+		this.menuItmMerge.setEnabled(loaded);
+		this.menuItmExportAds.setEnabled(loaded);
+		if (!loaded) {
+			// The catalog is read once a knowledge base has been loaded, which also means the schema is in place
+			return;
+		}
 
-		// Add create action
+		// Add create actions, one for each storage backend
 		JMenuItem menuItmNew = new JMenuItem("New KB");
 		menuItmNew.addActionListener(new ActionListener()
 		{
 			@Override
 			public void actionPerformed(ActionEvent ae)
 			{
-				String name = JOptionPane.showInputDialog(null, "Name the new knowledge base:");
-				if (name != null && name.length() > 0) {
-					KnowledgeBase kb = new KnowledgeBase(name);
-					kb.save();
-					kbContainer.setKnowledgeBase(kb);
-					updateKBMenu();
-				}
+				createKB(KnowledgeBase.DATABASE);
 			}
 		});
 		this.menuDatabase.add(menuItmNew);
 
+		JMenuItem menuItmNewMapped = new JMenuItem("New memory mapped KB");
+		menuItmNewMapped.addActionListener(new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent ae)
+			{
+				createKB(KnowledgeBase.MAPPED);
+			}
+		});
+		this.menuDatabase.add(menuItmNewMapped);
+
 		// Add delete action
 		JMenuItem menuItmDelete = new JMenuItem("Delete current KB");
 		menuItmDelete.addActionListener(new ActionListener()
@@ -144,7 +231,6 @@ public class Menu extends JMenuBar
 						kbContainer.getKnowledgeBase().delete();
 						kbs = KnowledgeBase.getAll();
 						kbContainer.setKnowledgeBase(kbs.get(0));
-						updateKBMenu();
 					} else {
 						JOptionPane.showMessageDialog(null, "Cannot remove the last KB. Create a new one first.");
 					}
@@ -171,4 +257,20 @@ public class Menu extends JMenuBar
 			this.menuDatabase.add(itm);
 		}
 	}
+
+	/**
+	 * Private method for asking the user for a name and creating a new knowledge base.
+	 * 
+	 * @param storage Storage backend of the new knowledge base
+	 */
+	private void createKB(String storage)
+	{
+		String name = JOptionPane.showInputDialog(null, "Name the new knowledge base:");
+		if (name != null && name.length() > 0) {
+			KnowledgeBase kb = new KnowledgeBase(name);
+			kb.storage(storage);
+			kb.save();
+			this.kbContainer.setKnowledgeBase(kb);
+		}
+	}
 }
@@ -43,13 +43,13 @@ public class TargetPanel extends JPanel implements Observer, TargetInterface
 		Map<String, String> currentTarget = new HashMap<String, String>();
 		// Set gender, if other than all is selected
 		String val = (String) this.cmbGender.getSelectedItem();
-		if (!val.equalsIgnoreCase("All")) {
+		if (val != null && !val.equalsIgnoreCase("All")) {
 			currentTarget.put("Gender", val);
 		}
 
 		// Set ages, if other than all is selected
 		val = (String) this.cmbAge.getSelectedItem();
-		if (!val.equalsIgnoreCase("All")) {
+		if (val != null && !val.equalsIgnoreCase("All")) {
 			currentTarget.put("Age Min", val.substring(0, val.indexOf("-")));
 			currentTarget.put("Age Max", val.substring(val.indexOf("-") + 1));
 		}
@@ -75,6 +75,10 @@ public class TargetPanel extends JPanel implements Observer, TargetInterface
 	 */
 	private void updateTargetControls()
 	{
+		if (this.kbc.getKnowledgeBase() == null) {
+			// Nothing loaded yet
+			return;
+		}
 		Map<String, List<String>> targets = this.kbc.getKnowledgeBase().targets();
 		this.cmbGender.removeAllItems();
 		for (String gender : targets.get("Gender")) {
@@ -1,7 +1,13 @@
 package adstimator.io;
 
+import adstimator.data.AdCursor;
+import adstimator.data.Ads;
 import java.io.*;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import weka.core.Attribute;
+import weka.core.Instance;
 
 /**
  * Class for exporting values based on a template file.
@@ -12,12 +18,14 @@ import java.util.*;
  * 
  * The template line can (and should, otherwise it would be useless) placeholders for values. A placeholder is the
  * name of the key wrapped in curly brackets, i.e. {key}. The key-values for each row are then input as a list of maps
- * to the export method.
+ * to the export method. Ads can also be exported straight from a cursor, in which case the keys are the attribute
+ * names.
  * 
  * @author erikbrannstrom
  */
 public class Exporter
 {
+	private static final Pattern PLACEHOLDER = Pattern.compile("\\{(.+?)\\}");
 	private File templateFile;
 	private String headerLine, rowTemplate;
 
@@ -53,7 +61,92 @@ public class Exporter
 	 */
 	public void export(File outputFile, List<Map<String,String>> values)
 	{
-		// Read template
+		// Loop through values and create new file
+		try {
+			BufferedWriter writer = this.open(outputFile);
+			try {
+				for (Map<String,String> map : values) {
+					this.write(writer, map);
+				}
+			} finally {
+				writer.close();
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Export ads to a new file, a chunk at a time, so that there is no limit on the number of ads.
+	 * 
+	 * Each ad becomes a line, with its attribute values as the values of the line. Nominal values are used as is and
+	 * numeric values are written as integers where possible. The additional values are added to every line, like the
+	 * target of the ads.
+	 * 
+	 * @param outputFile
+	 * @param cursor Cursor over the ads, which is closed when done
+	 * @param additions Values added to each line, may be null
+	 */
+	public void export(File outputFile, AdCursor cursor, Map<String,String> additions)
+	{
+		try {
+			BufferedWriter writer = this.open(outputFile);
+			try {
+				this.write(writer, cursor, additions);
+			} finally {
+				writer.close();
+			}
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Private helper method for writing one line per ad of a cursor.
+	 * 
+	 * @param writer
+	 * @param cursor Cursor over the ads
+	 * @param additions Values added to each line, may be null
+	 * @throws IOException 
+	 */
+	private void write(BufferedWriter writer, AdCursor cursor, Map<String,String> additions) throws IOException
+	{
+		Ads chunk;
+		while ((chunk = cursor.next()) != null) {
+			for (Instance ad : chunk) {
+				Map<String,String> map = new HashMap<String,String>();
+				if (additions != null) {
+					map.putAll(additions);
+				}
+				for (int i = 0; i < chunk.numAttributes(); i++) {
+					Attribute attribute = chunk.attribute(i);
+					if (ad.isMissing(i)) {
+						continue;
+					}
+					if (attribute.isNumeric()) {
+						double value = ad.value(i);
+						map.put(attribute.name(), value == Math.rint(value) ? String.valueOf((long) value)
+								: String.valueOf(value));
+					} else {
+						map.put(attribute.name(), ad.stringValue(i));
+					}
+				}
+				this.write(writer, map);
+			}
+		}
+	}
+
+	/**
+	 * Private helper method for reading the template, if needed, and creating the output file with the header line.
+	 * 
+	 * @param outputFile
+	 * @return Writer for the rest of the file
+	 * @throws IOException 
+	 */
+	private BufferedWriter open(File outputFile) throws IOException
+	{
 		if (this.headerLine == null) {
 			try {
 				Scanner scanner = new Scanner(this.templateFile);
@@ -64,28 +157,33 @@ public class Exporter
 				throw new RuntimeException(ex);
 			}
 		}
+		BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile));
+		writer.write(this.headerLine);
+		writer.newLine();
+		return writer;
+	}
 
-		// Loop through values and create new file
-		try {
-			BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile));
-			writer.write(this.headerLine);
-			writer.newLine();
-			for (Map<String,String> map : values) {
-				String line = this.rowTemplate;
-				// Replace placeholders with values from map
-				for (String key : map.keySet()) {
-					line = line.replaceAll(String.format("\\{%s\\}", key), map.get(key));
-				}
-				// Remove any unused placeholders
-				line = line.replaceAll("\\{.+?\\}", "");
-				// Write to file
-				writer.write(line);
-				writer.newLine();
-				writer.flush();
-			}
-		} catch (Exception ex) {
-			throw new RuntimeException(ex);
+	/**
+	 * Private helper method for writing one line from the template.
+	 * 
+	 * @param writer
+	 * @param map Values, key => value
+	 * @throws IOException 
+	 */
+	private void write(BufferedWriter writer, Map<String,String> map) throws IOException
+	{
+		// Replace placeholders with values from map, and remove those without a value. Values are inserted literally,
+		// so they may contain any characters.
+		Matcher placeholder = PLACEHOLDER.matcher(this.rowTemplate);
+		StringBuffer line = new StringBuffer();
+		while (placeholder.find()) {
+			String value = map.get(placeholder.group(1));
+			placeholder.appendReplacement(line, Matcher.quoteReplacement(value == null ? "" : value));
 		}
+		placeholder.appendTail(line);
+		// Write to file
+		writer.write(line.toString());
+		writer.newLine();
 	}
 
 }
\ No newline at end of file
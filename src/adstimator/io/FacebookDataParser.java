@@ -33,6 +33,19 @@ public class FacebookDataParser
 	 * @return All instances from input file
 	 */
 	public static Instances parse(File file)
+	{
+		return FacebookDataParser.parse(file, false);
+	}
+
+	/**
+	 * Parse the given CSV file and return a set of instances created from the data, optionally keeping the Ad ID so
+	 * that the ads can be merged with earlier imports.
+	 * 
+	 * @param file Facebook ad report in CSV format
+	 * @param keepKey Whether to keep the Ad ID attribute
+	 * @return All instances from input file
+	 */
+	public static Instances parse(File file, boolean keepKey)
 	{
 		try {
 			// Because the reports from Facebook are UTF16, tab-delimited and drops missing values at end of line
@@ -76,7 +89,8 @@ public class FacebookDataParser
 			List<Integer> keepIndices = new LinkedList<Integer>();
 			for (int i = 0; i < inst.numAttributes(); i++) {
 				String attrName = inst.attribute(i).name();
-				if ( Ads.TARGETS.contains(attrName) || Ads.METRICS.contains(attrName) || Ads.AD.contains(attrName) ) {
+				if ( Ads.TARGETS.contains(attrName) || Ads.METRICS.contains(attrName) || Ads.AD.contains(attrName)
+						|| (keepKey && Ads.KEY.equals(attrName)) ) {
 					keepIndices.add(i+1); // String based indices start at 1, not 0
 				}
 			}
@@ -0,0 +1,97 @@
+package adstimator;
+
+import adstimator.data.DatabaseHelper;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.AfterClass;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author erikbrannstrom
+ */
+public class MigratorTest
+{
+
+	@BeforeClass
+	public static void setUpClass()
+	{
+		DatabaseHelper.instance().setConnectionURL("jdbc:sqlite:resources/tests/migrations.db");
+	}
+
+	@AfterClass
+	public static void tearDownClass()
+	{
+		DatabaseHelper.instance().close();
+		for (String suffix : new String[]{"", "-wal", "-shm"}) {
+			File db = new File("resources/tests/migrations.db" + suffix);
+			if (db.exists()) {
+				db.delete();
+			}
+		}
+	}
+
+	/**
+	 * Test that migrations are run once, in order, and that background migrations run step by step.
+	 */
+	@Test
+	public void testMigrate()
+	{
+		final List<String> log = new ArrayList<String>();
+		List<Migration> migrations = new ArrayList<Migration>();
+		migrations.add(new BackgroundMigration(3, "Fill table")
+		{
+			private int steps = 0;
+
+			@Override
+			public boolean step()
+			{
+				log.add("step");
+				return ++this.steps == 3;
+			}
+		});
+		migrations.add(new StartupMigration(1, "Create table")
+		{
+			@Override
+			public void migrate(Connection con) throws SQLException
+			{
+				Statement stmnt = con.createStatement();
+				stmnt.execute("CREATE TABLE migrated (id INTEGER)");
+				stmnt.close();
+				log.add("create");
+			}
+		});
+		migrations.add(new StartupMigration(2, "Alter table")
+		{
+			@Override
+			public void migrate(Connection con) throws SQLException
+			{
+				Statement stmnt = con.createStatement();
+				stmnt.execute("ALTER TABLE migrated ADD COLUMN name TEXT");
+				stmnt.close();
+				log.add("alter");
+			}
+		});
+
+		Migrator migrator = new Migrator(migrations);
+		assertEquals(3, migrator.pending().size());
+		migrator.migrate();
+		assertEquals(Arrays.asList("create", "alter"), log);
+		assertEquals(1, migrator.pending().size());
+		assertTrue(migrator.runBackground());
+		assertEquals(Arrays.asList("create", "alter", "step", "step", "step"), log);
+		assertTrue(migrator.pending().isEmpty());
+
+		// Nothing is run again
+		migrator.migrate();
+		migrator.runBackground();
+		assertEquals(5, log.size());
+	}
+}
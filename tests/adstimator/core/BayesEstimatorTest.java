@@ -0,0 +1,116 @@
+package adstimator.core;
+
+import adstimator.data.Ads;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+
+/**
+ *
+ * @author erikbrannstrom
+ */
+public class BayesEstimatorTest
+{
+	private Ads training;
+
+	@Before
+	public void setUp()
+	{
+		this.training = BayesEstimatorTest.ads(new Object[][]{
+			{"Text-1", "Image-1", 5, 100},
+			{"Text-1", "Image-2", 10, 100},
+			{"Text-2", "Image-1", 20, 100},
+			{"Text-1", "Image-1", 5, 100}
+		});
+	}
+
+	/**
+	 * Test that estimates back off from combinations to bodies and images to the global rate.
+	 */
+	@Test
+	public void testEstimate()
+	{
+		Estimator est = Estimator.factory(this.training, BayesEstimator.class.getName(), new String[]{"-M", "100"});
+		assertTrue(est instanceof BayesEstimator);
+		double global = 40.0 / 400;
+		double body1 = (20 + 100 * global) / 400;
+		double image1 = (30 + 100 * global) / 400;
+		double image2 = (10 + 100 * global) / 200;
+		double text2 = (20 + 100 * global) / 200;
+
+		// Seen combination, shrunk towards the mean of its body and image
+		double prior = (body1 + image1) / 2;
+		assertEquals((10 + 100 * prior) / 300, est.estimate(this.ad("Text-1", "Image-1")), 1e-9);
+		// Unseen combination of seen body and image
+		assertEquals((text2 + image2) / 2, est.estimate(this.ad("Text-2", "Image-2")), 1e-9);
+		// Only the image has been seen
+		assertEquals(image2, est.estimate(this.ad("Text-3", "Image-2")), 1e-9);
+		// Nothing has been seen
+		assertEquals(global, est.estimate(this.ad("Text-3", "Image-3")), 1e-9);
+	}
+
+	/**
+	 * Test that learning new ads gives the same estimates as training on all of them, also for new values.
+	 */
+	@Test
+	public void testUpdate()
+	{
+		Ads delta = BayesEstimatorTest.ads(new Object[][]{
+			{"Text-3", "Image-1", 2, 50},
+			{"Text-1", "Image-2", 3, 50}
+		});
+		Estimator updated = Estimator.factory(this.training, BayesEstimator.class.getName(), null);
+		assertTrue(updated.update(delta));
+
+		Ads all = new Ads(this.training);
+		for (Instance ad : delta) {
+			all.add(ad);
+		}
+		Estimator trained = Estimator.factory(all, BayesEstimator.class.getName(), null);
+		for (String body : new String[]{"Text-1", "Text-2", "Text-3"}) {
+			for (String image : new String[]{"Image-1", "Image-2"}) {
+				assertEquals(trained.estimate(this.ad(body, image)), updated.estimate(this.ad(body, image)), 1e-9);
+			}
+		}
+	}
+
+	/**
+	 * Private helper method for creating an ad to estimate.
+	 */
+	private Instance ad(String body, String image)
+	{
+		Instance ad = new DenseInstance(4);
+		ad.setDataset(this.training);
+		ad.setValue(0, body);
+		ad.setValue(1, image);
+		return ad;
+	}
+
+	/**
+	 * Private helper method for creating ads with the same attributes as the ads of a knowledge base.
+	 */
+	private static Ads ads(Object[][] rows)
+	{
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		attributes.add(new Attribute("Body", Arrays.asList("Text-1", "Text-2", "Text-3")));
+		attributes.add(new Attribute("Image Hash", Arrays.asList("Image-1", "Image-2", "Image-3")));
+		attributes.add(new Attribute("Clicks Count"));
+		attributes.add(new Attribute("Impressions"));
+		Ads ads = new Ads("Test", attributes, rows.length);
+		for (Object[] row : rows) {
+			Instance ad = new DenseInstance(4);
+			ad.setDataset(ads);
+			ad.setValue(0, (String)row[0]);
+			ad.setValue(1, (String)row[1]);
+			ad.setValue(2, (Integer)row[2]);
+			ad.setValue(3, (Integer)row[3]);
+			ads.add(ad);
+		}
+		return ads;
+	}
+}
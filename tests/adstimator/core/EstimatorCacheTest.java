@@ -0,0 +1,282 @@
+package adstimator.core;
+
+import adstimator.Setup;
+import adstimator.data.Ads;
+import adstimator.data.DatabaseHelper;
+import adstimator.data.KnowledgeBase;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils;
+
+/**
+ *
+ * @author erikbrannstrom
+ */
+public class EstimatorCacheTest
+{
+	private static final File MODELS = new File("resources/tests/models");
+	private KnowledgeBase kb;
+
+	@BeforeClass
+	public static void setUpClass() throws ClassNotFoundException
+	{
+		Class.forName("org.sqlite.JDBC");
+		DatabaseHelper.instance().setConnectionURL("jdbc:sqlite:resources/tests/estimators.db");
+		if (Setup.isFirstRun()) {
+			Setup.init();
+		}
+	}
+
+	@AfterClass
+	public static void tearDownClass()
+	{
+		DatabaseHelper.instance().close();
+		for (String suffix : new String[]{"", "-wal", "-shm"}) {
+			File db = new File("resources/tests/estimators.db" + suffix);
+			if (db.exists()) {
+				db.delete();
+			}
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		this.kb = new KnowledgeBase("Test");
+		this.kb.save();
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		this.kb.addAds(new Ads(source.getDataSet()));
+	}
+
+	@After
+	public void tearDown()
+	{
+		this.kb.delete();
+		File[] files = MODELS.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		MODELS.delete();
+	}
+
+	/**
+	 * Test that estimators are cached in memory and on disk, and retrained when the knowledge base changes.
+	 */
+	@Test
+	public void testGet() throws Exception
+	{
+		String className = "weka.classifiers.lazy.IBk";
+		EstimatorCache cache = new EstimatorCache(EstimatorCache.DEFAULT_MAX_ENTRIES, MODELS);
+		Estimator trained = cache.get(this.kb, null, className, null);
+		assertNotNull(trained);
+		assertEquals(1, cache.misses());
+		// Files are written in the background
+		cache.flush();
+		assertEquals(1, MODELS.list().length);
+		assertSame(trained, cache.get(this.kb, null, className, null));
+		assertEquals(1, cache.hits());
+
+		// A new cache, as after a restart, reads the estimator from disk
+		EstimatorCache restarted = new EstimatorCache(EstimatorCache.DEFAULT_MAX_ENTRIES, MODELS);
+		Estimator read = restarted.get(this.kb, null, className, null);
+		assertEquals(1, restarted.diskHits());
+		assertEquals(0, restarted.misses());
+		Ads ads = new CombinationAdFactory(this.kb.getAds(null)).all();
+		ads.setClassIndex(ads.numAttributes() - 1);
+		for (Instance ad : ads) {
+			assertEquals(trained.estimate(ad), read.estimate(ad), 1e-9);
+		}
+
+		// Options and targets are part of the key
+		restarted.get(this.kb, null, className, new String[]{"-K", "3"});
+		assertEquals(1, restarted.misses());
+		restarted.flush();
+		assertEquals(2, MODELS.list().length);
+
+		// New ads make the old estimators stale, and their files are removed
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		this.kb.addAds(new Ads(source.getDataSet()));
+		assertNotSame(read, restarted.get(this.kb, null, className, null));
+		assertEquals(2, restarted.misses());
+		restarted.flush();
+		assertEquals(1, MODELS.list().length);
+
+		// Estimators in memory learn imported ads instead of being trained again
+		KnowledgeBase.addListener(restarted);
+		try {
+			Estimator before = restarted.get(this.kb, null, className, null);
+			this.kb.addAds(new Ads(source.getDataSet()));
+			assertSame(before, restarted.get(this.kb, null, className, null));
+			assertEquals(2, restarted.misses());
+			restarted.flush();
+			assertEquals(1, MODELS.list().length);
+
+			// Estimators which were evicted before they were written are still found, and written on flush
+			restarted.setMaxEntries(0);
+			this.kb.addAds(new Ads(source.getDataSet()));
+			assertNotNull(restarted.get(this.kb, null, className, null));
+			assertEquals(2, restarted.misses());
+			restarted.flush();
+			assertEquals(1, MODELS.list().length);
+			EstimatorCache reread = new EstimatorCache(EstimatorCache.DEFAULT_MAX_ENTRIES, MODELS);
+			reread.get(this.kb, null, className, null);
+			assertEquals(1, reread.diskHits());
+		} finally {
+			KnowledgeBase.removeListener(restarted);
+		}
+
+		restarted.invalidate(this.kb.id());
+		assertEquals(0, restarted.size());
+		assertEquals(0, MODELS.list().length);
+	}
+
+	/**
+	 * Test that the estimators of a knowledge base are removed from memory and disk when it is deleted.
+	 */
+	@Test
+	public void testDeletedKnowledgeBase() throws Exception
+	{
+		KnowledgeBase deleted = new KnowledgeBase("Deleted");
+		deleted.save();
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		deleted.addAds(new Ads(source.getDataSet()));
+		EstimatorCache cache = new EstimatorCache(EstimatorCache.DEFAULT_MAX_ENTRIES, MODELS);
+		KnowledgeBase.addListener(cache);
+		try {
+			cache.get(deleted, null, "weka.classifiers.lazy.IBk", null);
+			cache.get(this.kb, null, "weka.classifiers.lazy.IBk", null);
+			cache.flush();
+			assertEquals(2, MODELS.list().length);
+
+			deleted.delete();
+			assertEquals(1, cache.size());
+			assertEquals(1, MODELS.list().length);
+		} finally {
+			KnowledgeBase.removeListener(cache);
+		}
+	}
+
+	/**
+	 * Test that cached estimators give the same estimates as estimators trained on the ads returned by the knowledge
+	 * base, for suggestions created from those ads, even though the rows were stored in a different order.
+	 */
+	@Test
+	public void testEstimatesMatchFresh() throws Exception
+	{
+		KnowledgeBase ordered = new KnowledgeBase("Ordered");
+		ordered.save();
+		try {
+			ordered.addAds(EstimatorCacheTest.ads(new String[][]{
+				{"Text-B", "Image-1", "5", "300"}, {"Text-A", "Image-2", "1", "100"}, {"Text-C", "Image-1", "3", "200"}
+			}));
+			Map<String, String> target = new HashMap<String, String>();
+			target.put("Gender", "Women");
+			EstimatorCache cache = new EstimatorCache(EstimatorCache.DEFAULT_MAX_ENTRIES, null);
+			Estimator cached = cache.get(ordered, target, "weka.classifiers.lazy.IBk", null);
+			EstimatorCacheTest.assertSameEstimates(ordered, target, cached);
+		} finally {
+			ordered.delete();
+		}
+	}
+
+	/**
+	 * Test that an estimator which learned imported ads gives the same estimates as one trained on all ads, although
+	 * the ads of the new version list the bodies in a different order than the ads it was trained on.
+	 */
+	@Test
+	public void testUpdatedEstimatesMatchFresh() throws Exception
+	{
+		KnowledgeBase ordered = new KnowledgeBase("Ordered");
+		ordered.save();
+		EstimatorCache cache = new EstimatorCache(EstimatorCache.DEFAULT_MAX_ENTRIES, null);
+		KnowledgeBase.addListener(cache);
+		try {
+			ordered.addAds(EstimatorCacheTest.ads(new String[][]{
+				{"Text-B", "Image-1", "5", "300"}, {"Text-A", "Image-2", "1", "100"}, {"Text-C", "Image-1", "3", "200"}
+			}));
+			Map<String, String> target = new HashMap<String, String>();
+			target.put("Gender", "Women");
+			Estimator before = cache.get(ordered, target, "weka.classifiers.lazy.IBk", null);
+			String bodies = ordered.getAds(target).attribute("Body").toString();
+
+			ordered.addAds(EstimatorCacheTest.ads(new String[][]{{"Text-C", "Image-2", "1", "50"}}));
+			assertFalse(bodies.equals(ordered.getAds(target).attribute("Body").toString()));
+			Estimator updated = cache.get(ordered, target, "weka.classifiers.lazy.IBk", null);
+			assertSame(before, updated);
+			assertEquals(1, cache.misses());
+			EstimatorCacheTest.assertSameEstimates(ordered, target, updated);
+		} finally {
+			KnowledgeBase.removeListener(cache);
+			ordered.delete();
+		}
+	}
+
+	/**
+	 * Private helper method for checking that an estimator gives the same estimates as one trained on the current
+	 * ads of a knowledge base, for the suggestions created from those ads.
+	 *
+	 * @param kb Knowledge base
+	 * @param target Target
+	 * @param estimator Estimator to check
+	 */
+	private static void assertSameEstimates(KnowledgeBase kb, Map<String, String> target, Estimator estimator)
+	{
+		Estimator fresh = Estimator.factory(kb.getAds(target), "weka.classifiers.lazy.IBk", null);
+		Ads suggestions = new CombinationAdFactory(kb.getAds(target)).all();
+		suggestions.setClassIndex(suggestions.numAttributes() - 1);
+		assertTrue(suggestions.numInstances() > 0);
+		for (Instance ad : suggestions) {
+			assertEquals(ad.toString(), fresh.estimate(ad), estimator.estimate(ad), 1e-9);
+		}
+	}
+
+	/**
+	 * Private helper method for creating ads targeting women aged 18-23.
+	 *
+	 * @param rows Body, image, clicks and impressions of each ad
+	 * @return Ads
+	 */
+	private static Ads ads(String[][] rows)
+	{
+		List<String> bodies = new ArrayList<String>();
+		List<String> images = new ArrayList<String>();
+		for (String[] row : rows) {
+			if (!bodies.contains(row[0])) {
+				bodies.add(row[0]);
+			}
+			if (!images.contains(row[1])) {
+				images.add(row[1]);
+			}
+		}
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		attributes.add(new Attribute("Gender", Arrays.asList("Women")));
+		attributes.add(new Attribute("Age Min"));
+		attributes.add(new Attribute("Age Max"));
+		attributes.add(new Attribute("Body", bodies));
+		attributes.add(new Attribute("Image Hash", images));
+		attributes.add(new Attribute("Clicks Count"));
+		attributes.add(new Attribute("Impressions"));
+		Instances ads = new Instances("Ads", attributes, rows.length);
+		for (String[] row : rows) {
+			ads.add(new DenseInstance(1.0, new double[]{0, 18, 23, bodies.indexOf(row[0]), images.indexOf(row[1]),
+				Double.parseDouble(row[2]), Double.parseDouble(row[3])}));
+		}
+		return new Ads(ads);
+	}
+}
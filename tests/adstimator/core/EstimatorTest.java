@@ -0,0 +1,105 @@
+package adstimator.core;
+
+import adstimator.data.Ads;
+import adstimator.data.AdsAggregator;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils;
+
+/**
+ *
+ * @author erikbrannstrom
+ */
+public class EstimatorTest
+{
+	private Ads training;
+	private Instances candidates;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		// Same attributes as the ads of a knowledge base
+		AdsAggregator aggregator = new AdsAggregator(Arrays.asList("Body", "Image Hash"));
+		aggregator.add(new Ads(source.getDataSet()));
+		this.training = aggregator.result();
+		Ads combinations = new CombinationAdFactory(this.training).all();
+		// Repeat the combinations so that there is enough to split between several threads
+		this.candidates = new Instances(combinations, 0);
+		for (int i = 0; i < 2000; i++) {
+			this.candidates.add(combinations.instance(i % combinations.numInstances()));
+		}
+		this.candidates.setClassIndex(this.candidates.numAttributes() - 1);
+	}
+
+	/**
+	 * Test that parallel estimation gives the same estimates as estimating one ad at a time.
+	 */
+	@Test
+	public void testEstimates()
+	{
+		for (String className : new String[]{"weka.classifiers.lazy.IBk", "weka.classifiers.functions.Logistic"}) {
+			Estimator est = Estimator.factory(new Ads(this.training), className, null);
+			double[] parallel = est.estimates(this.candidates, 4);
+			assertEquals(this.candidates.numInstances(), parallel.length);
+			for (int i = 0; i < parallel.length; i++) {
+				assertEquals(className, est.estimate(this.candidates.instance(i)), parallel[i], 1e-9);
+			}
+			// Workers are reused by later calls
+			assertArrayEquals(parallel, est.estimates(this.candidates, 4), 1e-9);
+
+			est.estimateAll(this.candidates);
+			for (int i = 0; i < parallel.length; i++) {
+				Instance ad = this.candidates.instance(i);
+				assertEquals(className, parallel[i], ad.classValue(), 1e-9);
+			}
+		}
+	}
+
+	/**
+	 * Test that the nominal training set has two weighted instances per distinct ad, however many rows it had.
+	 */
+	@Test
+	public void testNominalKnowledge()
+	{
+		// Import the same rows twice
+		Ads rows = new Ads(this.training);
+		for (int i = 0; i < this.training.numInstances(); i++) {
+			rows.add(this.training.instance(i));
+		}
+		NominalEstimator est = (NominalEstimator)Estimator.factory(rows, "weka.classifiers.functions.Logistic", null);
+		assertEquals(2 * this.training.numInstances(), est.knowledge.numInstances());
+		assertEquals(3, est.knowledge.numAttributes());
+		assertEquals("Action", est.knowledge.classAttribute().name());
+		for (int i = 0; i < this.training.numInstances(); i++) {
+			double clicks = this.training.instance(i).value(this.training.attribute("Clicks Count"));
+			double impressions = this.training.instance(i).value(this.training.attribute("Impressions"));
+			assertEquals(2 * clicks + 1, est.knowledge.instance(2 * i).weight(), 1e-9);
+			assertEquals(2 * (impressions - clicks) + 1, est.knowledge.instance(2 * i + 1).weight(), 1e-9);
+		}
+	}
+
+	/**
+	 * Test that an updateable estimator learns new ads as if it had been trained on them.
+	 */
+	@Test
+	public void testUpdate()
+	{
+		Ads first = new Ads(new Instances(this.training, 0, 2));
+		Ads delta = new Ads(new Instances(this.training, 2, this.training.numInstances() - 2));
+		Estimator updated = Estimator.factory(new Ads(first), "weka.classifiers.lazy.IBk", null);
+		assertTrue(updated.update(delta));
+		Estimator trained = Estimator.factory(new Ads(this.training), "weka.classifiers.lazy.IBk", null);
+		for (Instance ad : this.candidates) {
+			assertEquals(trained.estimate(ad), updated.estimate(ad), 1e-9);
+		}
+
+		// Logistic regression cannot learn incrementally
+		Estimator logistic = Estimator.factory(new Ads(first), "weka.classifiers.functions.Logistic", null);
+		assertFalse(logistic.update(delta));
+	}
+}
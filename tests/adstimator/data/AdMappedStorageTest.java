@@ -0,0 +1,205 @@
+package adstimator.data;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.converters.ConverterUtils;
+
+/**
+ *
+ * @author erikbrannstrom
+ */
+public class AdMappedStorageTest
+{
+	private AdMappedStorage storage;
+	private Ads ads;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		this.storage = new AdMappedStorage(new File("resources/tests/mapped.ads"));
+		this.storage.drop();
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		this.ads = new Ads(source.getDataSet());
+	}
+
+	@After
+	public void tearDown()
+	{
+		this.storage.drop();
+	}
+
+	/**
+	 * Test that stored ads are read back with the same values as the database returns.
+	 */
+	@Test
+	public void testAddGet()
+	{
+		assertNull(this.storage.get());
+		this.storage.add(this.ads);
+		Ads result = this.storage.get();
+		assertNotNull(result);
+		assertEquals(4, result.size());
+
+		Set<String> adStrings = new HashSet<String>();
+		Ads expected = new Ads(this.ads);
+		expected.deleteAttributeAt(expected.attribute("Gender").index());
+		expected.deleteAttributeAt(expected.attribute("Age Min").index());
+		expected.deleteAttributeAt(expected.attribute("Age Max").index());
+		for (Instance ad : expected) {
+			adStrings.add(ad.toString());
+		}
+		for (Instance ad : result) {
+			assertTrue(adStrings.remove(ad.toString()));
+		}
+		assertTrue(adStrings.isEmpty());
+	}
+
+	/**
+	 * Test reading in chunks, where each chunk keeps the nominal values of the chunks before it.
+	 */
+	@Test
+	public void testCursor()
+	{
+		this.storage.add(this.ads);
+		this.storage.add(this.ads);
+		AdCursor cursor = this.storage.cursor(3);
+		Ads first = cursor.next();
+		assertEquals(3, first.size());
+		assertEquals(3, cursor.next().size());
+		Ads last = cursor.next();
+		assertEquals(2, last.size());
+		Attribute body = first.attribute("Body");
+		for (int i = 0; i < body.numValues(); i++) {
+			assertEquals(body.value(i), last.attribute("Body").value(i));
+		}
+		assertNull(cursor.next());
+
+		this.storage.where("Gender", "Men");
+		Ads sums = new AdsAggregator("Body").aggregate(this.storage.cursor(1));
+		assertEquals(1, sums.size());
+		assertEquals(30, sums.firstInstance().value(sums.attribute("Clicks Count")), 0.00001);
+	}
+
+	/**
+	 * Test filtering on text and numeric columns, including values which have never been stored.
+	 */
+	@Test
+	public void testWhere()
+	{
+		this.storage.add(this.ads);
+		this.storage.where("Gender", "Men");
+		this.storage.where("Age", "18-23");
+		assertEquals(1, this.storage.get().size());
+		this.storage.resetWhere();
+		this.storage.where("Gender", "Unknown");
+		assertNull(this.storage.get());
+	}
+
+	/**
+	 * Test that later imports are appended, and that a new attribute extends the schema without losing rows.
+	 */
+	@Test
+	public void testAppendNewAttribute()
+	{
+		this.storage.add(this.ads);
+		Ads more = new Ads(this.ads);
+		more.insertAttributeAt(new Attribute("Campaign"), more.numAttributes());
+		this.storage.add(more);
+		assertEquals(8, this.storage.get().size());
+
+		// A new storage object reads the schema from the file
+		AdMappedStorage other = new AdMappedStorage(this.storage.file());
+		other.where("Body", "Text-1");
+		Ads result = other.get();
+		assertNotNull(result);
+		assertEquals(6, result.size());
+		assertEquals(1, result.attribute("Body").numValues());
+	}
+
+	/**
+	 * Test that rows mapped in several chunks are read like rows in a single chunk, also after the schema changes.
+	 */
+	@Test
+	public void testChunks()
+	{
+		this.storage.drop();
+		// Room for two rows per chunk
+		this.storage = new AdMappedStorage(this.storage.file(), 100);
+		this.storage.add(this.ads);
+		this.storage.add(this.ads);
+		Ads more = new Ads(this.ads);
+		more.insertAttributeAt(new Attribute("Campaign"), more.numAttributes());
+		this.storage.add(more);
+		assertEquals(12, this.storage.get().size());
+		assertEquals(12, this.storage.snapshot().size());
+
+		AdMappedStorage single = new AdMappedStorage(this.storage.file());
+		single.where("Gender", "Men");
+		this.storage.where("Gender", "Men");
+		assertEquals(single.get().toString(), this.storage.get().toString());
+		AdCursor cursor = this.storage.cursor(1);
+		int rows = 0;
+		for (Ads chunk = cursor.next(); chunk != null; chunk = cursor.next()) {
+			rows += chunk.size();
+		}
+		assertEquals(single.get().size(), rows);
+	}
+
+	/**
+	 * Test that strings written after the stored dictionary length, as by a failed import, are ignored and then
+	 * overwritten, and that a file which was being replaced is restored from its backup.
+	 */
+	@Test
+	public void testRecovery() throws Exception
+	{
+		this.storage.add(this.ads);
+		File dictionary = new File(this.storage.file().getPath() + ".dict");
+		long length = dictionary.length();
+		RandomAccessFile torn = new RandomAccessFile(dictionary, "rw");
+		torn.seek(length);
+		torn.writeInt(0);
+		torn.close();
+		AdMappedStorage other = new AdMappedStorage(this.storage.file());
+		assertEquals(4, other.get().size());
+
+		// The new string takes the place of the torn one
+		Ads more = new Ads(this.ads);
+		more.insertAttributeAt(new Attribute("Campaign", Arrays.asList("Spring")), more.numAttributes());
+		for (Instance ad : more) {
+			ad.setValue(more.attribute("Campaign"), "Spring");
+		}
+		other.add(more);
+		AdMappedStorage reopened = new AdMappedStorage(this.storage.file());
+		reopened.where("Campaign", "Spring");
+		assertEquals(4, reopened.get().size());
+
+		File backup = new File(this.storage.file().getPath() + ".old");
+		assertTrue(this.storage.file().renameTo(backup));
+		assertEquals(8, new AdMappedStorage(this.storage.file()).get().size());
+		assertFalse(backup.exists());
+	}
+
+	/**
+	 * Test that the snapshot holds the same ads.
+	 */
+	@Test
+	public void testSnapshot()
+	{
+		this.storage.add(this.ads);
+		Instance noImpressions = new DenseInstance(this.ads.firstInstance());
+		noImpressions.setValue(this.ads.attribute("Impressions"), 0);
+		this.ads.add(noImpressions);
+		this.storage.add(this.ads);
+		assertEquals(8, this.storage.snapshot().size());
+	}
+}
@@ -3,6 +3,7 @@ package adstimator.data;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
+import weka.core.Attribute;
 import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.converters.ConverterUtils.DataSource;
@@ -52,6 +53,40 @@ public class AdsTest
 		assertNull("Match was found for unique instance.", result);
 	}
 
+	/**
+	 * Test of collapse method, of class Ads.
+	 */
+	@Test
+	public void testCollapse()
+	{
+		assertEquals(4, this.ads.collapse().size());
+		
+		Ads doubled = new Ads(this.ads);
+		for (Instance ad : this.ads) {
+			doubled.add(ad);
+		}
+		Ads collapsed = doubled.collapse();
+		assertEquals(4, collapsed.size());
+		assertEquals(doubled.numAttributes(), collapsed.numAttributes());
+		for (int i = 0; i < collapsed.size(); i++) {
+			assertEquals(2 * this.ads.get(i).value(5), collapsed.get(i).value(5), 0.00001);
+			assertEquals(2 * this.ads.get(i).value(6), collapsed.get(i).value(6), 0.00001);
+			assertEquals(this.ads.get(i).stringValue(3), collapsed.get(i).stringValue(3));
+		}
+		assertEquals(doubled.averageActionRate(), collapsed.averageActionRate(), 0.00001);
+
+		// A click rate is computed from the summed metrics rather than kept from the first row
+		Ads rated = new Ads(doubled);
+		rated.insertAttributeAt(new Attribute("Click Rate"), rated.numAttributes());
+		rated.get(0).setValue(7, 0.5);
+		rated.get(4).setValue(7, 0);
+		collapsed = rated.collapse();
+		assertEquals(4, collapsed.size());
+		for (int i = 0; i < collapsed.size(); i++) {
+			assertEquals(this.ads.get(i).value(5) / this.ads.get(i).value(6), collapsed.get(i).value(7), 0.00001);
+		}
+	}
+
 	/**
 	 * Test of convertToRate method, of class Ads.
 	 */
@@ -0,0 +1,71 @@
+package adstimator.data;
+
+import adstimator.Setup;
+import java.io.File;
+import org.junit.AfterClass;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author erikbrannstrom
+ */
+public class ConfigTest
+{
+
+	@BeforeClass
+	public static void setUpClass()
+	{
+		DatabaseHelper.instance().setConnectionURL("jdbc:sqlite:resources/tests/config.db");
+		if (Setup.isFirstRun()) {
+			Setup.init();
+		}
+	}
+
+	@AfterClass
+	public static void tearDownClass()
+	{
+		DatabaseHelper.instance().close();
+		for (String suffix : new String[]{"", "-wal", "-shm"}) {
+			File db = new File("resources/tests/config.db" + suffix);
+			if (db.exists()) {
+				db.delete();
+			}
+		}
+	}
+
+	/**
+	 * Test that new, changed and removed items are visible at once and stored after a flush.
+	 */
+	@Test
+	public void testSetFlush()
+	{
+		Config config = new Config();
+		config.set("new_item", "1");
+		config.set("new_item", "2");
+		config.set("knowledge_base", "5");
+		config.set("removed_item", "x");
+		config.remove("removed_item");
+		assertEquals("2", config.get("new_item"));
+		assertNull(config.get("removed_item"));
+		config.flush();
+
+		Config reloaded = new Config();
+		assertEquals("2", reloaded.get("new_item"));
+		assertEquals("5", reloaded.get("knowledge_base"));
+		assertNull(reloaded.get("removed_item"));
+	}
+
+	/**
+	 * Test that changes are written in the background without an explicit flush.
+	 */
+	@Test
+	public void testBackgroundFlush() throws InterruptedException
+	{
+		Config config = new Config();
+		config.set("background_item", "yes");
+		Thread.sleep(Config.FLUSH_DELAY * 4);
+		assertEquals("yes", new Config().get("background_item"));
+	}
+}
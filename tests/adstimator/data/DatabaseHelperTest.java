@@ -0,0 +1,153 @@
+package adstimator.data;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import org.junit.AfterClass;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author erikbrannstrom
+ */
+public class DatabaseHelperTest
+{
+
+	@BeforeClass
+	public static void setUpClass()
+	{
+		DatabaseHelper.instance().setConnectionURL("jdbc:sqlite:resources/tests/pool.db");
+	}
+
+	@AfterClass
+	public static void tearDownClass()
+	{
+		DatabaseHelper.instance().close();
+		for (String suffix : new String[]{"", "-wal", "-shm"}) {
+			File db = new File("resources/tests/pool.db" + suffix);
+			if (db.exists()) {
+				db.delete();
+			}
+		}
+	}
+
+	/**
+	 * Test that closed reader connections are returned to the pool and reused.
+	 */
+	@Test
+	public void testReaderReuse() throws SQLException
+	{
+		DatabaseHelper helper = DatabaseHelper.instance();
+		Connection first = helper.getConnection();
+		first.close();
+		assertTrue(first.isClosed());
+		long created = helper.statistics().connectionsCreated();
+		for (int i = 0; i < 10; i++) {
+			Connection con = helper.getConnection();
+			assertFalse(con.isClosed());
+			con.close();
+		}
+		assertEquals(created, helper.statistics().connectionsCreated());
+		assertEquals(1, helper.statistics().idleReaders());
+	}
+
+	/**
+	 * Test that the writer can be checked out again by the thread holding it and that an unfinished transaction is
+	 * rolled back when it is returned.
+	 */
+	@Test
+	public void testWriter() throws SQLException
+	{
+		DatabaseHelper helper = DatabaseHelper.instance();
+		Connection outer = helper.getWriteConnection();
+		Connection inner = helper.getWriteConnection();
+		inner.close();
+		assertFalse(outer.isClosed());
+		outer.setAutoCommit(false);
+		outer.close();
+
+		Connection con = helper.getWriteConnection();
+		assertTrue("Transaction was not reset when writer was returned.", con.getAutoCommit());
+		con.close();
+	}
+
+	/**
+	 * Test that the statistics reflect checkouts.
+	 */
+	@Test
+	public void testStatistics() throws SQLException
+	{
+		DatabaseHelper helper = DatabaseHelper.instance();
+		DatabaseHelper.PoolStatistics before = helper.statistics();
+		helper.getConnection().close();
+		helper.getWriteConnection().close();
+		DatabaseHelper.PoolStatistics after = helper.statistics();
+		assertEquals(before.readCheckouts() + 1, after.readCheckouts());
+		assertEquals(before.writeCheckouts() + 1, after.writeCheckouts());
+		assertTrue(after.openReaders() <= after.maxReaders());
+	}
+
+	/**
+	 * Test that prepared statements are cached per connection.
+	 */
+	@Test
+	public void testPrepareCached() throws SQLException
+	{
+		DatabaseHelper helper = DatabaseHelper.instance();
+		Connection con = helper.getConnection();
+		PreparedStatement first = helper.prepareCached(con, "SELECT ? + 1");
+		con.close();
+		long hits = helper.statistics().statementHits();
+		con = helper.getConnection();
+		PreparedStatement second = helper.prepareCached(con, "SELECT ? + 1");
+		con.close();
+		assertSame(first, second);
+		assertEquals(hits + 1, helper.statistics().statementHits());
+	}
+
+	/**
+	 * Test that a thread holding a reader can check out another one when all readers are in use, and that the
+	 * connection is only returned to the pool when the outermost checkout is closed.
+	 */
+	@Test(timeout = 10000)
+	public void testReentrantReader() throws Exception
+	{
+		final DatabaseHelper helper = DatabaseHelper.instance();
+		helper.setMaxReaders(1);
+		try {
+			Connection outer = helper.getConnection();
+			Connection inner = helper.getConnection();
+			assertEquals(1, helper.statistics().openReaders());
+			inner.close();
+			assertFalse(outer.isClosed());
+			assertEquals(0, helper.statistics().idleReaders());
+
+			// Another thread has to wait until the outer checkout is closed
+			final boolean[] acquired = new boolean[1];
+			Thread other = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try {
+						helper.getConnection().close();
+						acquired[0] = true;
+					} catch (SQLException ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+			});
+			other.start();
+			other.join(200);
+			assertFalse(acquired[0]);
+			outer.close();
+			other.join();
+			assertTrue(acquired[0]);
+		} finally {
+			helper.setMaxReaders(DatabaseHelper.DEFAULT_MAX_READERS);
+		}
+	}
+}
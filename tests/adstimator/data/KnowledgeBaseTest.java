@@ -3,13 +3,23 @@ package adstimator.data;
 import adstimator.Setup;
 import java.io.File;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
 import java.util.Set;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 import org.junit.After;
 import org.junit.AfterClass;
 import static org.junit.Assert.*;
@@ -44,9 +54,13 @@ public class KnowledgeBaseTest
 	@AfterClass
 	public static void tearDownClass()
 	{
-		File db = new File("resources/tests/test.db");
-		if (db.exists()) {
-			db.delete();
+		DatabaseHelper.instance().close();
+		// WAL mode keeps a log and a shared memory file next to the database
+		for (String suffix : new String[]{"", "-wal", "-shm"}) {
+			File db = new File("resources/tests/test.db" + suffix);
+			if (db.exists()) {
+				db.delete();
+			}
 		}
 	}
 	
@@ -60,7 +74,7 @@ public class KnowledgeBaseTest
 	{
 		// Empty the KB table after each test
 		try {
-			Connection con = DatabaseHelper.instance().getConnection();
+			Connection con = DatabaseHelper.instance().getWriteConnection();
 			Statement delete = con.createStatement();
 			delete.execute("DELETE FROM knowledge_bases");
 			delete.close();
@@ -68,6 +82,8 @@ public class KnowledgeBaseTest
 		} catch (SQLException ex) {
 			throw new RuntimeException(ex);
 		}
+		// The table was emptied behind the back of the catalog
+		KnowledgeBaseCatalog.instance().reload();
 	}
 
 	/**
@@ -219,6 +235,477 @@ public class KnowledgeBaseTest
 		assertEquals(350, ad.value(impressionsAttr), 0.00001);
 	}
 
+	/**
+	 * Test that aggregates include ads from all imports, which means the rollups are updated incrementally.
+	 */
+	@Test
+	public void testGetAggregatedAdsAfterImports() throws Exception
+	{
+		KnowledgeBase instance = new KnowledgeBase("Test");
+		instance.save();
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		Ads ads = new Ads(source.getDataSet());
+		instance.addAds(ads);
+		instance.addAds(ads);
+		
+		Map<String, String> target = new HashMap<String, String>();
+		target.put("Gender", "Men");
+		Ads result = instance.getAggregatedAds(target, "Body");
+		assertNotNull(result);
+		assertTrue(result.size() == 1);
+		Instance ad = result.firstInstance();
+		assertEquals(30, ad.value(result.attribute("Clicks Count")), 0.00001);
+		assertEquals(700, ad.value(result.attribute("Impressions")), 0.00001);
+	}
+
+	/**
+	 * Test that cached results are copies and that they are invalidated when ads are added.
+	 */
+	@Test
+	public void testGetAdsCached() throws Exception
+	{
+		KnowledgeBase instance = new KnowledgeBase("Test");
+		instance.save();
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		Ads ads = new Ads(source.getDataSet());
+		instance.addAds(ads);
+		
+		long hits = AdsCache.instance().hits();
+		Ads first = instance.getAds(null);
+		first.convertToRate();
+		Ads second = instance.getAds(null);
+		assertEquals(hits + 1, AdsCache.instance().hits());
+		assertNotNull("Cached result was modified by caller.", second.attribute("Clicks Count"));
+		assertEquals(4, second.size());
+		
+		instance.addAds(ads);
+		assertEquals(8, instance.getAds(null).size());
+	}
+
+	/**
+	 * Test that an in-memory knowledge base gives the same results as the database and follows new imports.
+	 */
+	@Test
+	public void testInMemory() throws Exception
+	{
+		KnowledgeBase instance = new KnowledgeBase("Test");
+		instance.save();
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		Ads ads = new Ads(source.getDataSet());
+		instance.addAds(ads);
+		Map<String, String> target = new HashMap<String, String>();
+		target.put("Gender", "Men");
+		Ads expected = instance.getAds(null);
+		Ads expectedAggregate = instance.getAggregatedAds(target, "Body");
+		Map<String, List<String>> expectedTargets = instance.targets();
+
+		instance.inMemory(true);
+		try {
+			KnowledgeBaseSnapshot snapshot = instance.snapshot();
+			instance.addAds(ads);
+			instance.addAds(ads);
+			// New ads are appended to the snapshot instead of loading it again
+			assertSame(snapshot, instance.snapshot());
+			assertEquals(3 * expected.size(), snapshot.size());
+			Ads result = instance.getAds(null);
+			assertEquals(3 * expected.size(), result.size());
+			assertEquals(expected.attribute("Body").numValues(), result.attribute("Body").numValues());
+			result = instance.getAggregatedAds(target, "Body");
+			assertEquals(expectedAggregate.size(), result.size());
+			assertEquals(3 * expectedAggregate.firstInstance().value(expectedAggregate.attribute("Clicks Count")),
+					result.firstInstance().value(result.attribute("Clicks Count")), 0.00001);
+			assertEquals(expectedTargets, instance.targets());
+			target.put("Gender", "Unknown");
+			assertNull(instance.getAds(target));
+		} finally {
+			instance.inMemory(false);
+		}
+	}
+
+	/**
+	 * Test that a memory mapped knowledge base keeps its backend and answers queries like one in the database.
+	 */
+	@Test
+	public void testMappedStorage() throws Exception
+	{
+		KnowledgeBase instance = new KnowledgeBase("Test");
+		instance.storage(KnowledgeBase.MAPPED);
+		instance.save();
+		assertEquals(KnowledgeBase.MAPPED, KnowledgeBase.find(instance.id()).storage());
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		instance.addAds(new Ads(source.getDataSet()));
+		assertTrue(instance.file().exists());
+
+		Map<String, String> target = new HashMap<String, String>();
+		target.put("Gender", "Men");
+		target.put("Age", "18-23");
+		assertEquals(1, instance.getAds(target).size());
+		target.remove("Age");
+		Ads result = instance.getAggregatedAds(target, "Body");
+		assertEquals(1, result.size());
+		assertEquals(15, result.firstInstance().value(result.attribute("Clicks Count")), 0.00001);
+		assertEquals(3, instance.targets().get("Gender").size());
+
+		instance.delete();
+		assertFalse(instance.file().exists());
+	}
+
+	/**
+	 * Test that merging ads keyed by Ad ID replaces earlier versions of the same ads, including in aggregates.
+	 */
+	@Test
+	public void testUpsertAds() throws Exception
+	{
+		KnowledgeBase instance = new KnowledgeBase("Test");
+		instance.save();
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		Ads ads = new Ads(source.getDataSet());
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < ads.size(); i++) {
+			ids.add("a:" + i);
+		}
+		ads.insertAttributeAt(new Attribute(Ads.KEY, ids), 0);
+		for (int i = 0; i < ads.size(); i++) {
+			ads.instance(i).setValue(0, i);
+		}
+		instance.upsertAds(ads);
+		
+		// A later, cumulative report of the same ads
+		Attribute clicks = ads.attribute("Clicks Count");
+		for (Instance ad : ads) {
+			ad.setValue(clicks, ad.value(clicks) * 2);
+		}
+		instance.upsertAds(ads);
+		assertEquals(4, instance.getAds(null).size());
+		
+		Map<String, String> target = new HashMap<String, String>();
+		target.put("Gender", "Men");
+		Ads result = instance.getAggregatedAds(target, "Body");
+		assertEquals(1, result.size());
+		assertEquals(30, result.firstInstance().value(result.attribute("Clicks Count")), 0.00001);
+		assertEquals(350, result.firstInstance().value(result.attribute("Impressions")), 0.00001);
+	}
+
+	/**
+	 * Test that an import split into several batches stores every row, and that its throughput is logged.
+	 */
+	@Test
+	public void testBatchedImport() throws Exception
+	{
+		KnowledgeBase instance = new KnowledgeBase("Test");
+		instance.save();
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		Ads ads = new Ads(source.getDataSet());
+		final List<LogRecord> records = new ArrayList<LogRecord>();
+		Handler handler = new Handler()
+		{
+			@Override
+			public void publish(LogRecord record)
+			{
+				records.add(record);
+			}
+
+			@Override
+			public void flush()
+			{
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		};
+		Logger logger = Logger.getLogger(AdDatabaseStorage.class.getName());
+		logger.addHandler(handler);
+		try {
+			AdDatabaseStorage storage = new AdDatabaseStorage(instance.table());
+			// Three rows per batch, so the four ads need a full and a partial batch
+			storage.setBatchSize(3);
+			storage.add(ads);
+			assertEquals(ads.size(), storage.get().size());
+		} finally {
+			logger.removeHandler(handler);
+		}
+		assertEquals(1, records.size());
+		assertEquals(ads.size(), records.get(0).getParameters()[1]);
+	}
+
+	/**
+	 * Test that each import is recorded as a partition, that queries can be restricted by partition and that a
+	 * dropped partition is removed from aggregates.
+	 */
+	@Test
+	public void testPartitions() throws Exception
+	{
+		KnowledgeBase instance = new KnowledgeBase("Test");
+		instance.save();
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		Ads ads = new Ads(source.getDataSet());
+		Date start = new Date(System.currentTimeMillis() - 1000);
+		instance.addAds(ads);
+		instance.addAds(ads);
+		List<Partition> partitions = instance.partitions();
+		assertEquals(2, partitions.size());
+		assertEquals(4, partitions.get(0).rows());
+		
+		AdDatabaseStorage storage = new AdDatabaseStorage(instance.table());
+		storage.includePartitions(Arrays.asList(partitions.get(1).id()));
+		assertEquals(4, storage.get().size());
+		storage.resetWhere();
+		storage.excludePartitions(Arrays.asList(partitions.get(1).id()));
+		storage.where("Gender", "Men");
+		Ads result = storage.getAggregate("Body");
+		assertEquals(15, result.firstInstance().value(result.attribute("Clicks Count")), 0.00001);
+		storage.resetWhere();
+		storage.importedAfter(start);
+		assertEquals(8, storage.get().size());
+		storage.importedAfter(new Date(System.currentTimeMillis() + 1000));
+		assertNull(storage.get());
+		
+		instance.dropPartition(partitions.get(0));
+		assertEquals(1, instance.partitions().size());
+		assertEquals(4, instance.getAds(null).size());
+		Map<String, String> target = new HashMap<String, String>();
+		target.put("Gender", "Men");
+		result = instance.getAggregatedAds(target, "Body");
+		assertEquals(15, result.firstInstance().value(result.attribute("Clicks Count")), 0.00001);
+	}
+
+	/**
+	 * Test that the data version is stored in the same transaction as the ads, so that a failed commit leaves both
+	 * unchanged.
+	 */
+	@Test
+	public void testVersionStoredWithAds() throws Exception
+	{
+		KnowledgeBase instance = new KnowledgeBase("Test");
+		instance.save();
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		Ads ads = new Ads(source.getDataSet());
+		instance.addAds(ads);
+		assertEquals(instance.version(), this.storedVersion(instance));
+		instance.addAds(ads);
+		assertEquals(instance.version(), this.storedVersion(instance));
+		instance.dropPartition(instance.partitions().get(0));
+		assertEquals(instance.version(), this.storedVersion(instance));
+
+		long version = this.storedVersion(instance);
+		int rows = instance.getAds(null).size();
+		try {
+			new AdDatabaseStorage(instance.table()).add(ads, new AdDatabaseStorage.CommitHook()
+			{
+				@Override
+				public void beforeCommit(Connection con) throws SQLException
+				{
+					Statement stmnt = con.createStatement();
+					stmnt.executeUpdate("UPDATE knowledge_bases SET data_version = data_version + 1");
+					stmnt.close();
+					throw new SQLException("Commit refused");
+				}
+			});
+			fail("The hook should have failed the import.");
+		} catch (RuntimeException ex) {
+			assertTrue(ex.getCause() instanceof SQLException);
+		}
+		assertEquals(version, this.storedVersion(instance));
+		assertEquals(rows, new AdDatabaseStorage(instance.table()).get().size());
+	}
+
+	/**
+	 * Private helper method for reading the data version stored for a knowledge base.
+	 *
+	 * @param kb Knowledge base
+	 * @return Stored data version
+	 */
+	private long storedVersion(KnowledgeBase kb) throws SQLException
+	{
+		Connection con = DatabaseHelper.instance().getConnection();
+		try {
+			Statement stmnt = con.createStatement();
+			ResultSet rs = stmnt.executeQuery("SELECT data_version FROM knowledge_bases WHERE id = " + kb.id());
+			long version = rs.next() ? rs.getLong(1) : 0;
+			rs.close();
+			stmnt.close();
+			return version;
+		} finally {
+			con.close();
+		}
+	}
+
+	/**
+	 * Test that queries with different targets can run against the same knowledge base at the same time.
+	 */
+	@Test
+	public void testConcurrentQueries() throws Exception
+	{
+		final KnowledgeBase instance = new KnowledgeBase("Test");
+		instance.save();
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		instance.addAds(new Ads(source.getDataSet()));
+		final AdDatabaseStorage storage = new AdDatabaseStorage(instance.table());
+		final AdQuery men = AdQuery.all().where("Gender", "Men").groupBy("Body");
+		final AdQuery all = AdQuery.all().groupBy("Body");
+		final double menClicks = storage.get(men).firstInstance().value(1);
+		final int allSize = storage.get(all).size();
+		
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final boolean filtered = t % 2 == 0;
+			Thread thread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try {
+						for (int i = 0; i < 50; i++) {
+							if (filtered) {
+								assertEquals(menClicks, storage.get(men).firstInstance().value(1), 0.00001);
+							} else {
+								assertEquals(allSize, storage.get(all).size());
+							}
+						}
+					} catch (Throwable ex) {
+						failures.add(ex);
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals(men, AdQuery.target(Collections.singletonMap("Gender", "Men")).groupBy("Body"));
+	}
+
+	/**
+	 * Test reading ads in chunks and aggregating the chunks.
+	 */
+	@Test
+	public void testCursor() throws Exception
+	{
+		KnowledgeBase instance = new KnowledgeBase("Test");
+		instance.save();
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		Ads ads = new Ads(source.getDataSet());
+		instance.addAds(ads);
+		instance.addAds(ads);
+		
+		AdCursor cursor = instance.cursor(null, 3);
+		int rows = 0;
+		Ads chunk;
+		while ((chunk = cursor.next()) != null) {
+			assertTrue(chunk.size() <= 3);
+			rows += chunk.size();
+		}
+		cursor.close();
+		assertEquals(8, rows);
+		
+		Map<String, String> target = new HashMap<String, String>();
+		target.put("Gender", "Men");
+		Ads result = new AdsAggregator("Body").aggregate(instance.cursor(target, 1));
+		Ads expected = instance.getAggregatedAds(target, "Body");
+		assertEquals(expected.size(), result.size());
+		assertEquals(expected.firstInstance().value(expected.attribute("Clicks Count")),
+				result.firstInstance().value(result.attribute("Clicks Count")), 0.00001);
+		assertEquals(expected.firstInstance().value(expected.attribute("Impressions")),
+				result.firstInstance().value(result.attribute("Impressions")), 0.00001);
+		
+		Ads training = new AdsAggregator(Ads.AD).aggregate(instance.cursor(null, 5));
+		assertEquals(4, training.size());
+	}
+
+	/**
+	 * Test building rollups in chunks while ads are added and removed.
+	 */
+	@Test
+	public void testBuildRollups() throws Exception
+	{
+		KnowledgeBase instance = new KnowledgeBase("Test");
+		instance.save();
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		Ads ads = new Ads(source.getDataSet());
+		instance.addAds(ads);
+		instance.addAds(ads);
+		Connection con = DatabaseHelper.instance().getWriteConnection();
+		Statement drop = con.createStatement();
+		drop.execute(String.format("DROP TABLE %s_by_body", instance.table()));
+		drop.execute(String.format("DROP TABLE %s_by_image_hash", instance.table()));
+		drop.close();
+		con.close();
+		
+		AdDatabaseStorage storage = new AdDatabaseStorage(instance.table());
+		assertFalse(storage.buildRollups(3));
+		instance.addAds(ads);
+		instance.dropPartition(instance.partitions().get(0));
+		int steps = 0;
+		while (!storage.buildRollups(3)) {
+			steps++;
+		}
+		assertTrue(steps > 2);
+		
+		con = DatabaseHelper.instance().getConnection();
+		Statement query = con.createStatement();
+		ResultSet rs = query.executeQuery("SELECT COUNT(*) FROM sqlite_master WHERE name LIKE '%_build'");
+		assertEquals(0, rs.getInt(1));
+		rs.close();
+		query.close();
+		con.close();
+		
+		storage.where("Gender", "Men");
+		Ads result = storage.getAggregate("Body");
+		assertEquals(30, result.firstInstance().value(result.attribute("Clicks Count")), 0.00001);
+		assertEquals(700, result.firstInstance().value(result.attribute("Impressions")), 0.00001);
+		result = storage.getAggregate("Image Hash");
+		assertEquals(2, result.size());
+	}
+
+	/**
+	 * Test copying, merging and splitting knowledge bases.
+	 */
+	@Test
+	public void testCopyMergeSplit() throws Exception
+	{
+		KnowledgeBase instance = new KnowledgeBase("Test");
+		instance.save();
+		ConverterUtils.DataSource source = new ConverterUtils.DataSource("resources/tests/AdsTest.csv");
+		instance.addAds(new Ads(source.getDataSet()));
+		
+		KnowledgeBase copy = instance.copy("Copy");
+		assertSame(copy, KnowledgeBase.find(copy.id()));
+		assertEquals(4, copy.getAds(null).size());
+		assertEquals(instance.targets(), copy.targets());
+		// The import is carried over with its own time
+		Partition original = instance.partitions().get(0);
+		Partition copied = copy.partitions().get(0);
+		assertEquals(1, copy.partitions().size());
+		assertTrue(original.id() != copied.id());
+		assertEquals(original.imported(), copied.imported());
+		assertEquals(original.rows(), copied.rows());
+		
+		List<KnowledgeBase> sources = new ArrayList<KnowledgeBase>();
+		sources.add(instance);
+		sources.add(copy);
+		KnowledgeBase merged = KnowledgeBase.merge("Merged", sources);
+		assertEquals(8, merged.getAds(null).size());
+		assertEquals(2, merged.partitions().size());
+		Map<String, String> target = new HashMap<String, String>();
+		target.put("Gender", "Men");
+		Ads result = merged.getAggregatedAds(target, "Body");
+		assertEquals(30, result.firstInstance().value(result.attribute("Clicks Count")), 0.00001);
+		
+		List<KnowledgeBase> split = instance.split("Gender");
+		assertEquals(2, split.size());
+		int total = 0;
+		for (KnowledgeBase kb : split) {
+			assertEquals(2, kb.targets().get("Gender").size());
+			total += kb.getAds(null).size();
+		}
+		assertEquals(4, total);
+	}
+
 	/**
 	 * Test of addAds method, of class KnowledgeBase.
 	 */
@@ -238,6 +725,38 @@ public class KnowledgeBaseTest
 		assertTrue(ads.size() == 4);
 	}
 
+	/**
+	 * Test that a statement which fails while the writer is held still returns the writer, so that other threads can
+	 * write afterwards.
+	 */
+	@Test(timeout = 10000)
+	public void testWriterReleasedAfterFailure() throws Exception
+	{
+		try {
+			// The tables already exist
+			Setup.init();
+			fail("Setting up the database again should fail.");
+		} catch (RuntimeException ex) {
+			assertTrue(ex.getCause() instanceof SQLException);
+		}
+		final List<Exception> errors = new ArrayList<Exception>();
+		Thread other = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try {
+					new KnowledgeBase("Other").save();
+				} catch (Exception ex) {
+					errors.add(ex);
+				}
+			}
+		};
+		other.start();
+		other.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+
 	/**
 	 * Test of getAll method, of class KnowledgeBase.
 	 */
@@ -256,6 +775,39 @@ public class KnowledgeBaseTest
 		assertTrue(KnowledgeBase.getAll().size() == 4);
 	}
 
+	/**
+	 * Test that the catalog returns the same object for a knowledge base and notifies observers of changes.
+	 */
+	@Test
+	public void testCatalog()
+	{
+		final List<Object> changes = new ArrayList<Object>();
+		Observer observer = new Observer()
+		{
+			@Override
+			public void update(Observable o, Object arg)
+			{
+				changes.add(arg);
+			}
+		};
+		KnowledgeBaseCatalog.instance().addObserver(observer);
+		try {
+			KnowledgeBase instance = new KnowledgeBase("Test");
+			instance.save();
+			assertSame(instance, KnowledgeBase.find(instance.id()));
+			assertSame(instance, KnowledgeBase.getAll().get(0));
+			instance.save();
+			instance.name("Renamed");
+			instance.save();
+			instance.delete();
+			assertNull(KnowledgeBase.find(instance.id()));
+			assertEquals(3, changes.size());
+			assertSame(instance, changes.get(2));
+		} finally {
+			KnowledgeBaseCatalog.instance().deleteObserver(observer);
+		}
+	}
+
 	/**
 	 * Test of find method, of class KnowledgeBase.
 	 */
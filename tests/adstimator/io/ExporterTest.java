@@ -61,6 +61,26 @@ public class ExporterTest
 		assertNotEquals("Exported file contents matched expected file contents.", expected, output);
 	}
 
+	/**
+	 * Test that values are written literally, even if they look like replacement references or placeholders.
+	 */
+	@Test
+	public void testExportLiteralValues() throws Exception
+	{
+		Exporter instance = new Exporter("resources/export-template.csv");
+		List<Map<String, String>> values = new LinkedList<Map<String, String>>();
+		Map<String, String> line = new HashMap<String, String>();
+		line.put("Body", "Only $1 \\ {Gender} today");
+		line.put("Gender", "Men");
+		values.add(line);
+		File outputFile = File.createTempFile("test", ".csv");
+		instance.export(outputFile, values);
+		String output = getFileContents(outputFile);
+		outputFile.delete();
+		assertTrue(output, output.contains("Only $1 \\ {Gender} today\t"));
+		assertTrue(output, output.contains("\tMen\t"));
+	}
+
 	/**
 	 * Helper method for reading contents of file to string.
 	 * 
@@ -45,4 +45,17 @@ public class FacebookDataParserTest
 		assertEquals("Text, text, text", first.stringValue(0));
 		assertEquals("More text, more text!", last.stringValue(0));
 	}
+	
+	/**
+	 * Test that the Ad ID is kept when asked for.
+	 */
+	@Test
+	public void testParseKeepKey()
+	{
+		File file = new File("resources/tests/facebook-report.csv");
+		Instances results = FacebookDataParser.parse(file, true);
+		assertNotNull(results.attribute("Ad ID"));
+		assertEquals("a:6004729328767", results.firstInstance().stringValue(results.attribute("Ad ID")));
+		assertNull(FacebookDataParser.parse(file).attribute("Ad ID"));
+	}
 }